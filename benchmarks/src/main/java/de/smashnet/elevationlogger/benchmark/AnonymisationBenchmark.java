@@ -0,0 +1,116 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.smashnet.elevationlogger.AnonymisationPipeline;
+import de.smashnet.elevationlogger.LocationTrace;
+import de.smashnet.elevationlogger.TraceDB;
+
+/**
+ * Runs the AnonymisationPipeline over a generated trace DB at the given
+ * parallelism. Scores are per pass over the DB. The archive can be made
+ * larger than the heap (e.g. -jvmArgsAppend -Xmx64m -p traces=2000 -p
+ * nodes=20000) to check that memory stays bounded.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AnonymisationBenchmark {
+	private static final long START_TIME = 1388664447000L;
+
+	@Param({ "500" })
+	public int traces;
+
+	@Param({ "5000" })
+	public int nodes;
+
+	@Param({ "1", "2", "4" })
+	public int threads;
+
+	private File mDir;
+	private TraceDB mDB;
+	private AnonymisationPipeline mPipeline;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mDir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-anonymise-" + System.nanoTime());
+		mDB = new TraceDB(mDir, mDir, "traces.db");
+		generate();
+		mPipeline = new AnonymisationPipeline(threads, 15 * 60 * 1000L, 200.0, 20.0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mDB.close();
+		delete(mDir);
+	}
+
+	@Benchmark
+	public AnonymisationPipeline.Result anonymise(final Blackhole bh) throws InterruptedException {
+		AnonymisationPipeline.Result res = mDB.anonymise(mPipeline, new AnonymisationPipeline.Sink() {
+			@Override
+			public void accept(long osmNode, double pressure, long time) {
+				bh.consume(osmNode);
+			}
+		});
+		if(res.getFailed() > 0)
+			throw new IllegalStateException("Anonymisation failed: " + res);
+		return res;
+	}
+
+	/**
+	 * Adds traces of random walks through a grid of OSM nodes about 10 m apart.
+	 */
+	private void generate() {
+		Random rnd = new Random(42);
+		for(int t = 0; t < traces; t++) {
+			LocationTrace lt = new LocationTrace(mDir);
+			long start = START_TIME + t * 3600000L;
+			lt.setDate(new Date(start));
+			double lat = 50.9 + rnd.nextDouble() * 0.1;
+			double lon = 6.9 + rnd.nextDouble() * 0.1;
+			double pressure = 1000 + rnd.nextDouble() * 10;
+			for(int n = 0; n < nodes; n++) {
+				lat += (rnd.nextDouble() - 0.4) * 2e-5;
+				lon += (rnd.nextDouble() - 0.4) * 2e-5;
+				pressure += (rnd.nextDouble() - 0.5) * 0.01;
+				long osmNode = Math.round(lat * 1e4) * 1000000L + Math.round(lon * 1e4);
+				lt.addNode(lat, lon, 5.0f, osmNode, rnd.nextDouble() * 10, pressure, 60, start + n * 1000L);
+			}
+			mDB.importTrace(lt);
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,98 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.smashnet.elevationlogger.BarometricAltitude;
+import de.smashnet.elevationlogger.NodeColumns;
+
+/**
+ * Compares the table-based barometric altitude conversion with the formula
+ * evaluated by Math.pow, one value at a time and in batches over a trace
+ * sized column. Scores are per pressure value. The setup fails the trial if
+ * the table deviates from Math.pow by more than the documented 1 cm.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BarometricAltitudeBenchmark {
+	private static final int SAMPLES = 1 << 20;
+	private static final double MAX_DEVIATION = 0.01;
+
+	private double[] mPressure;
+	private double[] mOut;
+	private NodeColumns mNodes;
+	private BarometricAltitude mBaro;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random rnd = new Random(42);
+		mPressure = new double[SAMPLES];
+		mOut = new double[SAMPLES];
+		mNodes = new NodeColumns();
+		for(int i = 0; i < SAMPLES; i++) {
+			// Mostly realistic values, some spread over the whole table range
+			mPressure[i] = (i % 16 == 0) ? 260 + rnd.nextDouble() * 900 : 900 + rnd.nextDouble() * 130;
+			mNodes.add(50.9, 6.9, 5.0f, -1, 0, mPressure[i], 100, i);
+		}
+		mBaro = new BarometricAltitude();
+
+		double maxError = 0;
+		for(int i = 0; i < SAMPLES; i++) {
+			double e = Math.abs(BarometricAltitude.altitude(mPressure[i], BarometricAltitude.STANDARD_PRESSURE)
+					- BarometricAltitude.altitudeExact(mPressure[i], BarometricAltitude.STANDARD_PRESSURE));
+			maxError = Math.max(maxError, e);
+		}
+		System.out.println(String.format("Max deviation from Math.pow: %.3g m", maxError));
+		if(maxError > MAX_DEVIATION)
+			throw new IllegalStateException("Table deviates from Math.pow by " + maxError + " m");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public void pow(Blackhole bh) {
+		for(int i = 0; i < SAMPLES; i++)
+			bh.consume(BarometricAltitude.altitudeExact(mPressure[i], BarometricAltitude.STANDARD_PRESSURE));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public void table(Blackhole bh) {
+		for(int i = 0; i < SAMPLES; i++)
+			bh.consume(BarometricAltitude.altitude(mPressure[i], BarometricAltitude.STANDARD_PRESSURE));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double[] batch() {
+		BarometricAltitude.altitudes(mPressure, 0, mOut, 0, SAMPLES, BarometricAltitude.STANDARD_PRESSURE);
+		return mOut;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public double[] columns() {
+		mBaro.altitudes(mNodes, mOut);
+		return mOut;
+	}
+}
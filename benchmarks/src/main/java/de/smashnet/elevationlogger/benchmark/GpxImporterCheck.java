@@ -0,0 +1,396 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import de.smashnet.elevationlogger.GpxImporter;
+import de.smashnet.elevationlogger.GpxWriter;
+import de.smashnet.elevationlogger.LocationTrace;
+import de.smashnet.elevationlogger.NodeColumns;
+import de.smashnet.elevationlogger.TraceDB;
+
+/**
+ * Checks of the GpxImporter pull parser on representative GPX: several trk
+ * and trkseg elements, self-closing tags, comments, CDATA sections and
+ * processing instructions around and inside track points, namespace
+ * prefixes, timestamps with zones, files written by GpxWriter and malformed
+ * input. The fast number parsing is compared bit for bit against
+ * Double.parseDouble on random decimals. Finally, files are imported in
+ * parallel into a TraceDB, in several batches, and read back after reopening.
+ *
+ * Prints one line per check and exits with status 1 if any fails.
+ *
+ * Arguments: [--numbers N] [--seed N]
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class GpxImporterCheck {
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<gpx version=\"1.1\" creator=\"check\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n";
+
+	private static int sFailures;
+
+	/**
+	 * Collects what the parser reports, one entry per trace
+	 */
+	private static class Collector implements GpxImporter.Handler {
+		final List<List<double[]>> mTraces = new ArrayList<List<double[]>>();
+		private List<double[]> mCurrent;
+
+		@Override
+		public void startTrace() {
+			mCurrent = new ArrayList<double[]>();
+		}
+
+		@Override
+		public void addNode(double lat, double lon, float acc, long osmNode, double pressure, double elevation,
+				long time) {
+			mCurrent.add(new double[] { lat, lon, acc, osmNode, pressure, elevation, time });
+		}
+
+		@Override
+		public void endTrace() {
+			mTraces.add(mCurrent);
+			mCurrent = null;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numbers = 1000000;
+		long seed = 42;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--numbers"))
+				numbers = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--seed"))
+				seed = Long.parseLong(args[++i]);
+		}
+
+		report("several trk and trkseg", checkSegments());
+		report("self-closing tags", checkSelfClosing());
+		report("comments and CDATA", checkMarkup());
+		report("namespace prefixes", checkPrefixes());
+		report("timestamps", checkTimes());
+		report("malformed input", checkMalformed());
+		report("GpxWriter files", checkWriter(new Random(seed), 2000));
+		report("parseDouble", checkNumbers(new Random(seed), numbers));
+		report("import into TraceDB", checkImport());
+
+		if(sFailures > 0) {
+			System.out.println(sFailures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	private static boolean checkSegments() throws IOException {
+		Collector c = parse(HEADER
+				+ "<metadata><time>2014-01-02T12:00:00Z</time></metadata>\n"
+				+ "<wpt lat=\"1\" lon=\"1\"><ele>5</ele></wpt>\n"
+				+ "<trk><name>one</name>\n"
+				+ "<trkseg>" + point(1, 2, "10") + point(3, 4, "11") + "</trkseg>\n"
+				+ "<trkseg>" + point(5, 6, "12") + "</trkseg>\n"
+				+ "</trk>\n"
+				+ "<trk><trkseg>" + point(7, 8, "13") + point(9, 10, "14") + point(11, 12, "15") + "</trkseg></trk>\n"
+				+ "</gpx>\n");
+		return c.mTraces.size() == 3
+				&& node(c, 0, 0, 1, 2, 10) && node(c, 0, 1, 3, 4, 11) && c.mTraces.get(0).size() == 2
+				&& node(c, 1, 0, 5, 6, 12) && c.mTraces.get(1).size() == 1
+				&& node(c, 2, 0, 7, 8, 13) && node(c, 2, 2, 11, 12, 15) && c.mTraces.get(2).size() == 3;
+	}
+
+	private static boolean checkSelfClosing() throws IOException {
+		Collector c = parse(HEADER
+				+ "<trk><trkseg/>\n"
+				+ "<trkseg>\n"
+				+ "<trkpt lat=\"1.5\" lon=\"2.5\"/>\n"
+				+ "<trkpt lat='3.5' lon='4.5' ><ele/><time/><extensions/></trkpt>\n"
+				+ "<trkpt lat=\"5.5\" lon=\"6.5\"><ele>7</ele><extensions><accuracy>3.5</accuracy>"
+				+ "<airpressure>1000.25</airpressure><nearestosm>123</nearestosm><other/></extensions></trkpt>\n"
+				+ "</trkseg></trk></gpx>");
+		if(c.mTraces.size() != 2 || !c.mTraces.get(0).isEmpty() || c.mTraces.get(1).size() != 3)
+			return false;
+		double[] a = c.mTraces.get(1).get(0);
+		double[] b = c.mTraces.get(1).get(1);
+		double[] d = c.mTraces.get(1).get(2);
+		return a[0] == 1.5 && a[1] == 2.5 && a[3] == -1 && a[5] == 0
+				&& b[0] == 3.5 && b[1] == 4.5 && b[3] == -1 && b[5] == 0 && b[6] == 0
+				&& d[2] == 3.5 && d[3] == 123 && d[4] == 1000.25 && d[5] == 7;
+	}
+
+	/**
+	 * Markup that looks like track points must be skipped, values wrapped in
+	 * CDATA or next to comments must be read.
+	 */
+	private static boolean checkMarkup() throws IOException {
+		Collector c = parse(HEADER
+				+ "<!DOCTYPE gpx>\n"
+				+ "<!-- <trk><trkseg><trkpt lat=\"9\" lon=\"9\"></trkpt></trkseg></trk> -->\n"
+				+ "<trk><desc><![CDATA[<trkseg><trkpt lat=\"8\" lon=\"8\"> ]] ]]]></desc>\n"
+				+ "<trkseg>\n"
+				+ "<?note a <trkpt> in a processing instruction ?>\n"
+				+ "<trkpt lat=\"1\" lon=\"2\"><!-- before --><ele><![CDATA[ 12.5 ]]></ele>"
+				+ "<time><!-- first --> 2014-01-02T12:00:00Z <!-- last --></time></trkpt>\n"
+				+ "<!-- a - b -->\n"
+				+ "<trkpt lat=\"3\" lon=\"4\"><ele>13.5<!-- m --></ele><name><![CDATA[</trkpt>]]></name></trkpt>\n"
+				+ "</trkseg></trk></gpx>");
+		return c.mTraces.size() == 1 && c.mTraces.get(0).size() == 2
+				&& node(c, 0, 0, 1, 2, 12.5) && c.mTraces.get(0).get(0)[6] == 1388664000000L
+				&& node(c, 0, 1, 3, 4, 13.5);
+	}
+
+	private static boolean checkPrefixes() throws IOException {
+		Collector c = parse(HEADER
+				+ "<gpx:trk><gpx:trkseg><gpx:trkpt lat=\"1\" lon=\"2\"><gpx:ele>3</gpx:ele>"
+				+ "<gpx:extensions><el:airpressure>990.5</el:airpressure><el:nearestosm>-7</el:nearestosm>"
+				+ "</gpx:extensions></gpx:trkpt></gpx:trkseg></gpx:trk></gpx>");
+		return c.mTraces.size() == 1 && node(c, 0, 0, 1, 2, 3)
+				&& c.mTraces.get(0).get(0)[4] == 990.5 && c.mTraces.get(0).get(0)[3] == -7;
+	}
+
+	private static boolean checkTimes() throws IOException {
+		String[] times = { "2014-01-02T12:00:00Z", "2014-01-02T12:00:00.123Z", "2014-01-02T12:00:00.1234567Z",
+				"2014-01-02T13:30:00+01:30", "2014-01-02T10:00:00-02:00", "2014-01-02T12:00:00",
+				"1969-12-31T23:59:59Z", "2000-02-29T00:00:00Z" };
+		long[] expected = { 1388664000000L, 1388664000123L, 1388664000123L, 1388664000000L, 1388664000000L,
+				1388664000000L, -1000L, 951782400000L };
+		StringBuilder gpx = new StringBuilder(HEADER).append("<trk><trkseg>");
+		for(String t : times)
+			gpx.append("<trkpt lat=\"0\" lon=\"0\"><time>").append(t).append("</time></trkpt>");
+		Collector c = parse(gpx.append("</trkseg></trk></gpx>").toString());
+		for(int i = 0; i < times.length; i++) {
+			if(c.mTraces.get(0).get(i)[6] != expected[i]) {
+				System.out.println("  " + times[i] + " parsed as " + (long) c.mTraces.get(0).get(i)[6]);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean checkMalformed() {
+		String[] bad = {
+			"<trk><trkseg><trkpt lat=\"1\" lon=\"2",
+			"<trk><trkseg><trkpt lat=\"x\" lon=\"2\"></trkpt>",
+			"<trk><trkseg><trkpt lat=\"1\" lon=\"2\"><ele>1.2.3</ele></trkpt>",
+			"<trk><trkseg><trkpt lat=\"1\" lon=\"2\"><time>2014-01-02</time></trkpt>",
+			"<trk><trkseg><trkpt lat=\"1\" lon=\"2\"><ele>1",
+			"<!-- open",
+			"<trk><desc><![CDATA[ open"
+		};
+		for(String s : bad) {
+			try {
+				parse(HEADER + s);
+				System.out.println("  accepted: " + s);
+				return false;
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Values written by GpxWriter must read back as exactly the numbers it
+	 * formatted.
+	 */
+	private static boolean checkWriter(Random rnd, int count) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-gpx-" + System.nanoTime());
+		if(!dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		try {
+			double[][] nodes = new double[count][];
+			GpxWriter w = new GpxWriter(new Date(1388664000000L), dir, "check.gpx");
+			w.open(GpxWriter.FlushPolicy.DEFAULT);
+			w.writeHeader();
+			long time = 1388664000000L;
+			for(int i = 0; i < count; i++) {
+				double lat = rnd.nextDouble() * 180 - 90;
+				double lon = rnd.nextDouble() * 360 - 180;
+				double alt = rnd.nextDouble() * 9500 - 500;
+				float acc = (float) (rnd.nextDouble() * 50);
+				double pressure = 300 + rnd.nextDouble() * 800;
+				long osm = rnd.nextInt(16) == 0 ? -1 : (long) (rnd.nextDouble() * 1e10);
+				// GpxWriter writes whole seconds
+				time += 1000 * (1 + rnd.nextInt(3));
+				w.addRoutePoint(lat, lon, alt, acc, pressure, time, osm);
+				nodes[i] = new double[] { lat, lon, acc, osm, pressure, alt, time };
+			}
+			w.writeFooter();
+			w.close();
+
+			// The writer puts the date in front of the name
+			Collector c = new Collector();
+			GpxImporter.parse(dir.listFiles()[0], c);
+			if(c.mTraces.size() != 1 || c.mTraces.get(0).size() != count)
+				return false;
+			double[] steps = { 1e-7, 1e-7, 0.1, 0, 1e-5, 0.01, 0 };
+			for(int i = 0; i < count; i++) {
+				double[] read = c.mTraces.get(0).get(i);
+				for(int k = 0; k < steps.length; k++) {
+					// Half a step of the written precision, plus float rounding
+					double bound = steps[k] / 2 * (1 + 1e-6) + Math.ulp(nodes[i][k]) * 4;
+					if(Math.abs(read[k] - nodes[i][k]) > bound) {
+						System.out.println("  node " + i + " field " + k + ": " + nodes[i][k] + " read as " + read[k]);
+						return false;
+					}
+				}
+			}
+			return true;
+		} finally {
+			delete(dir);
+		}
+	}
+
+	/**
+	 * Random decimals of all shapes the fast path handles and some it hands
+	 * over to Double.parseDouble, parsed as ele and as lat.
+	 */
+	private static boolean checkNumbers(Random rnd, int count) throws IOException {
+		int batch = 10000;
+		String[] values = new String[batch];
+		for(int done = 0; done < count; done += batch) {
+			int n = Math.min(batch, count - done);
+			StringBuilder gpx = new StringBuilder(HEADER).append("<trk><trkseg>");
+			for(int i = 0; i < n; i++) {
+				values[i] = randomNumber(rnd);
+				gpx.append("<trkpt lat=\"").append(values[i]).append("\" lon=\"0\"><ele>").append(values[i])
+						.append("</ele></trkpt>");
+			}
+			Collector c = parse(gpx.append("</trkseg></trk></gpx>").toString());
+			for(int i = 0; i < n; i++) {
+				long expected = Double.doubleToLongBits(Double.parseDouble(values[i].trim()));
+				double[] node = c.mTraces.get(0).get(i);
+				if(Double.doubleToLongBits(node[5]) != expected || Double.doubleToLongBits(node[0]) != expected) {
+					System.out.println("  \"" + values[i] + "\" parsed as " + node[5] + ", expected "
+							+ Double.longBitsToDouble(expected));
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean checkImport() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-import-" + System.nanoTime());
+		if(!dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		try {
+			// Enough nodes per file for more than one batch
+			int files = 4, traces = 30, nodes = 5000;
+			ArrayList<File> gpx = new ArrayList<File>();
+			for(int f = 0; f < files; f++) {
+				File file = new File(dir, "import" + f + ".gpx");
+				Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+				w.write(HEADER);
+				w.write("<trk>");
+				for(int t = 0; t < traces; t++) {
+					w.write("<trkseg>");
+					for(int i = 0; i < nodes; i++)
+						w.write(point(f, t, String.valueOf(i)));
+					w.write("</trkseg>");
+				}
+				w.write("</trk></gpx>");
+				w.close();
+				gpx.add(file);
+			}
+
+			TraceDB db = new TraceDB(dir, dir, "traces.db");
+			GpxImporter.Result res = GpxImporter.importFiles(gpx, db, files);
+			db.close();
+			if(res.getFailed() != 0 || res.getTraces() != files * traces || res.getNodes() != (long) files * traces * nodes)
+				return false;
+
+			db = new TraceDB(dir, dir, "traces.db");
+			try {
+				HashSet<Long> ids = new HashSet<Long>();
+				int count = 0;
+				for(LocationTrace lt : db.getClosedTraces()) {
+					NodeColumns c = lt.getNodes();
+					if(!ids.add(lt.getId()) || c.size() != nodes || c.getGPSAltitude(nodes - 1) != nodes - 1)
+						return false;
+					count++;
+				}
+				return count == files * traces;
+			} finally {
+				db.close();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private static String randomNumber(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		if(rnd.nextInt(8) == 0)
+			sb.append(' ');
+		int sign = rnd.nextInt(4);
+		if(sign == 0)
+			sb.append('-');
+		else if(sign == 1)
+			sb.append('+');
+		int zeros = rnd.nextInt(4) == 0 ? rnd.nextInt(4) : 0;
+		for(int i = 0; i < zeros; i++)
+			sb.append('0');
+		// Mostly within the 15 digits of the fast path, some beyond its limits
+		int digits = 1 + (rnd.nextInt(8) == 0 ? rnd.nextInt(25) : rnd.nextInt(15));
+		int point = rnd.nextInt(digits + 2) - 1;
+		for(int i = 0; i < digits; i++) {
+			if(i == point)
+				sb.append('.');
+			sb.append((char) ('0' + rnd.nextInt(10)));
+		}
+		if(point == digits)
+			sb.append('.');
+		if(point == -1 && digits > 1 && rnd.nextBoolean())
+			sb.insert(sb.length() - digits, '.');
+		if(rnd.nextInt(6) == 0) {
+			sb.append(rnd.nextBoolean() ? 'e' : 'E');
+			int e = rnd.nextInt(4) == 0 ? rnd.nextInt(700) - 350 : rnd.nextInt(50) - 25;
+			if(e >= 0 && rnd.nextBoolean())
+				sb.append('+');
+			sb.append(e);
+		}
+		if(rnd.nextInt(8) == 0)
+			sb.append('\t');
+		return sb.toString();
+	}
+
+	private static String point(double lat, double lon, String ele) {
+		return "<trkpt lat=\"" + lat + "\" lon=\"" + lon + "\"><ele>" + ele + "</ele></trkpt>";
+	}
+
+	private static boolean node(Collector c, int trace, int i, double lat, double lon, double ele) {
+		double[] n = c.mTraces.get(trace).get(i);
+		return n[0] == lat && n[1] == lon && n[5] == ele;
+	}
+
+	private static Collector parse(String gpx) throws IOException {
+		Collector c = new Collector();
+		GpxImporter.parse(ByteBuffer.wrap(gpx.getBytes("UTF-8")), c);
+		return c;
+	}
+
+	private static void report(String name, boolean ok) {
+		if(!ok)
+			sFailures++;
+		System.out.println(String.format("%-32s %s", name, ok ? "ok" : "FAILED"));
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,92 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.smashnet.elevationlogger.GpxWriter;
+
+/**
+ * GpxWriter.addRoutePoint, buffered while streaming and with a flushToFile
+ * per point as done per fix before streaming. Scores are per route point.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GpxWriterBenchmark {
+	private static final int STREAMING_POINTS = 100000;
+	private static final int FLUSHED_POINTS = 1000;
+	private static final long START_TIME = 1388664447000L;
+
+	private File mDir;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mDir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-gpx-" + System.nanoTime());
+		mDir.mkdirs();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		delete(mDir);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STREAMING_POINTS)
+	public long streaming() throws IOException {
+		GpxWriter w = new GpxWriter(new Date(START_TIME), mDir, "streaming.gpx");
+		w.open(GpxWriter.FlushPolicy.DEFAULT, false);
+		w.writeHeader();
+		for(int i = 0; i < STREAMING_POINTS; i++)
+			w.addRoutePoint(50.9 + i * 1e-6, 6.9, 123.4, 4.0f, 963.251, START_TIME + i * 1000L, 1000 + i);
+		w.writeFooter();
+		w.close();
+		return new File(mDir, w.getFilename()).length();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FLUSHED_POINTS)
+	public long flushPerPoint() {
+		GpxWriter w = new GpxWriter(new Date(START_TIME), mDir, "per-point.gpx");
+		File f = new File(mDir, w.getFilename());
+		f.delete();
+		w.writeHeader();
+		for(int i = 0; i < FLUSHED_POINTS; i++) {
+			w.addRoutePoint(50.9 + i * 1e-6, 6.9, 123.4, 4.0f, 963.251, START_TIME + i * 1000L, 1000 + i);
+			w.flushToFile();
+		}
+		w.writeFooter();
+		w.close();
+		return f.length();
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,104 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.smashnet.elevationlogger.LocationNode;
+import de.smashnet.elevationlogger.TraceCodec;
+
+/**
+ * LocationNode Java serialization, as in the old trace DB file, against the
+ * TraceCodec format of the archive. Scores are per node; the sizes in bytes
+ * per node are printed once per trial.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationNodeBenchmark {
+	private static final int NODES = 10000;
+	private static final long START_TIME = 1388664447000L;
+
+	private LocationNode[] mNodes;
+	private byte[] mSerialized;
+	private byte[] mEncoded;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mNodes = new LocationNode[NODES];
+		for(int i = 0; i < NODES; i++)
+			mNodes[i] = new LocationNode(50.9 + i * 1e-5, 6.9, 4.0f, 1000 + i / 10, 1.5, 963.25 - i * 0.001,
+					123.4 + i * 0.01, START_TIME + i * 1000L);
+		mSerialized = serializeJava().toByteArray();
+		mEncoded = serializeCodec().toByteArray();
+		System.out.println(String.format("Bytes per node: java %.1f, codec %.1f", (double) mSerialized.length / NODES,
+				(double) mEncoded.length / NODES));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODES)
+	public ByteArrayOutputStream serializeJava() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		for(LocationNode node : mNodes)
+			oos.writeObject(node);
+		oos.close();
+		return out;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODES)
+	public long deserializeJava() throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(mSerialized));
+		long sum = 0;
+		for(int i = 0; i < NODES; i++)
+			sum += ((LocationNode) in.readObject()).getDateVisited();
+		in.close();
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODES)
+	public ByteArrayOutputStream serializeCodec() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceCodec.Encoder enc = new TraceCodec().newEncoder(out);
+		for(LocationNode node : mNodes)
+			enc.write(node.getLatitude(), node.getLongitude(), node.getAccuracy(), node.getOSMNode(),
+					node.getDistance(), node.getAirPressure(), node.getGPSAltitude(), node.getDateVisited());
+		enc.flush();
+		return out;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NODES)
+	public long deserializeCodec() throws IOException {
+		TraceCodec.Decoder dec = new TraceCodec.Decoder(ByteBuffer.wrap(mEncoded));
+		long sum = 0;
+		while(dec.next())
+			sum += dec.getDateVisited();
+		return sum;
+	}
+}
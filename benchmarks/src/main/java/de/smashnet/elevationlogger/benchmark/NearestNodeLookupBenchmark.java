@@ -0,0 +1,109 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.smashnet.elevationlogger.IndexedNearestNodeResolver;
+import de.smashnet.elevationlogger.NearestNodeCache;
+import de.smashnet.elevationlogger.NearestNodeResolver;
+import de.smashnet.elevationlogger.NearestNodeResult;
+import de.smashnet.elevationlogger.OsmNodeIndex;
+
+/**
+ * The nearest OSM node lookup through OsmNodeIndex, for random queries and
+ * for queries along a trace at walking speed, and through NearestNodeCache in
+ * front of it along the trace. The nodes lie about every 30 m over 10 x 10 km.
+ * Scores are per query. The Spatialite lookup needs the device, see
+ * NearestNodeBenchmark in the app.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NearestNodeLookupBenchmark {
+	private static final int SIDE = 330;
+	private static final int QUERIES = 100000;
+
+	private double[] mRandomLat;
+	private double[] mRandomLon;
+	private double[] mTraceLat;
+	private double[] mTraceLon;
+	private NearestNodeResolver mIndexed;
+	private NearestNodeResolver mCache;
+	private final NearestNodeResult mResult = new NearestNodeResult();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		// Nodes about every 30 m, with some jitter
+		Random rnd = new Random(42);
+		int count = SIDE * SIDE;
+		long[] ids = new long[count];
+		int[] lat = new int[count];
+		int[] lon = new int[count];
+		for(int i = 0; i < count; i++) {
+			ids[i] = i + 1;
+			lat[i] = 50900000 + (i / SIDE) * 270 + rnd.nextInt(100);
+			lon[i] = 6900000 + (i % SIDE) * 430 + rnd.nextInt(150);
+		}
+		OsmNodeIndex index = OsmNodeIndex.build(ids, lat, lon, count, OsmNodeIndex.DEFAULT_CELL_SIZE);
+
+		mRandomLat = new double[QUERIES];
+		mRandomLon = new double[QUERIES];
+		mTraceLat = new double[QUERIES];
+		mTraceLon = new double[QUERIES];
+		for(int i = 0; i < QUERIES; i++) {
+			mRandomLat[i] = 50.9 + rnd.nextDouble() * 0.089;
+			mRandomLon[i] = 6.9 + rnd.nextDouble() * 0.14;
+			mTraceLat[i] = 50.91 + (i % 10000) * 1e-5 + rnd.nextGaussian() * 2e-5;
+			mTraceLon[i] = 6.91 + (i % 10000) * 1.4e-5 + rnd.nextGaussian() * 3e-5;
+		}
+
+		mIndexed = new IndexedNearestNodeResolver(index, null);
+		mCache = new NearestNodeCache(mIndexed, 4096, 4.0, 0.0);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public long indexRandom() {
+		return resolve(mIndexed, mRandomLat, mRandomLon);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public long indexTrace() {
+		return resolve(mIndexed, mTraceLat, mTraceLon);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public long cacheTrace() {
+		return resolve(mCache, mTraceLat, mTraceLon);
+	}
+
+	private long resolve(NearestNodeResolver resolver, double[] lat, double[] lon) {
+		long sum = 0;
+		for(int i = 0; i < QUERIES; i++) {
+			resolver.resolve(lat[i], lon[i], 30, mResult);
+			sum += mResult.osmId;
+		}
+		return sum;
+	}
+}
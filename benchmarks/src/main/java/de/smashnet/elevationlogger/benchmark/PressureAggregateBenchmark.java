@@ -0,0 +1,183 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.smashnet.elevationlogger.PressureAggregateStore;
+
+/**
+ * Aggregates random pressure samples of many OSM nodes with
+ * PressureAggregateStore, on the heap and off-heap, and with a boxed
+ * HashMap&lt;Long, double[]&gt; for comparison. Merges shards of the same
+ * samples in parallel, and saves and loads a snapshot. Scores are per pass
+ * over all samples.
+ *
+ * Before the merge and snapshot benchmarks, their setup checks that the
+ * merged store, the off-heap store and a reloaded snapshot equal the single
+ * heap store exactly, and fails the trial otherwise.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PressureAggregateBenchmark {
+
+	/**
+	 * Random samples of sparse, large OSM ids
+	 */
+	@State(Scope.Benchmark)
+	public static class Samples {
+		@Param({ "2000000" })
+		public int ids;
+
+		@Param({ "20000000" })
+		public int samples;
+
+		long[] mNodes;
+		double[] mPressures;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			long[] keys = new long[ids];
+			Random rnd = new Random(42);
+			for(int i = 0; i < ids; i++)
+				keys[i] = 25000000L + i * 97L + rnd.nextInt(97);
+			mNodes = new long[samples];
+			mPressures = new double[samples];
+			rnd = new Random(7);
+			for(int i = 0; i < samples; i++) {
+				mNodes[i] = keys[rnd.nextInt(keys.length)];
+				mPressures[i] = 950 + rnd.nextDouble() * 60;
+			}
+		}
+
+		PressureAggregateStore aggregate(boolean offHeap) {
+			PressureAggregateStore store = new PressureAggregateStore(1024, offHeap);
+			for(int i = 0; i < samples; i++)
+				store.add(mNodes[i], mPressures[i]);
+			return store;
+		}
+	}
+
+	/**
+	 * Shards that get every shards-th sample
+	 */
+	@State(Scope.Benchmark)
+	public static class Shards {
+		@Param({ "8" })
+		public int shards;
+
+		ArrayList<PressureAggregateStore> mParts;
+		int mThreads = Runtime.getRuntime().availableProcessors();
+
+		@Setup(Level.Trial)
+		public void setUp(Samples s) throws InterruptedException {
+			mParts = new ArrayList<PressureAggregateStore>();
+			for(int i = 0; i < shards; i++)
+				mParts.add(new PressureAggregateStore(s.ids / shards, false));
+			for(int i = 0; i < s.samples; i++)
+				mParts.get(i % shards).add(s.mNodes[i], s.mPressures[i]);
+			PressureAggregateStore merged = PressureAggregateStore.mergeAll(mParts, mThreads, false);
+			if(!merged.contentEquals(s.aggregate(false)))
+				throw new IllegalStateException("Merged shards differ from the single store");
+		}
+	}
+
+	/**
+	 * A store and its saved snapshot
+	 */
+	@State(Scope.Benchmark)
+	public static class Snapshot {
+		PressureAggregateStore mStore;
+		File mFile;
+
+		@Setup(Level.Trial)
+		public void setUp(Samples s) throws IOException {
+			mStore = s.aggregate(false);
+			mFile = File.createTempFile("elevationlogger-aggregates", ".snapshot");
+			mStore.save(mFile);
+			if(!PressureAggregateStore.load(mFile, false).contentEquals(mStore))
+				throw new IllegalStateException("Reloaded snapshot differs from the saved store");
+			if(!s.aggregate(true).contentEquals(mStore))
+				throw new IllegalStateException("Off-heap store differs from the heap store");
+			System.out.println("Snapshot: " + (mFile.length() >> 20) + " MB");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			mFile.delete();
+		}
+	}
+
+	@Benchmark
+	public PressureAggregateStore addHeap(Samples s) {
+		return s.aggregate(false);
+	}
+
+	@Benchmark
+	public PressureAggregateStore addOffHeap(Samples s) {
+		return s.aggregate(true);
+	}
+
+	/**
+	 * The boxed way: count, mean, M2, min and max in a double[] per id
+	 */
+	@Benchmark
+	public HashMap<Long, double[]> addHashMap(Samples s) {
+		HashMap<Long, double[]> map = new HashMap<Long, double[]>();
+		for(int i = 0; i < s.samples; i++) {
+			long key = s.mNodes[i];
+			double p = s.mPressures[i];
+			double[] a = map.get(key);
+			if(a == null) {
+				a = new double[] { 0, 0, 0, p, p };
+				map.put(key, a);
+			}
+			a[0]++;
+			double delta = p - a[1];
+			a[1] += delta / a[0];
+			a[2] += delta * (p - a[1]);
+			a[3] = Math.min(a[3], p);
+			a[4] = Math.max(a[4], p);
+		}
+		return map;
+	}
+
+	@Benchmark
+	public PressureAggregateStore mergeAll(Shards shards) throws InterruptedException {
+		return PressureAggregateStore.mergeAll(shards.mParts, shards.mThreads, false);
+	}
+
+	@Benchmark
+	public long save(Snapshot snapshot) throws IOException {
+		snapshot.mStore.save(snapshot.mFile);
+		return snapshot.mFile.length();
+	}
+
+	@Benchmark
+	public PressureAggregateStore load(Snapshot snapshot) throws IOException {
+		return PressureAggregateStore.load(snapshot.mFile, false);
+	}
+}
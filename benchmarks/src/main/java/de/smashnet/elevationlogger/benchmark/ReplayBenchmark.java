@@ -0,0 +1,94 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import de.smashnet.elevationlogger.IndexedNearestNodeResolver;
+import de.smashnet.elevationlogger.IngestPipeline;
+import de.smashnet.elevationlogger.NearestNodeCache;
+import de.smashnet.elevationlogger.NearestNodeResolver;
+import de.smashnet.elevationlogger.OsmNodeIndex;
+import de.smashnet.elevationlogger.TraceDB;
+import de.smashnet.elevationlogger.TraceExporter;
+import de.smashnet.elevationlogger.TraceReplay;
+import de.smashnet.elevationlogger.TraceSimplifier;
+
+/**
+ * Replays recorded GPX or CSV files headless through the ingest path into a
+ * trace DB and prints the sustained fix rate and latency percentiles per
+ * file, see TraceReplay.
+ *
+ * Arguments: [--speed &lt;factor&gt;|max] [--index &lt;node index file&gt;]
+ * [--db &lt;directory&gt;] [--export &lt;directory&gt;] [--simplify] [--drop]
+ * [--metrics] &lt;file&gt;...
+ *
+ * Without --index no OSM nodes are found. Without --db a fresh DB below
+ * java.io.tmpdir is used. Fixes wait for room in the pipeline, so every fix
+ * is measured; --drop drops them instead, as the service does. --metrics
+ * prints the counters and stage latencies of each run.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class ReplayBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		double speed = 1.0;
+		File indexFile = null;
+		File dbDir = null;
+		File exportDir = null;
+		boolean simplify = false;
+		boolean verbose = false;
+		IngestPipeline.DropPolicy policy = IngestPipeline.DropPolicy.BLOCK;
+		ArrayList<File> inputs = new ArrayList<File>();
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--speed"))
+				speed = args[++i].equals("max") ? 0 : Double.parseDouble(args[i]);
+			else if(args[i].equals("--index"))
+				indexFile = new File(args[++i]);
+			else if(args[i].equals("--db"))
+				dbDir = new File(args[++i]);
+			else if(args[i].equals("--export"))
+				exportDir = new File(args[++i]);
+			else if(args[i].equals("--simplify"))
+				simplify = true;
+			else if(args[i].equals("--metrics"))
+				verbose = true;
+			else if(args[i].equals("--drop"))
+				policy = IngestPipeline.DropPolicy.DROP_NEWEST;
+			else
+				inputs.add(new File(args[i]));
+		}
+		if(inputs.isEmpty()) {
+			System.err.println("Usage: ReplayBenchmark [--speed <factor>|max] [--index <file>] [--db <dir>] "
+					+ "[--export <dir>] [--simplify] [--drop] [--metrics] <file.gpx|file.csv>...");
+			System.exit(1);
+		}
+		if(dbDir == null)
+			dbDir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-replay-" + System.nanoTime());
+		dbDir.mkdirs();
+
+		OsmNodeIndex index = indexFile != null ? OsmNodeIndex.read(indexFile) : null;
+		NearestNodeResolver resolver = new NearestNodeCache(new IndexedNearestNodeResolver(index, null), 4096, 4.0, 0.0);
+		TraceDB db = new TraceDB(dbDir, dbDir, "traces.db");
+		TraceReplay replay = new TraceReplay(resolver, db).setSpeed(speed).setPipeline(256, policy);
+		if(simplify)
+			replay.setSimplifier(new TraceSimplifier(3.0, 0.5, 0.1), 32);
+
+		for(File f : inputs) {
+			TraceReplay.Samples samples = TraceReplay.Samples.read(f);
+			TraceReplay.Result res = replay.run(samples);
+			System.out.println(f.getName() + ": " + res);
+			if(verbose)
+				System.out.print(res.getMetrics().toJson());
+		}
+
+		if(exportDir != null) {
+			exportDir.mkdirs();
+			System.out.println("Export: " + db.exportGPX(exportDir, null, Runtime.getRuntime().availableProcessors(), null, null));
+		}
+		db.close();
+		resolver.close();
+		System.out.println("Trace DB in " + dbDir.getAbsolutePath());
+	}
+}
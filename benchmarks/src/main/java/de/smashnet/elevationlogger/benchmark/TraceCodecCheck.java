@@ -0,0 +1,349 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import de.smashnet.elevationlogger.LocationTrace;
+import de.smashnet.elevationlogger.NodeColumns;
+import de.smashnet.elevationlogger.TraceArchive;
+import de.smashnet.elevationlogger.TraceCodec;
+
+/**
+ * Round trip checks of TraceCodec and the TraceArchive formats. Asserts the
+ * documented quantisation and error bounds on random nodes and on edge cases:
+ * extreme deltas, deltas around the zig-zag and varint boundaries, empty and
+ * truncated streams, and archives read back through TraceArchive.
+ *
+ * Prints one line per check and exits with status 1 if any fails.
+ *
+ * Arguments: [--nodes N] [--seed N]
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceCodecCheck {
+	private static final double PRESSURE_RESOLUTION = TraceCodec.DEFAULT_PRESSURE_RESOLUTION;
+	private static final double ALTITUDE_RESOLUTION = TraceCodec.DEFAULT_ALTITUDE_RESOLUTION;
+
+	private static int sFailures;
+
+	public static void main(String[] args) throws Exception {
+		int count = 200000;
+		long seed = 42;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--nodes"))
+				count = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--seed"))
+				seed = Long.parseLong(args[++i]);
+		}
+
+		Random rnd = new Random(seed);
+		report("random nodes", roundTrip(randomNodes(rnd, count)));
+		report("extreme deltas", roundTrip(extremeNodes()));
+		report("zig-zag boundaries", roundTrip(boundaryNodes()));
+		report("fused altitude gaps", roundTrip(gapNodes(rnd)));
+		report("empty trace", checkEmpty());
+		report("truncated stream", checkTruncated(randomNodes(rnd, 10)));
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-codec-" + System.nanoTime());
+		if(!dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		try {
+			report("archive", checkArchive(dir, randomNodes(rnd, 5000)));
+		} finally {
+			for(File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+
+		if(sFailures > 0) {
+			System.out.println(sFailures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * Realistic values, with a share spread over the whole range of each field
+	 * and some nodes without fused altitude.
+	 */
+	private static NodeColumns randomNodes(Random rnd, int count) {
+		NodeColumns nodes = new NodeColumns();
+		double lat = 50.9;
+		double lon = 6.9;
+		long time = 1388664447000L;
+		for(int i = 0; i < count; i++) {
+			boolean wild = rnd.nextInt(16) == 0;
+			lat = wild ? rnd.nextDouble() * 180 - 90 : Math.max(-90, Math.min(90, lat + rnd.nextGaussian() * 1e-4));
+			lon = wild ? rnd.nextDouble() * 360 - 180 : Math.max(-180, Math.min(180, lon + rnd.nextGaussian() * 1e-4));
+			time += wild ? rnd.nextInt() : 1000 + rnd.nextInt(50);
+			long osm = wild ? rnd.nextLong() : 25000000L + rnd.nextInt(1000000);
+			double pressure = wild ? rnd.nextDouble() * 1100 : 1000 + rnd.nextGaussian();
+			double altitude = wild ? rnd.nextDouble() * 9500 - 500 : 100 + rnd.nextGaussian() * 10;
+			float acc = (float) (wild ? rnd.nextDouble() * 5000 : rnd.nextDouble() * 30);
+			double dist = wild ? rnd.nextDouble() * 1e5 : rnd.nextDouble() * 50;
+			if(rnd.nextInt(10) == 0)
+				nodes.add(lat, lon, acc, osm, dist, pressure, altitude, time);
+			else
+				nodes.add(lat, lon, acc, osm, dist, pressure, altitude, time, altitude + rnd.nextGaussian(),
+						wild ? rnd.nextDouble() * 1e6 : rnd.nextDouble() * 20);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Jumps between the extremes of every field, so deltas span the whole
+	 * range, including time and OSM id deltas that overflow a long.
+	 */
+	private static NodeColumns extremeNodes() {
+		NodeColumns nodes = new NodeColumns();
+		long[] longs = { 0, Long.MAX_VALUE, Long.MIN_VALUE, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, 0 };
+		for(int i = 0; i < longs.length; i++) {
+			boolean high = i % 2 == 0;
+			nodes.add(high ? 90 : -90, high ? 180 : -180, high ? 1e6f : 0, longs[i], high ? 1e9 : 0,
+					high ? 1e6 : 0, high ? 1e7 : -1e7, longs[longs.length - 1 - i], high ? 1e7 : -1e7,
+					high ? 1e9 : 0);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Deltas of 0, 1 and -1 around every power of two, which covers the
+	 * zig-zag sign boundaries and the byte boundaries of the varints.
+	 */
+	private static NodeColumns boundaryNodes() {
+		NodeColumns nodes = new NodeColumns();
+		long time = 0;
+		long osm = 0;
+		nodes.add(0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+		for(int bit = 0; bit < 63; bit++) {
+			for(long d = -1; d <= 1; d++) {
+				for(int sign = -1; sign <= 1; sign += 2) {
+					long delta = sign * ((1L << bit) + d);
+					time += delta;
+					osm -= delta;
+					// Fixed-point fields only up to what a double holds exactly
+					long fixed = bit < 40 ? delta : 0;
+					nodes.add(fixed * TraceCodec.COORDINATE_RESOLUTION % 90, 0, 0, osm, 0,
+							(fixed & 0xFFFFFFFL) * PRESSURE_RESOLUTION, fixed * ALTITUDE_RESOLUTION, time,
+							-fixed * ALTITUDE_RESOLUTION, (fixed & 0xFFFFFFFL) * TraceCodec.VARIANCE_RESOLUTION);
+				}
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Runs of nodes with and without fused altitude, the delta of the fused
+	 * altitude must bridge the gaps.
+	 */
+	private static NodeColumns gapNodes(Random rnd) {
+		NodeColumns nodes = new NodeColumns();
+		for(int i = 0; i < 1000; i++) {
+			double fused = (i / 7) % 3 == 0 ? Double.NaN : 100 + i * 0.37;
+			double variance = i % 11 == 0 ? Double.POSITIVE_INFINITY : rnd.nextDouble() * 10;
+			nodes.add(50.9, 6.9, 5.0f, i, 1, 1000, 100, i * 1000L, fused, variance);
+		}
+		// A negative variance is stored as 0
+		nodes.add(50.9, 6.9, 5.0f, 1, 1, 1000, 100, 0, 100, -1);
+		return nodes;
+	}
+
+	private static boolean roundTrip(NodeColumns nodes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceCodec.Encoder enc = new TraceCodec().newEncoder(out);
+		enc.writeAll(nodes);
+		enc.flush();
+		byte[] bytes = out.toByteArray();
+		if(enc.getBytesWritten() != bytes.length)
+			return fail("byte count " + enc.getBytesWritten() + " != " + bytes.length);
+
+		NodeColumns decoded = new NodeColumns();
+		int n = new TraceCodec.Decoder(ByteBuffer.wrap(bytes)).readInto(decoded, Integer.MAX_VALUE);
+		if(n != nodes.size())
+			return fail("decoded " + n + " of " + nodes.size() + " nodes");
+		for(int i = 0; i < n; i++)
+			if(!checkNode(nodes, decoded, i))
+				return false;
+
+		// Decoded values are quantised already, so a second round trip is lossless
+		out = new ByteArrayOutputStream();
+		enc = new TraceCodec().newEncoder(out);
+		enc.writeAll(decoded);
+		enc.flush();
+		NodeColumns again = new NodeColumns();
+		new TraceCodec.Decoder(ByteBuffer.wrap(out.toByteArray())).readInto(again, Integer.MAX_VALUE);
+		for(int i = 0; i < n; i++)
+			if(!checkExact(decoded, again, i))
+				return fail("second round trip differs at node " + i);
+		return true;
+	}
+
+	/**
+	 * Checks one decoded node against the original: every value must be
+	 * exactly quantise(value, resolution) and within half a step of it.
+	 */
+	private static boolean checkNode(NodeColumns in, NodeColumns out, int i) {
+		if(!close(in.getLatitude(i), out.getLatitude(i), TraceCodec.COORDINATE_RESOLUTION)
+				|| !close(in.getLongitude(i), out.getLongitude(i), TraceCodec.COORDINATE_RESOLUTION)
+				|| !close(in.getAirPressure(i), out.getAirPressure(i), PRESSURE_RESOLUTION)
+				|| !close(in.getGPSAltitude(i), out.getGPSAltitude(i), ALTITUDE_RESOLUTION)
+				|| !close(in.getDistance(i), out.getDistance(i), TraceCodec.DISTANCE_RESOLUTION))
+			return fail("value out of bounds at node " + i);
+		if((float) TraceCodec.quantise(in.getAccuracy(i), TraceCodec.ACCURACY_RESOLUTION) != out.getAccuracy(i))
+			return fail("accuracy " + in.getAccuracy(i) + " decoded as " + out.getAccuracy(i) + " at node " + i);
+		if(in.getDateVisited(i) != out.getDateVisited(i) || in.getOSMNode(i) != out.getOSMNode(i))
+			return fail("time or OSM id changed at node " + i);
+
+		double alt = in.getFusedAltitude(i);
+		double var = in.getAltitudeVariance(i);
+		boolean present = !Double.isNaN(alt) && !Double.isInfinite(alt) && !Double.isNaN(var)
+				&& !Double.isInfinite(var);
+		if(!present)
+			return Double.isNaN(out.getFusedAltitude(i)) && Double.isNaN(out.getAltitudeVariance(i))
+					|| fail("fused altitude " + alt + " should be dropped at node " + i);
+		if(!close(alt, out.getFusedAltitude(i), ALTITUDE_RESOLUTION)
+				|| !close(Math.max(var, 0), out.getAltitudeVariance(i), TraceCodec.VARIANCE_RESOLUTION))
+			return fail("fused altitude " + alt + " (" + var + ") decoded as " + out.getFusedAltitude(i) + " ("
+					+ out.getAltitudeVariance(i) + ") at node " + i);
+		return true;
+	}
+
+	private static boolean close(double value, double decoded, double resolution) {
+		if(decoded != TraceCodec.quantise(value, resolution))
+			return false;
+		// Half a step, plus the rounding error of value / resolution
+		return Math.abs(decoded - value) <= resolution / 2 + Math.ulp(value) * 4 + Math.ulp(decoded) * 4;
+	}
+
+	private static boolean checkExact(NodeColumns a, NodeColumns b, int i) {
+		return a.getLatitude(i) == b.getLatitude(i) && a.getLongitude(i) == b.getLongitude(i)
+				&& a.getAccuracy(i) == b.getAccuracy(i) && a.getOSMNode(i) == b.getOSMNode(i)
+				&& a.getDistance(i) == b.getDistance(i) && a.getAirPressure(i) == b.getAirPressure(i)
+				&& a.getGPSAltitude(i) == b.getGPSAltitude(i) && a.getDateVisited(i) == b.getDateVisited(i)
+				&& same(a.getFusedAltitude(i), b.getFusedAltitude(i))
+				&& same(a.getAltitudeVariance(i), b.getAltitudeVariance(i));
+	}
+
+	private static boolean same(double a, double b) {
+		return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+	}
+
+	private static boolean checkEmpty() throws IOException {
+		if(new TraceCodec.Decoder(ByteBuffer.allocate(0)).next())
+			return fail("node in an empty buffer");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceCodec.Encoder enc = new TraceCodec().newEncoder(out);
+		enc.writeAll(new NodeColumns());
+		enc.flush();
+		if(out.size() != 17)
+			return fail("header of " + out.size() + " bytes");
+		NodeColumns nodes = new NodeColumns();
+		return new TraceCodec.Decoder(ByteBuffer.wrap(out.toByteArray())).readInto(nodes, 10) == 0
+				|| fail("nodes in an empty trace");
+	}
+
+	/**
+	 * Every cut within a node must be reported, a cut between nodes is a
+	 * shorter trace.
+	 */
+	private static boolean checkTruncated(NodeColumns nodes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceCodec.Encoder enc = new TraceCodec().newEncoder(out);
+		long[] ends = new long[nodes.size() + 1];
+		ends[0] = 17;
+		NodeColumns.Cursor c = nodes.cursor();
+		while(c.moveToNext()) {
+			enc.write(c);
+			ends[c.getPosition() + 1] = enc.getBytesWritten();
+		}
+		byte[] bytes = out.toByteArray();
+		for(int cut = 1; cut < bytes.length; cut++) {
+			int complete = 0;
+			while(complete < nodes.size() && ends[complete + 1] <= cut)
+				complete++;
+			boolean atBoundary = ends[complete] == cut;
+			try {
+				NodeColumns decoded = new NodeColumns();
+				int n = new TraceCodec.Decoder(ByteBuffer.wrap(bytes, 0, cut)).readInto(decoded, Integer.MAX_VALUE);
+				if(!atBoundary || n != complete)
+					return fail("cut at " + cut + " decoded " + n + " nodes");
+			} catch (EOFException e) {
+				if(atBoundary)
+					return fail("cut at node boundary " + cut + ": " + e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a trace to a new archive, reopens it and compares.
+	 */
+	private static boolean checkArchive(File dir, NodeColumns nodes) throws IOException {
+		TraceArchive archive = new TraceArchive(dir, "v2");
+		archive.open();
+		LocationTrace lt = new LocationTrace(dir);
+		lt.setId(1);
+		lt.setDate(new Date(1388664447000L));
+		NodeColumns.Cursor c = nodes.cursor();
+		while(c.moveToNext())
+			lt.getNodes().add(c.getLatitude(), c.getLongitude(), c.getAccuracy(), c.getOSMNode(), c.getDistance(),
+					c.getAirPressure(), c.getGPSAltitude(), c.getDateVisited(), c.getFusedAltitude(),
+					c.getAltitudeVariance());
+		archive.append(lt);
+		archive.append(new LocationTrace(dir));
+		archive.close();
+
+		NodeColumns decoded = reopen(dir, "v2", 2);
+		if(decoded == null)
+			return false;
+		for(int i = 0; i < nodes.size(); i++)
+			if(!checkNode(nodes, decoded, i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Opens an archive and loads its first trace.
+	 *
+	 * @return the nodes, null if the archive does not hold the expected
+	 * 	number of traces
+	 */
+	private static NodeColumns reopen(File dir, String name, int traces) throws IOException {
+		TraceArchive archive = new TraceArchive(dir, name);
+		archive.open();
+		try {
+			List<TraceArchive.Entry> entries = archive.getEntries();
+			if(entries.size() != traces) {
+				fail(entries.size() + " traces in archive " + name);
+				return null;
+			}
+			NodeColumns nodes = new NodeColumns();
+			archive.load(entries.get(0), nodes);
+			if(nodes.size() != entries.get(0).getLength()) {
+				fail(nodes.size() + " of " + entries.get(0).getLength() + " nodes loaded");
+				return null;
+			}
+			return nodes;
+		} finally {
+			archive.close();
+		}
+	}
+
+	private static boolean fail(String message) {
+		System.out.println("    " + message);
+		return false;
+	}
+
+	private static void report(String name, boolean ok) {
+		if(!ok)
+			sFailures++;
+		System.out.println(String.format("%-32s %s", name, ok ? "ok" : "FAILED"));
+	}
+}
@@ -0,0 +1,119 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.smashnet.elevationlogger.LocationNode;
+import de.smashnet.elevationlogger.LocationTrace;
+import de.smashnet.elevationlogger.TraceDB;
+
+/**
+ * TraceDB commit (writeTraceDBFile) of a recording trace and loading the DB,
+ * at several DB sizes in traces. A commit adds NODES_PER_COMMIT nodes first.
+ * The DBs are built in a fresh directory below java.io.tmpdir and deleted
+ * afterwards; 100000 traces take about half a minute to build.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceDBBenchmark {
+	private static final int NODES_PER_TRACE = 20;
+	private static final int NODES_PER_COMMIT = 10;
+	private static final long START_TIME = 1388664447000L;
+
+	/**
+	 * A closed DB of the given number of traces
+	 */
+	@State(Scope.Benchmark)
+	public static class Archive {
+		@Param({ "10", "1000", "100000" })
+		public int traces;
+
+		File mDir;
+		long mTime = START_TIME;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			mDir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-db-" + System.nanoTime());
+			TraceDB db = new TraceDB(mDir, mDir, "traces.db");
+			for(int t = 0; t < traces; t++) {
+				LocationTrace lt = new LocationTrace(mDir);
+				lt.setDate(new Date(mTime));
+				for(int i = 0; i < NODES_PER_TRACE; i++, mTime += 1000)
+					lt.addNode(50.9 + i * 1e-5, 6.9, 4.0f, 1000 + i, 1.5, 963.25 - i * 0.01, 123.4 + i * 0.1, mTime);
+				db.importTrace(lt);
+			}
+			db.close();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			delete(mDir);
+		}
+	}
+
+	/**
+	 * The DB opened with a trace being recorded
+	 */
+	@State(Scope.Thread)
+	public static class Recording {
+		TraceDB mDB;
+		long mTime;
+
+		@Setup(Level.Trial)
+		public void setUp(Archive archive) {
+			mDB = new TraceDB(archive.mDir, archive.mDir, "traces.db");
+			mDB.startNewCurrentTrace();
+			mTime = archive.mTime;
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			mDB.close();
+		}
+	}
+
+	@Benchmark
+	public void writeTraceDBFile(Recording rec) {
+		for(int i = 0; i < NODES_PER_COMMIT; i++, rec.mTime += 1000)
+			rec.mDB.addNodeToCurrentTrace(new LocationNode(50.9, 6.9, 4.0f, 1000, 1.5, 963.25, 123.4, rec.mTime));
+		rec.mDB.writeTraceDBFile();
+	}
+
+	@Benchmark
+	public int load(Archive archive) {
+		TraceDB db = new TraceDB(archive.mDir, archive.mDir, "traces.db");
+		int size = db.getTraces().size();
+		db.close();
+		return size;
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
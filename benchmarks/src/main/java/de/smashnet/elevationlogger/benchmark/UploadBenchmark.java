@@ -0,0 +1,211 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.smashnet.elevationlogger.LocationTrace;
+import de.smashnet.elevationlogger.TraceCodec;
+import de.smashnet.elevationlogger.TraceDB;
+import de.smashnet.elevationlogger.TraceUploader;
+
+/**
+ * Uploads a generated trace DB with TraceUploader to an in-process stub
+ * server. Scores are per upload of the whole DB. The server decodes every
+ * chunk, checks its node count and answers the given share of the chunks with
+ * 503, after reading them, like a lost acknowledgement. After each upload all
+ * traces must be marked uploaded and the server must have received every node
+ * exactly once, not counting repeated chunks, or the trial fails. Before the
+ * next upload the traces are marked not uploaded again and the progress file
+ * is removed.
+ *
+ * @author Nicolas Inden
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+	private static final long START_TIME = 1388664447000L;
+
+	@Param({ "200" })
+	public int traces;
+
+	@Param({ "5000" })
+	public int nodes;
+
+	@Param({ "2000" })
+	public int chunk;
+
+	@Param({ "4" })
+	public int concurrency;
+
+	@Param({ "0.1" })
+	public double fail;
+
+	@Param({ "5" })
+	public int latency;
+
+	private File mDir;
+	private TraceDB mDB;
+	private HttpServer mServer;
+	private StubServer mStub;
+	private TraceUploader.Config mConfig;
+	private TraceUploader.Result mResult;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mDir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-upload-" + System.nanoTime());
+		mDB = new TraceDB(mDir, mDir, "traces.db");
+		Random rnd = new Random(42);
+		for(int t = 0; t < traces; t++) {
+			LocationTrace lt = new LocationTrace(mDir);
+			lt.setDate(new Date(START_TIME + t * 3600000L));
+			double lat = 50.9 + rnd.nextDouble() * 0.1;
+			double lon = 6.9 + rnd.nextDouble() * 0.1;
+			for(int n = 0; n < nodes; n++) {
+				lat += (rnd.nextDouble() - 0.5) * 1e-4;
+				lon += (rnd.nextDouble() - 0.5) * 1e-4;
+				lt.addNode(lat, lon, 5.0f, 1000 + n, 3.0, 1000 + rnd.nextDouble(), 60 + rnd.nextDouble(),
+						START_TIME + t * 3600000L + n * 1000L);
+			}
+			mDB.importTrace(lt);
+		}
+
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.setExecutor(Executors.newFixedThreadPool(concurrency));
+		mServer.start();
+		URL endpoint = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/traces");
+		mConfig = new TraceUploader.Config(endpoint).setChunkNodes(chunk).setConcurrency(concurrency)
+				.setRetries(20, 10, 200);
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		for(LocationTrace lt : mDB.getTraces())
+			mDB.setUploaded(lt, false);
+		new File(mDir, "traces.db.upload").delete();
+		if(mStub != null)
+			mServer.removeContext("/traces");
+		mStub = new StubServer(fail, latency);
+		mServer.createContext("/traces", mStub);
+	}
+
+	@TearDown(Level.Invocation)
+	public void check() {
+		long expected = (long) traces * nodes;
+		int left = mDB.getTracesToUpload().size();
+		if(left > 0 || mStub.mNodes.get() != expected)
+			throw new IllegalStateException(mStub.mNodes.get() + " of " + expected + " nodes received, " + left
+					+ " traces left");
+		System.out.println(String.format("%s, %.2f bytes/node, %d chunks received, %d refused", mResult,
+				(double) mResult.getSentBytes() / Math.max(mResult.getNodes(), 1), mStub.mReceived.get(),
+				mStub.mRefused.get()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mServer.stop(0);
+		((ExecutorService) mServer.getExecutor()).shutdownNow();
+		mDB.close();
+		delete(mDir);
+	}
+
+	@Benchmark
+	public TraceUploader.Result upload() throws InterruptedException {
+		mResult = new TraceUploader(mDB, mConfig, new File(mDir, "traces.db.upload")).upload();
+		return mResult;
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+
+	/**
+	 * Accepts chunks and counts the nodes of distinct chunks
+	 */
+	private static class StubServer implements HttpHandler {
+		private final double mFailShare;
+		private final int mLatency;
+		private final Random mRandom = new Random(7);
+		private final ConcurrentHashMap<String, Boolean> mChunks = new ConcurrentHashMap<String, Boolean>();
+		final AtomicLong mNodes = new AtomicLong();
+		final AtomicInteger mReceived = new AtomicInteger();
+		final AtomicInteger mRefused = new AtomicInteger();
+
+		StubServer(double failShare, int latency) {
+			mFailShare = failShare;
+			mLatency = latency;
+		}
+
+		@Override
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				String key = ex.getRequestHeaders().getFirst("X-Trace-Id") + "/"
+						+ ex.getRequestHeaders().getFirst("X-Chunk-Offset");
+				int length = Integer.parseInt(ex.getRequestHeaders().getFirst("X-Chunk-Length"));
+				InputStream in = new GZIPInputStream(ex.getRequestBody());
+				TraceCodec.Decoder dec = new TraceCodec.Decoder(in);
+				int n = 0;
+				while(dec.next())
+					n++;
+				in.close();
+				mReceived.incrementAndGet();
+				if(mLatency > 0)
+					Thread.sleep(mLatency);
+
+				boolean fail;
+				synchronized(mRandom) {
+					fail = mRandom.nextDouble() < mFailShare;
+				}
+				int status = n != length ? 400 : (fail ? 503 : 200);
+				if(n == length && mChunks.putIfAbsent(key, Boolean.TRUE) == null)
+					mNodes.addAndGet(n);
+				if(status != 200)
+					mRefused.incrementAndGet();
+				ex.sendResponseHeaders(status, -1);
+			} catch (InterruptedException e) {
+				ex.sendResponseHeaders(500, -1);
+			} finally {
+				ex.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package de.smashnet.elevationlogger.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.smashnet.elevationlogger.LocationTrace;
+import de.smashnet.elevationlogger.TraceCodec;
+import de.smashnet.elevationlogger.TraceDB;
+import de.smashnet.elevationlogger.TraceUploader;
+
+/**
+ * Kills an upload in the middle of a trace and checks that the next run
+ * resumes where the progress file says, without sending any node twice.
+ *
+ * The first run uploads a generated trace DB from a child JVM, which is
+ * destroyed by the stub server when a given chunk arrives, before that chunk
+ * is answered. The second run uploads from the reopened DB in this JVM. The
+ * server decodes every chunk and tells the nodes apart by their OSM id, the
+ * node index. Checks:
+ * <ul>
+ * 	<li>the kill left a trace partly uploaded in the progress file</li>
+ * 	<li>the second run sends no trace marked uploaded by the first one and
+ * 	starts each other trace exactly at its stored offset</li>
+ * 	<li>only chunks in flight or not yet recorded at the kill, at most one
+ * 	per worker, are sent twice, and every node arrives</li>
+ * 	<li>afterwards all traces are marked uploaded and no progress is left</li>
+ * </ul>
+ *
+ * Prints one line per check and exits with status 1 if any fails.
+ *
+ * Arguments: [--traces N] [--nodes N] [--chunk N] [--concurrency N]
+ * [--kill-at &lt;chunk&gt;]
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class UploadResumeCheck {
+	private static final long START_TIME = 1388664447000L;
+	private static final String PROGRESS_FILE = "traces.db.upload";
+
+	private static int sFailures;
+
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("--child")) {
+			child(new File(args[1]), new URL(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+			return;
+		}
+		int traces = 6;
+		int nodes = 5000;
+		int chunk = 1000;
+		int concurrency = 2;
+		int killAt = 8;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--traces"))
+				traces = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--nodes"))
+				nodes = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--chunk"))
+				chunk = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--concurrency"))
+				concurrency = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--kill-at"))
+				killAt = Integer.parseInt(args[++i]);
+		}
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "elevationlogger-resume-" + System.nanoTime());
+		StubServer stub = new StubServer(killAt);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/traces", stub);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		try {
+			URL endpoint = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/traces");
+			HashMap<Long, Integer> lengths = generate(dir, traces, nodes);
+
+			// First run, killed at the given chunk
+			Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+					"-cp", System.getProperty("java.class.path"), UploadResumeCheck.class.getName(), "--child",
+					dir.getPath(), endpoint.toString(), String.valueOf(chunk), String.valueOf(concurrency))
+					.redirectErrorStream(true).start();
+			stub.setChild(p);
+			drain(p.getInputStream());
+			p.waitFor();
+
+			TraceDB db = new TraceDB(dir, dir, "traces.db");
+			HashMap<Long, Boolean> uploaded = new HashMap<Long, Boolean>();
+			for(LocationTrace lt : db.getClosedTraces())
+				uploaded.put(lt.getId(), lt.isUploaded());
+			Properties progress = loadProgress(dir);
+			boolean partial = false;
+			for(String id : progress.stringPropertyNames()) {
+				int offset = Integer.parseInt(progress.getProperty(id));
+				partial |= offset > 0 && offset < lengths.get(Long.parseLong(id));
+			}
+			report("killed mid-trace", stub.isKilled() && partial);
+
+			// Second run, from the stored progress
+			List<Chunk> firstRun = stub.startSecondRun();
+			TraceUploader.Config config = new TraceUploader.Config(endpoint).setChunkNodes(chunk)
+					.setConcurrency(concurrency).setRetries(5, 10, 100);
+			TraceUploader.Result res = new TraceUploader(db, config, new File(dir, PROGRESS_FILE)).upload();
+			List<Chunk> secondRun = stub.getChunks();
+			System.out.println("Second run: " + res);
+
+			report("resumed at stored offsets", checkResumed(secondRun, uploaded, progress));
+			report("no node sent twice", checkNodes(firstRun, secondRun, lengths, concurrency));
+			report("all uploaded", db.getTracesToUpload().isEmpty()
+					&& loadProgress(dir).stringPropertyNames().isEmpty());
+			db.close();
+		} finally {
+			server.stop(0);
+			((java.util.concurrent.ExecutorService) server.getExecutor()).shutdownNow();
+			delete(dir);
+		}
+
+		if(sFailures > 0) {
+			System.out.println(sFailures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * The first run, until it is killed
+	 */
+	private static void child(File dir, URL endpoint, int chunk, int concurrency) throws Exception {
+		TraceDB db = new TraceDB(dir, dir, "traces.db");
+		TraceUploader.Config config = new TraceUploader.Config(endpoint).setChunkNodes(chunk)
+				.setConcurrency(concurrency).setRetries(5, 10, 100);
+		new TraceUploader(db, config, new File(dir, PROGRESS_FILE)).upload();
+		db.close();
+	}
+
+	/**
+	 * Traces of the given number of nodes, the OSM id of each node is its index
+	 *
+	 * @return the length of each trace by id
+	 */
+	private static HashMap<Long, Integer> generate(File dir, int traces, int nodes) {
+		TraceDB db = new TraceDB(dir, dir, "traces.db");
+		Random rnd = new Random(42);
+		HashMap<Long, Integer> lengths = new HashMap<Long, Integer>();
+		for(int t = 0; t < traces; t++) {
+			LocationTrace lt = new LocationTrace(dir);
+			lt.setDate(new Date(START_TIME + t * 3600000L));
+			// Lengths that are not a multiple of the chunk size, too
+			int length = nodes + rnd.nextInt(nodes / 2 + 1);
+			for(int n = 0; n < length; n++) {
+				lt.addNode(50.9 + n * 1e-5, 6.9, 5.0f, n, 3.0, 1000 + rnd.nextDouble(), 60 + rnd.nextDouble(),
+						START_TIME + t * 3600000L + n * 1000L);
+			}
+			db.importTrace(lt);
+			lengths.put(lt.getId(), length);
+		}
+		db.close();
+		return lengths;
+	}
+
+	/**
+	 * Traces marked uploaded must not be sent again, the others must start
+	 * at their stored offset and go on without gaps.
+	 */
+	private static boolean checkResumed(List<Chunk> chunks, Map<Long, Boolean> uploaded, Properties progress) {
+		HashMap<Long, Integer> next = new HashMap<Long, Integer>();
+		for(Chunk c : chunks) {
+			if(uploaded.get(c.mTrace)) {
+				System.out.println("  trace " + c.mTrace + " was sent again");
+				return false;
+			}
+			Integer expected = next.get(c.mTrace);
+			if(expected == null)
+				expected = Integer.parseInt(progress.getProperty(String.valueOf(c.mTrace), "0"));
+			if(c.mOffset != expected) {
+				System.out.println("  trace " + c.mTrace + " continued at " + c.mOffset + " instead of " + expected);
+				return false;
+			}
+			next.put(c.mTrace, c.mOffset + c.mLength);
+		}
+		return true;
+	}
+
+	/**
+	 * Every node must arrive. Apart from chunks whose answer the killed run
+	 * did not get to record, at most one per worker, none is sent twice.
+	 */
+	private static boolean checkNodes(List<Chunk> first, List<Chunk> second, Map<Long, Integer> lengths,
+			int concurrency) {
+		HashMap<Long, BitSet> received = new HashMap<Long, BitSet>();
+		HashMap<String, Integer> sent = new HashMap<String, Integer>();
+		ArrayList<Chunk> all = new ArrayList<Chunk>(first);
+		all.addAll(second);
+		for(Chunk c : all) {
+			String key = c.mTrace + "/" + c.mOffset;
+			Integer n = sent.get(key);
+			sent.put(key, n == null ? 1 : n + 1);
+			BitSet nodes = received.get(c.mTrace);
+			if(nodes == null) {
+				nodes = new BitSet();
+				received.put(c.mTrace, nodes);
+			}
+			for(long id : c.mNodes) {
+				if(id < c.mOffset || id >= c.mOffset + c.mLength)
+					return false;
+				nodes.set((int) id);
+			}
+		}
+		int repeated = 0;
+		for(Integer n : sent.values())
+			repeated += n - 1;
+		for(Map.Entry<Long, Integer> e : lengths.entrySet()) {
+			BitSet nodes = received.get(e.getKey());
+			if(nodes == null || nodes.cardinality() != e.getValue()) {
+				System.out.println("  trace " + e.getKey() + " incomplete");
+				return false;
+			}
+		}
+		System.out.println("  " + first.size() + " chunks before the kill, " + second.size() + " after, "
+				+ repeated + " repeated");
+		return repeated <= concurrency;
+	}
+
+	private static Properties loadProgress(File dir) throws IOException {
+		Properties p = new Properties();
+		File f = new File(dir, PROGRESS_FILE);
+		if(f.exists()) {
+			FileInputStream in = new FileInputStream(f);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Reads the output of the child, so it cannot block on a full pipe. Ends
+	 * quietly when the stream is closed because the child was destroyed.
+	 */
+	private static void drain(InputStream in) {
+		byte[] buf = new byte[4096];
+		try {
+			while(in.read(buf) >= 0)
+				;
+			in.close();
+		} catch (IOException e) {
+			// Closed by Process.destroy()
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+
+	private static void report(String name, boolean ok) {
+		if(!ok)
+			sFailures++;
+		System.out.println(String.format("%-32s %s", name, ok ? "ok" : "FAILED"));
+	}
+
+	/**
+	 * A chunk as received
+	 */
+	private static class Chunk {
+		final long mTrace;
+		final int mOffset;
+		final int mLength;
+		final long[] mNodes;
+
+		Chunk(long trace, int offset, int length, long[] nodes) {
+			mTrace = trace;
+			mOffset = offset;
+			mLength = length;
+			mNodes = nodes;
+		}
+	}
+
+	/**
+	 * Records the chunks it receives and destroys the child process when the
+	 * given chunk of the first run arrives. Chunks arriving after that are
+	 * not answered and not recorded.
+	 */
+	private static class StubServer implements HttpHandler {
+		private final int mKillAt;
+		private Process mChild;
+		private boolean mKilled;
+		private boolean mSecondRun;
+		private int mReceived;
+		private ArrayList<Chunk> mChunks = new ArrayList<Chunk>();
+
+		StubServer(int killAt) {
+			mKillAt = killAt;
+		}
+
+		synchronized void setChild(Process child) {
+			mChild = child;
+		}
+
+		synchronized boolean isKilled() {
+			return mKilled;
+		}
+
+		/**
+		 * @return the chunks of the first run
+		 */
+		synchronized List<Chunk> startSecondRun() {
+			List<Chunk> first = mChunks;
+			mChunks = new ArrayList<Chunk>();
+			mSecondRun = true;
+			return first;
+		}
+
+		synchronized List<Chunk> getChunks() {
+			return new ArrayList<Chunk>(mChunks);
+		}
+
+		@Override
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				long trace = Long.parseLong(ex.getRequestHeaders().getFirst("X-Trace-Id"));
+				int offset = Integer.parseInt(ex.getRequestHeaders().getFirst("X-Chunk-Offset"));
+				int length = Integer.parseInt(ex.getRequestHeaders().getFirst("X-Chunk-Length"));
+				InputStream in = new GZIPInputStream(ex.getRequestBody());
+				TraceCodec.Decoder dec = new TraceCodec.Decoder(in);
+				long[] nodes = new long[length];
+				int n = 0;
+				while(dec.next() && n < length)
+					nodes[n++] = dec.getOSMNode();
+				in.close();
+
+				synchronized(this) {
+					if(mKilled && !mSecondRun)
+						return;
+					if(!mSecondRun && ++mReceived == mKillAt) {
+						// Before answering, so this chunk is in flight
+						mKilled = true;
+						mChild.destroy();
+						return;
+					}
+					mChunks.add(new Chunk(trace, offset, length, nodes));
+				}
+				ex.sendResponseHeaders(n == length ? 200 : 400, -1);
+			} finally {
+				ex.close();
+			}
+		}
+	}
+}
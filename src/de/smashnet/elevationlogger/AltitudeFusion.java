@@ -0,0 +1,174 @@
+package de.smashnet.elevationlogger;
+
+import java.io.IOException;
+
+/**
+ * Fuses GPS altitude and barometric altitude of a trace with a Kalman filter
+ * over two states: the true altitude and the bias of the barometric altitude
+ * (weather and calibration error). GPS altitude measures the altitude with a
+ * noise given by the fix accuracy; barometric altitude measures altitude plus
+ * bias with a small, constant noise. Both states follow a random walk between
+ * fixes. So the barometer provides the short-term shape and GPS slowly pulls
+ * the absolute level into place.
+ *
+ * Each sample takes constant time and memory. Inputs are rounded exactly as
+ * the TraceCodec stores them and all arithmetic is strictfp, so replaying a
+ * stored trace yields bit for bit the values computed while recording.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public strictfp class AltitudeFusion {
+	/**
+	 * GPS vertical error relative to the reported (horizontal) accuracy
+	 */
+	private static final double VERTICAL_ACCURACY_FACTOR = 1.5;
+	/**
+	 * Variance of the barometric altitude in m^2
+	 */
+	private static final double BARO_VARIANCE = 1.0;
+	/**
+	 * Growth of the altitude variance in m^2/s
+	 */
+	private static final double ALTITUDE_PROCESS_NOISE = 2.0;
+	/**
+	 * Growth of the bias variance in m^2/s
+	 */
+	private static final double BIAS_PROCESS_NOISE = 0.01;
+
+	private boolean mInitialised;
+	private long mLastTime;
+
+	/**
+	 * State: altitude and barometric bias in meters
+	 */
+	private double mAltitude;
+	private double mBias;
+
+	/**
+	 * Symmetric covariance of the state
+	 */
+	private double mP00;
+	private double mP01;
+	private double mP11;
+
+	/**
+	 * Forgets all samples, the next one starts a new estimate.
+	 */
+	public void reset() {
+		mInitialised = false;
+	}
+
+	/**
+	 * Feeds the next sample. Samples must be in time order.
+	 *
+	 * @param time time of the fix in milliseconds
+	 * @param gpsAltitude GPS altitude in meters
+	 * @param accuracy GPS accuracy in meters
+	 * @param pressure air pressure in mbar, 0 if unknown
+	 */
+	public void update(long time, double gpsAltitude, float accuracy, double pressure) {
+		double gps = TraceCodec.quantise(gpsAltitude, TraceCodec.DEFAULT_ALTITUDE_RESOLUTION);
+		double acc = (float) TraceCodec.quantise(accuracy, TraceCodec.ACCURACY_RESOLUTION);
+		double pres = TraceCodec.quantise(pressure, TraceCodec.DEFAULT_PRESSURE_RESOLUTION);
+		boolean hasBaro = pres > 0;
+		double baro = hasBaro ? BarometricAltitude.altitude(pres, BarometricAltitude.STANDARD_PRESSURE) : 0;
+		double gpsVariance = Math.max(acc * VERTICAL_ACCURACY_FACTOR, 1.0);
+		gpsVariance *= gpsVariance;
+
+		if(!mInitialised) {
+			mInitialised = true;
+			mLastTime = time;
+			mAltitude = gps;
+			mBias = hasBaro ? baro - gps : 0;
+			mP00 = gpsVariance;
+			mP01 = 0;
+			mP11 = gpsVariance + BARO_VARIANCE;
+			return;
+		}
+
+		// Predict
+		double dt = Math.max(time - mLastTime, 0) / 1000.0;
+		mLastTime = time;
+		mP00 += ALTITUDE_PROCESS_NOISE * dt;
+		mP11 += BIAS_PROCESS_NOISE * dt;
+
+		// Barometer measures altitude + bias, H = [1 1]
+		if(hasBaro) {
+			double s = mP00 + 2 * mP01 + mP11 + BARO_VARIANCE;
+			double k0 = (mP00 + mP01) / s;
+			double k1 = (mP01 + mP11) / s;
+			double y = baro - (mAltitude + mBias);
+			mAltitude += k0 * y;
+			mBias += k1 * y;
+			double h0 = mP00 + mP01;
+			double h1 = mP01 + mP11;
+			mP00 -= k0 * h0;
+			mP01 -= k0 * h1;
+			mP11 -= k1 * h1;
+		}
+
+		// GPS measures altitude, H = [1 0]
+		double s = mP00 + gpsVariance;
+		double k0 = mP00 / s;
+		double k1 = mP01 / s;
+		double y = gps - mAltitude;
+		mAltitude += k0 * y;
+		mBias += k1 * y;
+		double p00 = mP00;
+		double p01 = mP01;
+		mP00 -= k0 * p00;
+		mP01 -= k0 * p01;
+		mP11 -= k1 * p01;
+	}
+
+	/**
+	 * @return the fused altitude in meters, NaN before the first sample
+	 */
+	public double getAltitude() {
+		return mInitialised ? mAltitude : Double.NaN;
+	}
+
+	/**
+	 * @return the variance of the fused altitude in m^2, NaN before the
+	 * 	first sample
+	 */
+	public double getVariance() {
+		return mInitialised ? mP00 : Double.NaN;
+	}
+
+	/**
+	 * @return the estimated bias of the barometric altitude in meters
+	 */
+	public double getBias() {
+		return mInitialised ? mBias : Double.NaN;
+	}
+
+	/**
+	 * Runs a new filter over all nodes.
+	 *
+	 * @param nodes the nodes of a trace
+	 * @param altitude receives the fused altitude per node
+	 * @param variance receives the variance per node, may be null
+	 */
+	public static void replay(NodeColumns nodes, double[] altitude, double[] variance) {
+		AltitudeFusion f = new AltitudeFusion();
+		NodeColumns.Cursor c = nodes.cursor();
+		while(c.moveToNext()) {
+			f.update(c.getDateVisited(), c.getGPSAltitude(), c.getAccuracy(), c.getAirPressure());
+			altitude[c.getPosition()] = f.getAltitude();
+			if(variance != null)
+				variance[c.getPosition()] = f.getVariance();
+		}
+	}
+
+	/**
+	 * Runs a new filter over all nodes of a trace.
+	 *
+	 * @throws IOException if the nodes of an archived trace could not be loaded
+	 * @see #replay(NodeColumns, double[], double[])
+	 */
+	public static void replay(LocationTrace trace, double[] altitude, double[] variance) throws IOException {
+		replay(trace.getNodes(), altitude, variance);
+	}
+}
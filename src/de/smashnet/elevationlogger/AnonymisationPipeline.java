@@ -0,0 +1,282 @@
+package de.smashnet.elevationlogger;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Turns recorded traces into anonymised (OSM node, air pressure, time)
+ * tuples, the data the elevation profiles are built from. Per trace:
+ * <ul>
+ * 	<li>nodes without an OSM node, farther than a maximum distance from it or
+ * 	without air pressure are dropped</li>
+ * 	<li>nodes within a radius of the first or last fix of the trace are
+ * 	dropped, wherever in the trace they are, so the places a trace starts
+ * 	and ends at (home, work) do not show</li>
+ * 	<li>consecutive nodes at the same OSM node become one tuple with their
+ * 	mean pressure</li>
+ * 	<li>times are rounded down to a multiple of a granularity</li>
+ * </ul>
+ * Coordinates, accuracy, GPS altitude and trace ids never leave the pipeline.
+ *
+ * Traces are processed in parallel on a fixed number of worker threads,
+ * streaming through their nodes with a cursor. Archived traces that were not
+ * in memory before are unloaded again afterwards, so memory stays bounded by
+ * about one trace per worker however large the archive is.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class AnonymisationPipeline {
+
+	/**
+	 * Receives the tuples, on the worker threads. Tuples of one trace are
+	 * handed over in one piece while the sink is locked, so implementations
+	 * need no further synchronization, but must aggregate or mix the tuples
+	 * before publishing them: in arrival order they still form trajectories.
+	 */
+	public interface Sink {
+		/**
+		 * @param osmNode id of the OSM node
+		 * @param pressure mean air pressure in mbar
+		 * @param time coarsened time in milliseconds since the epoch
+		 */
+		void accept(long osmNode, double pressure, long time);
+	}
+
+	/**
+	 * Outcome of a run.
+	 */
+	public static class Result {
+		private int mTraces;
+		private int mFailed;
+		private long mFirstFailedId = Long.MAX_VALUE;
+		private long mNodesIn;
+		private long mSuppressed;
+		private long mTuples;
+		private long mNanos;
+
+		public int getTraces() {
+			return mTraces;
+		}
+
+		/**
+		 * @return the number of traces that could not be processed
+		 */
+		public int getFailed() {
+			return mFailed;
+		}
+
+		/**
+		 * @return the lowest id of the traces that could not be processed,
+		 * 	Long.MAX_VALUE if all were
+		 */
+		public long getFirstFailedId() {
+			return mFirstFailedId;
+		}
+
+		/**
+		 * @return the number of nodes read
+		 */
+		public long getNodesIn() {
+			return mNodesIn;
+		}
+
+		/**
+		 * @return the number of nodes dropped for being near the start or
+		 * 	end of their trace
+		 */
+		public long getSuppressed() {
+			return mSuppressed;
+		}
+
+		/**
+		 * @return the number of tuples emitted
+		 */
+		public long getTuples() {
+			return mTuples;
+		}
+
+		public long getNanos() {
+			return mNanos;
+		}
+
+		public double getNodesPerSecond() {
+			return mNanos == 0 ? 0 : mNodesIn * 1e9 / mNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d traces (%d failed), %d nodes (%d suppressed) to %d tuples in %.2f s: %.0f nodes/s",
+					mTraces, mFailed, mNodesIn, mSuppressed, mTuples, mNanos / 1e9, getNodesPerSecond());
+		}
+	}
+
+	/**
+	 * Outcome of one trace
+	 */
+	private static class Processed {
+		long mNodesIn;
+		long mSuppressed;
+		long mTuples;
+	}
+
+	private int mParallelism;
+	private long mGranularity;
+	private double mSuppressionRadius;
+	private double mMaxNodeDistance;
+
+	/**
+	 * @param parallelism number of worker threads, at least 1
+	 * @param granularityMillis times are rounded down to multiples of this
+	 * @param suppressionRadius nodes within this many meters of the first or
+	 * 	last fix of their trace are dropped
+	 * @param maxNodeDistance nodes farther than this many meters from their
+	 * 	OSM node are dropped
+	 */
+	public AnonymisationPipeline(int parallelism, long granularityMillis, double suppressionRadius,
+			double maxNodeDistance) {
+		mParallelism = Math.max(parallelism, 1);
+		mGranularity = Math.max(granularityMillis, 1);
+		mSuppressionRadius = suppressionRadius;
+		mMaxNodeDistance = maxNodeDistance;
+	}
+
+	/**
+	 * Processes all traces and waits until all are done.
+	 *
+	 * @param traces the traces, none of them may be recorded to concurrently
+	 * @param sink receives the tuples
+	 * @return counts and throughput of the run
+	 * @throws InterruptedException if interrupted while waiting, remaining
+	 * 	traces are not processed then
+	 */
+	public Result run(List<LocationTrace> traces, final Sink sink) throws InterruptedException {
+		Result res = new Result();
+		long start = System.nanoTime();
+		int threads = Math.min(mParallelism, Math.max(traces.size(), 1));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<Processed> done = new ExecutorCompletionService<Processed>(pool);
+			HashMap<Future<Processed>, LocationTrace> submitted = new HashMap<Future<Processed>, LocationTrace>();
+			for(final LocationTrace lt : traces) {
+				submitted.put(done.submit(new Callable<Processed>() {
+					@Override
+					public Processed call() throws IOException {
+						return process(lt, sink);
+					}
+				}), lt);
+			}
+			for(int i = 0; i < traces.size(); i++) {
+				Future<Processed> f = done.take();
+				try {
+					Processed p = f.get();
+					res.mTraces++;
+					res.mNodesIn += p.mNodesIn;
+					res.mSuppressed += p.mSuppressed;
+					res.mTuples += p.mTuples;
+				} catch (ExecutionException e) {
+					long id = submitted.get(f).getId();
+					res.mFailed++;
+					res.mFirstFailedId = Math.min(res.mFirstFailedId, id);
+					Log.e("AnonymisationPipeline", "Error anonymising trace " + id + ": " + e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		res.mNanos = System.nanoTime() - start;
+		Log.i("AnonymisationPipeline", "Anonymised " + res);
+		return res;
+	}
+
+	private Processed process(LocationTrace lt, Sink sink) throws IOException {
+		boolean wasLoaded = lt.isLoaded();
+		Processed p = new Processed();
+		Tuples tuples = new Tuples();
+		try {
+			NodeColumns nodes = lt.getNodes();
+			int n = nodes.size();
+			p.mNodesIn = n;
+			if(n == 0)
+				return p;
+			double startLat = nodes.getLatitude(0);
+			double startLon = nodes.getLongitude(0);
+			double endLat = nodes.getLatitude(n - 1);
+			double endLon = nodes.getLongitude(n - 1);
+
+			long osmNode = 0;
+			double pressureSum = 0;
+			int count = 0;
+			long time = 0;
+			NodeColumns.Cursor c = nodes.cursor();
+			while(c.moveToNext()) {
+				double lat = c.getLatitude();
+				double lon = c.getLongitude();
+				if(OsmNodeIndex.distance(startLat, startLon, lat, lon) < mSuppressionRadius
+						|| OsmNodeIndex.distance(endLat, endLon, lat, lon) < mSuppressionRadius) {
+					p.mSuppressed++;
+					continue;
+				}
+				double pressure = c.getAirPressure();
+				if(c.getOSMNode() <= 0 || c.getDistance() > mMaxNodeDistance || !(pressure > 0))
+					continue;
+				if(c.getOSMNode() != osmNode) {
+					if(count > 0)
+						tuples.add(osmNode, pressureSum / count, time);
+					osmNode = c.getOSMNode();
+					pressureSum = 0;
+					count = 0;
+					time = c.getDateVisited() - c.getDateVisited() % mGranularity;
+				}
+				pressureSum += pressure;
+				count++;
+			}
+			if(count > 0)
+				tuples.add(osmNode, pressureSum / count, time);
+		} finally {
+			if(!wasLoaded)
+				lt.unload();
+		}
+
+		synchronized(sink) {
+			for(int i = 0; i < tuples.mSize; i++)
+				sink.accept(tuples.mOSMNode[i], tuples.mPressure[i], tuples.mTime[i]);
+		}
+		p.mTuples = tuples.mSize;
+		return p;
+	}
+
+	/**
+	 * The tuples of one trace, collected before handing them to the sink, so
+	 * the sink is only locked briefly. At most one per node of the trace.
+	 */
+	private static class Tuples {
+		long[] mOSMNode = new long[64];
+		double[] mPressure = new double[64];
+		long[] mTime = new long[64];
+		int mSize;
+
+		void add(long osmNode, double pressure, long time) {
+			if(mSize == mOSMNode.length) {
+				mOSMNode = Arrays.copyOf(mOSMNode, mSize * 2);
+				mPressure = Arrays.copyOf(mPressure, mSize * 2);
+				mTime = Arrays.copyOf(mTime, mSize * 2);
+			}
+			mOSMNode[mSize] = osmNode;
+			mPressure[mSize] = pressure;
+			mTime[mSize] = time;
+			mSize++;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Converts air pressure to altitude with the international barometric
+ * formula of the standard atmosphere:
+ * <pre>
+ * h = 288.15 / 0.0065 * (1 - (p / p0)^(1 / 5.255))
+ * </pre>
+ * The power is read from a table of (p / p0)^(1 / 5.255) over pressure ratios
+ * from 0.25 to 1.15 (about -1200 m to 10500 m) with linear interpolation.
+ * The interpolation error is at most max|f''| / 8 * step^2, which for 1024
+ * steps is below 2e-7, or 1 cm of altitude, over the whole range. Ratios
+ * outside the table fall back to StrictMath.pow. The table is computed with
+ * StrictMath as well, so results are the same on every platform.
+ *
+ * The sea level pressure p0 can be calibrated from GPS fixes with good
+ * accuracy: every fix yields an estimate of p0, and the estimates are
+ * averaged weighted by 1 / accuracy^2, older ones fading out so slow weather
+ * changes are followed.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class BarometricAltitude {
+	/**
+	 * Sea level pressure of the standard atmosphere in mbar
+	 */
+	public static final double STANDARD_PRESSURE = 1013.25;
+
+	private static final double EXPONENT = 1 / 5.255;
+	private static final double SCALE = 288.15 / 0.0065;
+
+	private static final double TABLE_MIN = 0.25;
+	private static final double TABLE_MAX = 1.15;
+	private static final int TABLE_STEPS = 1024;
+	private static final double TABLE_STEP = (TABLE_MAX - TABLE_MIN) / TABLE_STEPS;
+	private static final double TABLE_SCALE = TABLE_STEPS / (TABLE_MAX - TABLE_MIN);
+
+	/**
+	 * (TABLE_MIN + i * TABLE_STEP)^EXPONENT
+	 */
+	private static final double[] POWER = new double[TABLE_STEPS + 1];
+
+	static {
+		for(int i = 0; i <= TABLE_STEPS; i++)
+			POWER[i] = StrictMath.pow(TABLE_MIN + i * TABLE_STEP, EXPONENT);
+	}
+
+	/**
+	 * Calibrated sea level pressure in mbar
+	 */
+	private volatile double mSeaLevelPressure = STANDARD_PRESSURE;
+
+	/**
+	 * Fixes with a worse accuracy (in meters) are not used for calibration
+	 */
+	private float mMaxAccuracy;
+	/**
+	 * Factor the weight of previous estimates is multiplied with per fix
+	 */
+	private double mDecay;
+	/**
+	 * Sum of the faded weights of all estimates so far, 0 if uncalibrated
+	 */
+	private double mWeight;
+
+	public BarometricAltitude() {
+		this(10.0f, 0.999);
+	}
+
+	/**
+	 * @param maxAccuracy fixes with a worse accuracy in meters are ignored for
+	 * 	calibration
+	 * @param decay factor in (0, 1] previous calibration estimates are faded
+	 * 	with per fix, 1 to never forget
+	 */
+	public BarometricAltitude(float maxAccuracy, double decay) {
+		mMaxAccuracy = maxAccuracy;
+		mDecay = decay;
+	}
+
+	/**
+	 * @return the altitude in meters at the given pressure, using the
+	 * 	calibrated sea level pressure
+	 */
+	public double altitude(double pressure) {
+		return altitude(pressure, mSeaLevelPressure);
+	}
+
+	/**
+	 * Converts the air pressure of all nodes, using the calibrated sea level
+	 * pressure.
+	 *
+	 * @param nodes the nodes
+	 * @param out receives the altitudes in meters, at least nodes.size() long
+	 */
+	public void altitudes(NodeColumns nodes, double[] out) {
+		nodes.copyAirPressure(0, out, 0, nodes.size());
+		altitudes(out, 0, out, 0, nodes.size(), mSeaLevelPressure);
+	}
+
+	/**
+	 * Converts the air pressure of count values, using the calibrated sea
+	 * level pressure. in and out may be the same array.
+	 */
+	public void altitudes(double[] in, int inOffset, double[] out, int outOffset, int count) {
+		altitudes(in, inOffset, out, outOffset, count, mSeaLevelPressure);
+	}
+
+	/**
+	 * @return the altitude in meters at the given pressure and sea level
+	 * 	pressure, both in mbar
+	 */
+	public static double altitude(double pressure, double seaLevelPressure) {
+		return SCALE * (1 - power(pressure / seaLevelPressure));
+	}
+
+	/**
+	 * @return the altitude computed with Math.pow, for reference
+	 */
+	public static double altitudeExact(double pressure, double seaLevelPressure) {
+		return SCALE * (1 - Math.pow(pressure / seaLevelPressure, EXPONENT));
+	}
+
+	/**
+	 * Converts count pressure values. in and out may be the same array.
+	 */
+	public static void altitudes(double[] in, int inOffset, double[] out, int outOffset, int count,
+			double seaLevelPressure) {
+		double inv = 1 / seaLevelPressure;
+		for(int i = 0; i < count; i++)
+			out[outOffset + i] = SCALE * (1 - power(in[inOffset + i] * inv));
+	}
+
+	/**
+	 * @return the sea level pressure at which the given pressure corresponds
+	 * 	to the given altitude
+	 */
+	public static double seaLevelPressure(double pressure, double altitude) {
+		return pressure / Math.pow(1 - altitude / SCALE, 1 / EXPONENT);
+	}
+
+	public double getSeaLevelPressure() {
+		return mSeaLevelPressure;
+	}
+
+	/**
+	 * Sets the sea level pressure and discards all calibration so far.
+	 */
+	public synchronized void setSeaLevelPressure(double pressure) {
+		mSeaLevelPressure = pressure;
+		mWeight = 0;
+	}
+
+	/**
+	 * @return true, if at least one fix has been used for calibration
+	 */
+	public synchronized boolean isCalibrated() {
+		return mWeight > 0;
+	}
+
+	/**
+	 * Feeds a GPS fix into the calibration of the sea level pressure.
+	 *
+	 * @param pressure air pressure at the fix in mbar
+	 * @param gpsAltitude GPS altitude in meters
+	 * @param accuracy GPS accuracy in meters
+	 * @return true, if the fix was accurate enough to be used
+	 */
+	public synchronized boolean calibrate(double pressure, double gpsAltitude, float accuracy) {
+		if(!(accuracy > 0) || accuracy > mMaxAccuracy || !(pressure > 0))
+			return false;
+		double w = 1.0 / ((double) accuracy * accuracy);
+		mWeight = mWeight * mDecay + w;
+		double estimate = seaLevelPressure(pressure, gpsAltitude);
+		mSeaLevelPressure += (estimate - mSeaLevelPressure) * (w / mWeight);
+		return true;
+	}
+
+	/**
+	 * Feeds all nodes of a trace into the calibration.
+	 *
+	 * @return the number of nodes used
+	 */
+	public synchronized int calibrate(NodeColumns nodes) {
+		int used = 0;
+		for(int i = 0; i < nodes.size(); i++) {
+			if(calibrate(nodes.getAirPressure(i), nodes.getGPSAltitude(i), nodes.getAccuracy(i)))
+				used++;
+		}
+		return used;
+	}
+
+	/**
+	 * @return ratio^(1 / 5.255)
+	 */
+	private static double power(double ratio) {
+		double x = (ratio - TABLE_MIN) * TABLE_SCALE;
+		// Also false for NaN, which StrictMath.pow handles
+		if(!(x >= 0 && x < TABLE_STEPS))
+			return StrictMath.pow(ratio, EXPONENT);
+		int i = (int) x;
+		double f = x - i;
+		return POWER[i] + (POWER[i + 1] - POWER[i]) * f;
+	}
+}
@@ -0,0 +1,151 @@
+package de.smashnet.elevationlogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free bounded ring of preallocated Fix slots, passed through a fixed
+ * sequence of processing stages. There is exactly one producer and one
+ * thread per stage. Each party owns a sequence counter:
+ * <ul>
+ * 	<li>the producer may fill a slot once the last stage has released it</li>
+ * 	<li>stage i may process a slot once stage i - 1 (or the producer for
+ * 	stage 1) has released it</li>
+ * </ul>
+ * Slots are never copied between stages and every stage sees the fixes in
+ * the order they were published.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class FixRingBuffer {
+	
+	/**
+	 * One GPS fix with the values filled in by the stages.
+	 */
+	public static class Fix {
+		public double latitude;
+		public double longitude;
+		public double altitude;
+		public float accuracy;
+		public long time;
+		public double pressure;
+		public long osmId;
+		public double distance;
+		/**
+		 * Altitude fused from GPS and barometer and its variance, NaN for
+		 * fixes that are not recorded
+		 */
+		public double fusedAltitude;
+		public double altitudeVariance;
+		/**
+		 * What the persistence stage does with this fix, see IngestPipeline
+		 */
+		public int action;
+		/**
+		 * System.nanoTime() when the fix was offered, for latency metrics
+		 */
+		public long offerNanos;
+		
+		/**
+		 * Copies all values of another fix.
+		 */
+		public void set(Fix f) {
+			latitude = f.latitude;
+			longitude = f.longitude;
+			altitude = f.altitude;
+			accuracy = f.accuracy;
+			time = f.time;
+			pressure = f.pressure;
+			osmId = f.osmId;
+			distance = f.distance;
+			fusedAltitude = f.fusedAltitude;
+			altitudeVariance = f.altitudeVariance;
+			action = f.action;
+			offerNanos = f.offerNanos;
+		}
+	}
+	
+	private final Fix[] mSlots;
+	private final int mMask;
+	/**
+	 * mCursors[0] is the last published sequence, mCursors[i] the last
+	 * sequence released by stage i
+	 */
+	private final AtomicLong[] mCursors;
+	
+	/**
+	 * Sequence of the slot claimed by the producer
+	 */
+	private long mClaimed = -1;
+	
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 * @param stages number of stages behind the producer
+	 */
+	public FixRingBuffer(int capacity, int stages) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mSlots = new Fix[size];
+		for(int i = 0; i < size; i++)
+			mSlots[i] = new Fix();
+		mMask = size - 1;
+		mCursors = new AtomicLong[stages + 1];
+		for(int i = 0; i <= stages; i++)
+			mCursors[i] = new AtomicLong(-1);
+	}
+	
+	public int capacity() {
+		return mSlots.length;
+	}
+	
+	/**
+	 * Claims the next free slot for the producer.
+	 * 
+	 * @return the slot to fill, or null if the ring is full
+	 */
+	public Fix claim() {
+		long next = mCursors[0].get() + 1;
+		if(next - mSlots.length > mCursors[mCursors.length - 1].get())
+			return null;
+		mClaimed = next;
+		return mSlots[(int) (next & mMask)];
+	}
+	
+	/**
+	 * Makes the claimed slot visible to the first stage.
+	 */
+	public void publish() {
+		mCursors[0].lazySet(mClaimed);
+	}
+	
+	/**
+	 * @return the highest sequence the given stage (1..stages) may process
+	 */
+	public long available(int stage) {
+		return mCursors[stage - 1].get();
+	}
+	
+	/**
+	 * @return the last sequence the given stage released
+	 */
+	public long released(int stage) {
+		return mCursors[stage].get();
+	}
+	
+	public Fix get(long sequence) {
+		return mSlots[(int) (sequence & mMask)];
+	}
+	
+	/**
+	 * Hands all slots up to the given sequence on to the next stage.
+	 */
+	public void release(int stage, long sequence) {
+		mCursors[stage].lazySet(sequence);
+	}
+	
+	/**
+	 * @return the number of fixes not yet released by the last stage
+	 */
+	public int size() {
+		return (int) (mCursors[0].get() - mCursors[mCursors.length - 1].get());
+	}
+}
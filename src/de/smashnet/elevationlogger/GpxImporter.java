@@ -0,0 +1,697 @@
+package de.smashnet.elevationlogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+/**
+ * Reads GPX 1.1 track points back into traces. The file is memory mapped and
+ * scanned byte by byte as a pull parser: only the elements needed for a node
+ * are looked at, and numbers and timestamps are parsed directly from the
+ * bytes, so there are no Strings, no DOM and the heap use does not depend on
+ * the file size.
+ *
+ * Every trkseg becomes one trace. Of each trkpt the attributes lat and lon and
+ * the elements ele and time are read, plus the extensions written by
+ * GpxWriter: accuracy, airpressure and nearestosm (namespace prefixes are
+ * ignored). Missing values are 0, a missing OSM node is -1. Values may be
+ * wrapped in CDATA or preceded by comments. Comments, CDATA sections,
+ * processing instructions and all other elements are skipped.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class GpxImporter {
+	private static final int TAG_OTHER = 0;
+	private static final int TAG_TRKSEG = 1;
+	private static final int TAG_TRKPT = 2;
+	private static final int TAG_ELE = 3;
+	private static final int TAG_TIME = 4;
+	private static final int TAG_ACCURACY = 5;
+	private static final int TAG_AIRPRESSURE = 6;
+	private static final int TAG_NEARESTOSM = 7;
+
+	private static final byte[][] TAG_NAMES = {
+		null, ascii("trkseg"), ascii("trkpt"), ascii("ele"), ascii("time"),
+		ascii("accuracy"), ascii("airpressure"), ascii("nearestosm")
+	};
+	private static final byte[] ATTR_LAT = ascii("lat");
+	private static final byte[] ATTR_LON = ascii("lon");
+	private static final byte[] COMMENT_START = ascii("<!--");
+	private static final byte[] COMMENT_END = ascii("-->");
+	private static final byte[] CDATA_START = ascii("<![CDATA[");
+	private static final byte[] CDATA_END = ascii("]]>");
+
+	/**
+	 * Completed traces of a file are added to the DB once they hold this
+	 * many nodes together, or at the end of the file
+	 */
+	static final int IMPORT_BATCH_NODES = 100000;
+
+	/**
+	 * Exact powers of ten as double
+	 */
+	private static final double[] POW10 = new double[23];
+
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	/**
+	 * Receives the parsed tracks.
+	 */
+	public interface Handler {
+		void startTrace();
+		void addNode(double lat, double lon, float acc, long osmNode, double pressure, double elevation, long time);
+		void endTrace();
+	}
+
+	/**
+	 * Outcome of an import.
+	 */
+	public static class Result {
+		private int mFiles;
+		private int mFailed;
+		private int mTraces;
+		private long mNodes;
+		private long mBytes;
+		private long mNanos;
+
+		public int getFiles() {
+			return mFiles;
+		}
+
+		/**
+		 * @return the number of files that could not be read completely
+		 */
+		public int getFailed() {
+			return mFailed;
+		}
+
+		public int getTraces() {
+			return mTraces;
+		}
+
+		public long getNodes() {
+			return mNodes;
+		}
+
+		/**
+		 * @return the size of all files read
+		 */
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public long getNanos() {
+			return mNanos;
+		}
+
+		public double getMegabytesPerSecond() {
+			return mNanos == 0 ? 0 : mBytes * 1e3 / mNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d files (%d failed), %d traces, %d nodes, %d bytes in %.2f s: %.1f MB/s",
+					mFiles, mFailed, mTraces, mNodes, mBytes, mNanos / 1e9, getMegabytesPerSecond());
+		}
+	}
+
+	/**
+	 * Imports GPX files into the trace DB, parsing them in parallel on the
+	 * given number of threads. Completed traces are added to the DB in
+	 * batches of up to IMPORT_BATCH_NODES nodes per file; adding them is
+	 * serialized by the DB, but costs only one sync per batch.
+	 *
+	 * @throws InterruptedException if interrupted while waiting, remaining
+	 * 	files are not imported then
+	 */
+	public static Result importFiles(List<File> files, final TraceDB db, int parallelism)
+			throws InterruptedException {
+		Result res = new Result();
+		long start = System.nanoTime();
+		int threads = Math.max(1, Math.min(parallelism, files.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<Result> done = new ExecutorCompletionService<Result>(pool);
+			for(final File f : files) {
+				done.submit(new Callable<Result>() {
+					@Override
+					public Result call() throws IOException {
+						return importFile(f, db);
+					}
+				});
+			}
+			for(int i = 0; i < files.size(); i++) {
+				try {
+					Result r = done.take().get();
+					res.mFiles++;
+					res.mTraces += r.mTraces;
+					res.mNodes += r.mNodes;
+					res.mBytes += r.mBytes;
+				} catch (ExecutionException e) {
+					res.mFailed++;
+					Log.e("GpxImporter", "Error importing GPX file: " + e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		res.mNanos = System.nanoTime() - start;
+		Log.i("GpxImporter", "Imported " + res);
+		return res;
+	}
+
+	/**
+	 * Imports all tracks of a GPX file into the trace DB.
+	 *
+	 * @throws IOException if the file cannot be read or is malformed; tracks
+	 * 	completed before the error are imported
+	 */
+	public static Result importFile(File file, final TraceDB db) throws IOException {
+		final Result res = new Result();
+		final File dir = db.getTraceDir();
+		final ArrayList<LocationTrace> batch = new ArrayList<LocationTrace>();
+		Handler h = new Handler() {
+			private LocationTrace mTrace;
+			private int mBatchNodes;
+
+			@Override
+			public void startTrace() {
+				mTrace = new LocationTrace(dir);
+			}
+
+			@Override
+			public void addNode(double lat, double lon, float acc, long osmNode, double pressure,
+					double elevation, long time) {
+				if(mTrace.getLength() == 0 && time != 0)
+					mTrace.setDate(new Date(time));
+				mTrace.addNode(lat, lon, acc, osmNode, 0, pressure, elevation, time);
+				res.mNodes++;
+			}
+
+			@Override
+			public void endTrace() {
+				if(mTrace.getLength() > 0) {
+					batch.add(mTrace);
+					mBatchNodes += mTrace.getLength();
+					if(mBatchNodes >= IMPORT_BATCH_NODES) {
+						res.mTraces += db.importTraces(batch);
+						batch.clear();
+						mBatchNodes = 0;
+					}
+				}
+				mTrace = null;
+			}
+		};
+		res.mFiles = 1;
+		try {
+			res.mBytes = parse(file, h);
+		} finally {
+			if(!batch.isEmpty())
+				res.mTraces += db.importTraces(batch);
+		}
+		return res;
+	}
+
+	/**
+	 * Parses a GPX file through a read-only memory mapping.
+	 *
+	 * @return the number of bytes parsed
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static long parse(File file, Handler handler) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if(ch.size() > Integer.MAX_VALUE)
+				throw new IOException("GPX file too large: " + file);
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			parse(buf, handler);
+			return ch.size();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Parses GPX between position and limit of the buffer. The buffer
+	 * position is not changed.
+	 *
+	 * @throws IOException if the GPX is malformed
+	 */
+	public static void parse(ByteBuffer buf, Handler handler) throws IOException {
+		int pos = buf.position();
+		int end = buf.limit();
+
+		boolean inTrace = false;
+		boolean inPoint = false;
+		double lat = 0, lon = 0, ele = 0, pressure = 0;
+		float acc = 0;
+		long osm = -1, time = 0;
+
+		while(true) {
+			pos = indexOf(buf, (byte) '<', pos, end);
+			if(pos < 0)
+				break;
+			pos++;
+			if(pos >= end)
+				throw malformed(pos);
+			byte b = buf.get(pos);
+			if(b == '!') {
+				pos = skipMarkup(buf, pos, end);
+				continue;
+			}
+			if(b == '?') {
+				pos = skipPast(buf, (byte) '?', (byte) '>', pos, end);
+				continue;
+			}
+			boolean closing = b == '/';
+			if(closing)
+				pos++;
+
+			// Element name, without namespace prefix
+			int nameStart = pos;
+			while(pos < end && !isNameEnd(buf.get(pos))) {
+				if(buf.get(pos) == ':')
+					nameStart = pos + 1;
+				pos++;
+			}
+			int tag = tag(buf, nameStart, pos);
+
+			// Attributes
+			boolean selfClosing = false;
+			while(true) {
+				while(pos < end && isSpace(buf.get(pos)))
+					pos++;
+				if(pos >= end)
+					throw malformed(pos);
+				b = buf.get(pos);
+				if(b == '>') {
+					pos++;
+					break;
+				}
+				if(b == '/') {
+					selfClosing = true;
+					pos++;
+					continue;
+				}
+				int attrStart = pos;
+				while(pos < end && buf.get(pos) != '=' && !isSpace(buf.get(pos)))
+					pos++;
+				int attrEnd = pos;
+				while(pos < end && buf.get(pos) != '"' && buf.get(pos) != '\'')
+					pos++;
+				if(pos >= end)
+					throw malformed(pos);
+				byte quote = buf.get(pos++);
+				int valueStart = pos;
+				pos = indexOf(buf, quote, pos, end);
+				if(pos < 0)
+					throw malformed(valueStart);
+				if(tag == TAG_TRKPT && !closing) {
+					if(equals(buf, attrStart, attrEnd, ATTR_LAT))
+						lat = parseDouble(buf, valueStart, pos);
+					else if(equals(buf, attrStart, attrEnd, ATTR_LON))
+						lon = parseDouble(buf, valueStart, pos);
+				}
+				pos++;
+			}
+
+			if(tag == TAG_OTHER)
+				continue;
+			if(tag == TAG_TRKSEG) {
+				if(!closing && !inTrace) {
+					handler.startTrace();
+					inTrace = true;
+				}
+				if(closing || selfClosing) {
+					if(inTrace)
+						handler.endTrace();
+					inTrace = false;
+				}
+				continue;
+			}
+			if(tag == TAG_TRKPT) {
+				if(!closing) {
+					if(!inTrace) {
+						handler.startTrace();
+						inTrace = true;
+					}
+					inPoint = true;
+					ele = 0;
+					pressure = 0;
+					acc = 0;
+					osm = -1;
+					time = 0;
+				}
+				if((closing || selfClosing) && inPoint) {
+					handler.addNode(lat, lon, acc, osm, pressure, ele, time);
+					inPoint = false;
+				}
+				continue;
+			}
+			if(closing || selfClosing || !inPoint)
+				continue;
+
+			// Text content of a value element, after any comments or in CDATA
+			int textStart = pos;
+			int textEnd;
+			while(true) {
+				textEnd = indexOf(buf, (byte) '<', textStart, end);
+				if(textEnd < 0)
+					throw malformed(textStart);
+				if(!isBlank(buf, textStart, textEnd) || !startsWith(buf, textEnd, end, COMMENT_START))
+					break;
+				textStart = skipMarkup(buf, textEnd + 1, end);
+			}
+			pos = textEnd;
+			if(isBlank(buf, textStart, textEnd) && startsWith(buf, textEnd, end, CDATA_START)) {
+				textStart = textEnd + CDATA_START.length;
+				textEnd = indexOf(buf, CDATA_END, textStart, end);
+				if(textEnd < 0)
+					throw malformed(textStart);
+				pos = textEnd + CDATA_END.length;
+			}
+			switch(tag) {
+			case TAG_ELE:
+				ele = parseDouble(buf, textStart, textEnd);
+				break;
+			case TAG_TIME:
+				time = parseTime(buf, textStart, textEnd);
+				break;
+			case TAG_ACCURACY:
+				acc = (float) parseDouble(buf, textStart, textEnd);
+				break;
+			case TAG_AIRPRESSURE:
+				pressure = parseDouble(buf, textStart, textEnd);
+				break;
+			case TAG_NEARESTOSM:
+				osm = parseLong(buf, textStart, textEnd);
+				break;
+			}
+		}
+		if(inTrace)
+			handler.endTrace();
+	}
+
+	/**
+	 * Parses a decimal number. Numbers with up to 15 significant digits and
+	 * small exponents, like all numbers GpxWriter writes, are computed exactly
+	 * from the digits (one correctly rounded multiplication or division);
+	 * others fall back to Double.parseDouble.
+	 */
+	static double parseDouble(ByteBuffer buf, int from, int to) throws IOException {
+		while(from < to && isSpace(buf.get(from)))
+			from++;
+		while(to > from && isSpace(buf.get(to - 1)))
+			to--;
+		int pos = from;
+		boolean negative = false;
+		if(pos < to && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+			negative = buf.get(pos++) == '-';
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean any = false;
+		boolean point = false;
+		for(; pos < to; pos++) {
+			byte b = buf.get(pos);
+			if(b >= '0' && b <= '9') {
+				any = true;
+				if(mantissa == 0 && b == '0') {
+					if(point)
+						scale--;
+					continue;
+				}
+				if(digits >= 18)
+					return slowParseDouble(buf, from, to);
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if(point)
+					scale--;
+			} else if(b == '.' && !point) {
+				point = true;
+			} else if(b == 'e' || b == 'E') {
+				break;
+			} else {
+				throw malformed(pos);
+			}
+		}
+		if(!any)
+			throw malformed(from);
+		if(pos < to) {
+			pos++;
+			boolean negExp = false;
+			if(pos < to && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+				negExp = buf.get(pos++) == '-';
+			int exp = 0;
+			if(pos >= to)
+				throw malformed(pos);
+			for(; pos < to; pos++) {
+				byte b = buf.get(pos);
+				if(b < '0' || b > '9')
+					throw malformed(pos);
+				if(exp < 10000)
+					exp = exp * 10 + (b - '0');
+			}
+			scale += negExp ? -exp : exp;
+		}
+
+		double v;
+		if(mantissa == 0)
+			v = 0;
+		else if(mantissa < (1L << 53) && scale >= 0 && scale < POW10.length)
+			v = mantissa * POW10[scale];
+		else if(mantissa < (1L << 53) && scale < 0 && -scale < POW10.length)
+			v = mantissa / POW10[-scale];
+		else
+			return slowParseDouble(buf, from, to);
+		return negative ? -v : v;
+	}
+
+	private static double slowParseDouble(ByteBuffer buf, int from, int to) throws IOException {
+		char[] c = new char[to - from];
+		for(int i = 0; i < c.length; i++)
+			c[i] = (char) buf.get(from + i);
+		try {
+			return Double.parseDouble(new String(c));
+		} catch (NumberFormatException e) {
+			throw malformed(from);
+		}
+	}
+
+	static long parseLong(ByteBuffer buf, int from, int to) throws IOException {
+		while(from < to && isSpace(buf.get(from)))
+			from++;
+		while(to > from && isSpace(buf.get(to - 1)))
+			to--;
+		boolean negative = false;
+		if(from < to && (buf.get(from) == '-' || buf.get(from) == '+'))
+			negative = buf.get(from++) == '-';
+		if(from >= to)
+			throw malformed(from);
+		long v = 0;
+		for(int pos = from; pos < to; pos++) {
+			byte b = buf.get(pos);
+			if(b < '0' || b > '9')
+				throw malformed(pos);
+			v = v * 10 + (b - '0');
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * Parses an ISO-8601 timestamp yyyy-MM-ddTHH:mm:ss[.fraction][Z|+hh:mm|-hh:mm].
+	 * Without zone the time is taken as UTC.
+	 *
+	 * @return milliseconds since the epoch
+	 */
+	static long parseTime(ByteBuffer buf, int from, int to) throws IOException {
+		while(from < to && isSpace(buf.get(from)))
+			from++;
+		while(to > from && isSpace(buf.get(to - 1)))
+			to--;
+		if(to - from < 19 || buf.get(from + 4) != '-' || buf.get(from + 7) != '-'
+				|| buf.get(from + 13) != ':' || buf.get(from + 16) != ':')
+			throw malformed(from);
+		long year = digits(buf, from, 4);
+		int month = digits(buf, from + 5, 2);
+		int day = digits(buf, from + 8, 2);
+		int hour = digits(buf, from + 11, 2);
+		int minute = digits(buf, from + 14, 2);
+		int second = digits(buf, from + 17, 2);
+		int pos = from + 19;
+
+		int millis = 0;
+		if(pos < to && buf.get(pos) == '.') {
+			pos++;
+			int n = 0;
+			while(pos < to && buf.get(pos) >= '0' && buf.get(pos) <= '9') {
+				if(n < 3)
+					millis = millis * 10 + (buf.get(pos) - '0');
+				n++;
+				pos++;
+			}
+			for(; n < 3; n++)
+				millis *= 10;
+		}
+
+		int offsetMinutes = 0;
+		if(pos < to) {
+			byte b = buf.get(pos);
+			if(b == '+' || b == '-') {
+				if(to - pos < 6 || buf.get(pos + 3) != ':')
+					throw malformed(pos);
+				offsetMinutes = digits(buf, pos + 1, 2) * 60 + digits(buf, pos + 4, 2);
+				if(b == '-')
+					offsetMinutes = -offsetMinutes;
+			} else if(b != 'Z') {
+				throw malformed(pos);
+			}
+		}
+
+		// Howard Hinnant's days_from_civil
+		long y = (month <= 2) ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yoe = y - era * 400;
+		long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		long days = era * 146097 + doe - 719468;
+
+		return ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60000L + second * 1000L + millis;
+	}
+
+	private static int digits(ByteBuffer buf, int from, int count) throws IOException {
+		int v = 0;
+		for(int i = from; i < from + count; i++) {
+			byte b = buf.get(i);
+			if(b < '0' || b > '9')
+				throw malformed(i);
+			v = v * 10 + (b - '0');
+		}
+		return v;
+	}
+
+	/**
+	 * Skips a comment, CDATA section or declaration starting after "&lt;".
+	 *
+	 * @return the position after its end
+	 */
+	private static int skipMarkup(ByteBuffer buf, int pos, int end) throws IOException {
+		byte[] close = null;
+		if(startsWith(buf, pos - 1, end, COMMENT_START)) {
+			close = COMMENT_END;
+			pos += COMMENT_START.length - 1;
+		} else if(startsWith(buf, pos - 1, end, CDATA_START)) {
+			close = CDATA_END;
+			pos += CDATA_START.length - 1;
+		}
+		if(close != null) {
+			int at = indexOf(buf, close, pos, end);
+			if(at < 0)
+				throw malformed(pos);
+			return at + close.length;
+		}
+		int at = indexOf(buf, (byte) '>', pos, end);
+		if(at < 0)
+			throw malformed(pos);
+		return at + 1;
+	}
+
+	/**
+	 * @return the position after the next occurrence of the two bytes
+	 */
+	private static int skipPast(ByteBuffer buf, byte first, byte second, int pos, int end) throws IOException {
+		while(pos + 1 < end) {
+			if(buf.get(pos) == first && buf.get(pos + 1) == second)
+				return pos + 2;
+			pos++;
+		}
+		throw malformed(pos);
+	}
+
+	/**
+	 * @return the position of the next occurrence of the bytes, -1 if there is none
+	 */
+	private static int indexOf(ByteBuffer buf, byte[] bytes, int pos, int end) {
+		for(; pos + bytes.length <= end; pos++) {
+			if(startsWith(buf, pos, end, bytes))
+				return pos;
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(ByteBuffer buf, int pos, int end, byte[] bytes) {
+		return pos + bytes.length <= end && equals(buf, pos, pos + bytes.length, bytes);
+	}
+
+	private static boolean isBlank(ByteBuffer buf, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(!isSpace(buf.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static int indexOf(ByteBuffer buf, byte b, int pos, int end) {
+		for(; pos < end; pos++) {
+			if(buf.get(pos) == b)
+				return pos;
+		}
+		return -1;
+	}
+
+	private static int tag(ByteBuffer buf, int from, int to) {
+		for(int i = 1; i < TAG_NAMES.length; i++) {
+			if(equals(buf, from, to, TAG_NAMES[i]))
+				return i;
+		}
+		return TAG_OTHER;
+	}
+
+	private static boolean equals(ByteBuffer buf, int from, int to, byte[] name) {
+		if(to - from != name.length)
+			return false;
+		for(int i = 0; i < name.length; i++) {
+			if(buf.get(from + i) != name[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isNameEnd(byte b) {
+		return b == '>' || b == '/' || isSpace(b);
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private static IOException malformed(int pos) {
+		return new IOException("Malformed GPX at byte " + pos);
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for(int i = 0; i < b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+}
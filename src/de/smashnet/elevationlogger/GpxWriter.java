@@ -2,16 +2,16 @@ package de.smashnet.elevationlogger;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
-import android.content.Context;
-import android.content.Intent;
-import android.net.Uri;
 import android.util.Log;
 
 /**
@@ -43,9 +43,15 @@ public class GpxWriter implements Serializable{
 	private Date mTime;
 	
 	/**
-	 * Helps buffering contents before they are written to file
+	 * Helps buffering contents before they are written to file. Route points
+	 * are formatted directly into this array, so no Strings are created per point.
 	 */
-	private StringBuilder mSB;
+	private char[] mBuf;
+	
+	/**
+	 * Number of valid chars in mBuf
+	 */
+	private int mBufLen;
 	
 	/**
 	 * If a file is finished, all following route points are ignored
@@ -53,6 +59,74 @@ public class GpxWriter implements Serializable{
 	 */
 	private boolean mFinished = false;
 	
+	/**
+	 * The open output channel in streaming mode, null otherwise
+	 */
+	private transient Writer mOut;
+	
+	/**
+	 * Decides when buffered contents are pushed to the output channel in streaming mode
+	 */
+	private FlushPolicy mPolicy;
+	
+	/**
+	 * Route points added since the last flush
+	 */
+	private int mPendingPoints;
+	
+	/**
+	 * True, if writing to the file failed at least once
+	 */
+	private boolean mError;
+	
+	/**
+	 * System.nanoTime() of the last flush
+	 */
+	private long mLastFlushNanos;
+	
+	/**
+	 * Day (since epoch, UTC) that mDatePrefix currently holds
+	 */
+	private long mCachedDay = Long.MIN_VALUE;
+	
+	/**
+	 * Cached "yyyy-MM-ddT" part of the ISO-8601 timestamp for mCachedDay
+	 */
+	private final char[] mDatePrefix = new char[11];
+	
+	/**
+	 * Controls how often a streaming GpxWriter pushes its buffer to the file.
+	 * A limit of 0 disables that criterion. The buffer is always flushed on
+	 * flushToFile() and close().
+	 */
+	public static class FlushPolicy implements Serializable {
+		private static final long serialVersionUID = 1797207385734541926L;
+		
+		/**
+		 * Flush once 64 kB are buffered, regardless of points or time
+		 */
+		public static final FlushPolicy DEFAULT = new FlushPolicy(64 * 1024, 0, 0);
+		
+		/**
+		 * Flush once this many chars are buffered
+		 */
+		public final int maxBytes;
+		/**
+		 * Flush once this many route points are buffered
+		 */
+		public final int maxPoints;
+		/**
+		 * Flush if the last flush is older than this many milliseconds
+		 */
+		public final long maxMillis;
+		
+		public FlushPolicy(int maxBytes, int maxPoints, long maxMillis) {
+			this.maxBytes = maxBytes;
+			this.maxPoints = maxPoints;
+			this.maxMillis = maxMillis;
+		}
+	}
+	
 	/**
 	 * Basic constructor
 	 * 
@@ -68,44 +142,82 @@ public class GpxWriter implements Serializable{
 		
 		mFilename = date + "_" + file;
 		mDirectory = dir;
-		mSB = new StringBuilder();
+		mBuf = new char[4096];
+	}
+	
+	/**
+	 * Switches this writer to streaming mode: the target file is opened once and
+	 * kept open until close() is called. Buffered contents are pushed to the file
+	 * whenever the given policy says so, instead of reopening the file on every
+	 * flushToFile().
+	 * 
+	 * @param policy when to push buffered contents, null for FlushPolicy.DEFAULT
+	 * @throws IOException if the file cannot be opened
+	 */
+	public void open(FlushPolicy policy) throws IOException {
+		open(policy, true);
+	}
+	
+	/**
+	 * Like open(FlushPolicy), but an existing file may be replaced.
+	 * 
+	 * @param policy when to push buffered contents, null for FlushPolicy.DEFAULT
+	 * @param append true to append to an existing file, false to replace it
+	 * @throws IOException if the file cannot be opened
+	 */
+	public void open(FlushPolicy policy, boolean append) throws IOException {
+		if(mOut != null)
+			return;
+		mPolicy = (policy != null) ? policy : FlushPolicy.DEFAULT;
+		File measurefile = new File(mDirectory, mFilename);
+		mOut = new OutputStreamWriter(new FileOutputStream(measurefile, append), "UTF-8");
+		mLastFlushNanos = System.nanoTime();
+	}
+	
+	/**
+	 * @return true, if this writer keeps its file open (see open())
+	 */
+	public boolean isStreaming() {
+		return mOut != null;
 	}
 	
 	/**
-	 * Writes a standard GPX file header in the StringBuilder buffer
+	 * Writes a standard GPX file header in the buffer
 	 */
 	public void writeHeader() {
 		Log.i("GpxWriter", "Logging to file: " + mFilename);
-		SimpleDateFormat sDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.GERMANY);
-		String date = sDateFormat.format(mTime);
-		mSB.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n");
-		mSB.append("<gpx version=\"1.1\" creator=\"ElevationLogger v0.1 experimental\">\n");
-		mSB.append("\t<metadata>\n");
-		mSB.append("\t\t<name>" + mFilename + "</name>\n");
-		mSB.append("\t\t<time>" + date + "</time>\n");
-		mSB.append("\t\t<author>\n");
-		mSB.append("\t\t\t<name>ElevationLogger</name>\n");
-		mSB.append("\t\t</author>\n");
-		mSB.append("\t</metadata>\n");
-		mSB.append("\t<trk>\n");
-		mSB.append("\t\t<name>ElevationLogger recording</name>\n");
-		mSB.append("\t\t<desc></desc>\n");
-		mSB.append("\t\t<trkseg>\n");
-	}
-	
-	/**
-	 * Writes a standard GPX file footer in the StringBuilder buffer and declares
+		append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n");
+		append("<gpx version=\"1.1\" creator=\"ElevationLogger v0.1 experimental\">\n");
+		append("\t<metadata>\n");
+		append("\t\t<name>");
+		append(mFilename);
+		append("</name>\n");
+		append("\t\t<time>");
+		appendIsoTime(mTime.getTime());
+		append("</time>\n");
+		append("\t\t<author>\n");
+		append("\t\t\t<name>ElevationLogger</name>\n");
+		append("\t\t</author>\n");
+		append("\t</metadata>\n");
+		append("\t<trk>\n");
+		append("\t\t<name>ElevationLogger recording</name>\n");
+		append("\t\t<desc></desc>\n");
+		append("\t\t<trkseg>\n");
+	}
+	
+	/**
+	 * Writes a standard GPX file footer in the buffer and declares
 	 * this file as finished
 	 */
 	public void writeFooter() {
-		mSB.append("\t\t</trkseg>\n");
-		mSB.append("\t</trk>\n");
-		mSB.append("</gpx>\n");
+		append("\t\t</trkseg>\n");
+		append("\t</trk>\n");
+		append("</gpx>\n");
 		mFinished = true;
 	}
 	
 	/**
-	 * Add a route point to the StringBuidler buffer with the following values:
+	 * Add a route point to the buffer with the following values:
 	 * 
 	 * @param lat the latitude value
 	 * @param lon the longitude value
@@ -113,48 +225,246 @@ public class GpxWriter implements Serializable{
 	 * @param acc the accuracy of lat/lon
 	 * @param mbar the air pressure
 	 * @param time the UTC time of the corresponding GPS fix
+	 * @param osm the id of the nearest OSM node
 	 */
 	public void addRoutePoint(double lat, double lon, double alt, float acc, double mbar, long time, long osm) {
 		if(mFinished)
 			return;
-		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.GERMANY);
-		String isoTime = df.format(new Date(time));
-		mSB.append("\t\t\t<trkpt lat=\"" + lat + "\" lon=\"" + lon + "\">\n");
-		mSB.append("\t\t\t\t<ele>" + alt + "</ele>\n");
-		mSB.append("\t\t\t\t<time>" + isoTime + "</time>\n");
-		mSB.append("\t\t\t\t<extensions>\n");
-		mSB.append("\t\t\t\t\t<accuracy>" + acc + "</accuracy>\n");
-		mSB.append("\t\t\t\t\t<airpressure>" + mbar + "</airpressure>\n");
-		mSB.append("\t\t\t\t\t<nearestosm>" + osm + "</nearestosm>\n");
-		mSB.append("\t\t\t\t</extensions>\n");
-		mSB.append("\t\t\t</trkpt>\n");
+		append("\t\t\t<trkpt lat=\"");
+		appendFixed(lat, 7);
+		append("\" lon=\"");
+		appendFixed(lon, 7);
+		append("\">\n");
+		append("\t\t\t\t<ele>");
+		appendFixed(alt, 2);
+		append("</ele>\n");
+		append("\t\t\t\t<time>");
+		appendIsoTime(time);
+		append("</time>\n");
+		append("\t\t\t\t<extensions>\n");
+		append("\t\t\t\t\t<accuracy>");
+		appendFixed(acc, 1);
+		append("</accuracy>\n");
+		append("\t\t\t\t\t<airpressure>");
+		appendFixed(mbar, 5);
+		append("</airpressure>\n");
+		append("\t\t\t\t\t<nearestosm>");
+		appendLong(osm);
+		append("</nearestosm>\n");
+		append("\t\t\t\t</extensions>\n");
+		append("\t\t\t</trkpt>\n");
+		
+		if(mOut != null) {
+			mPendingPoints++;
+			if(shouldFlush())
+				flushToFile();
+		}
 	}
 	
 	/**
-	 * Takes all contents of the StringBuilder buffer
-	 * and writes it to the storage device, finally clearing
-	 * the StringBuilder buffer
+	 * Takes all contents of the buffer and writes it to the storage device,
+	 * finally clearing the buffer. In streaming mode the contents go to the
+	 * already open file, otherwise the file is opened and closed again.
 	 */
 	public void flushToFile() {
 		try {
-			File measurefile = new File(mDirectory, mFilename);
-			if(!measurefile.exists())
-				if(!measurefile.createNewFile())
-					System.out.println("Couldn't create file");
+			if(mOut != null) {
+				mOut.write(mBuf, 0, mBufLen);
+				mOut.flush();
+				mPendingPoints = 0;
+				mLastFlushNanos = System.nanoTime();
+			} else {
+				File measurefile = new File(mDirectory, mFilename);
+				if(!measurefile.exists())
+					if(!measurefile.createNewFile())
+						System.out.println("Couldn't create file");
+				
+				FileWriter measurefile_writer = new FileWriter(measurefile, true);
+				measurefile_writer.write(mBuf, 0, mBufLen);
+				measurefile_writer.close();
+			}
 			
-			FileWriter measurefile_writer = new FileWriter(measurefile, true);
-			measurefile_writer.append(mSB.toString());
-			measurefile_writer.close();
-			
-			// Clear stringbuilder
-			mSB = new StringBuilder();
+			// Clear buffer
+			mBufLen = 0;
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
+			mError = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			mError = true;
+		}
+	}
+	
+	/**
+	 * Flushes all buffered contents and, in streaming mode, closes the file.
+	 */
+	public void close() {
+		flushToFile();
+		if(mOut == null)
+			return;
+		try {
+			mOut.close();
 		} catch (IOException e) {
 			e.printStackTrace();
+			mError = true;
+		}
+		mOut = null;
+	}
+	
+	private boolean shouldFlush() {
+		if(mPolicy.maxBytes > 0 && mBufLen >= mPolicy.maxBytes)
+			return true;
+		if(mPolicy.maxPoints > 0 && mPendingPoints >= mPolicy.maxPoints)
+			return true;
+		if(mPolicy.maxMillis > 0 && System.nanoTime() - mLastFlushNanos >= mPolicy.maxMillis * 1000000L)
+			return true;
+		return false;
+	}
+	
+	private void ensureCapacity(int extra) {
+		if(mBufLen + extra <= mBuf.length)
+			return;
+		char[] grown = new char[Math.max(mBuf.length * 2, mBufLen + extra)];
+		System.arraycopy(mBuf, 0, grown, 0, mBufLen);
+		mBuf = grown;
+	}
+	
+	private void append(String s) {
+		int len = s.length();
+		ensureCapacity(len);
+		s.getChars(0, len, mBuf, mBufLen);
+		mBufLen += len;
+	}
+	
+	private void append(char c) {
+		ensureCapacity(1);
+		mBuf[mBufLen++] = c;
+	}
+	
+	/**
+	 * Appends the decimal representation of a long value.
+	 */
+	private void appendLong(long v) {
+		if(v == Long.MIN_VALUE) {
+			append(String.valueOf(v));
+			return;
+		}
+		ensureCapacity(20);
+		if(v < 0) {
+			mBuf[mBufLen++] = '-';
+			v = -v;
+		}
+		int start = mBufLen;
+		do {
+			mBuf[mBufLen++] = (char) ('0' + (v % 10));
+			v /= 10;
+		} while(v != 0);
+		// Digits were written in reverse order
+		for(int i = start, j = mBufLen - 1; i < j; i++, j--) {
+			char tmp = mBuf[i];
+			mBuf[i] = mBuf[j];
+			mBuf[j] = tmp;
 		}
 	}
+	
+	/**
+	 * Appends a double rounded to at most the given number of decimals. Trailing
+	 * zeros are dropped, but at least one decimal is kept (e.g. "723.0").
+	 */
+	private void appendFixed(double v, int decimals) {
+		long pow = 1;
+		for(int i = 0; i < decimals; i++)
+			pow *= 10;
+		if(Double.isNaN(v) || Double.isInfinite(v) || Math.abs(v) * pow >= Long.MAX_VALUE) {
+			// Not representable as scaled long, rare enough to allocate
+			append(String.valueOf(v));
+			return;
+		}
+		long scaled = Math.round(Math.abs(v) * pow);
+		if(v < 0 && scaled != 0)
+			append('-');
+		appendLong(scaled / pow);
+		append('.');
+		
+		long frac = scaled % pow;
+		int digits = decimals;
+		while(digits > 1 && frac % 10 == 0) {
+			frac /= 10;
+			digits--;
+		}
+		ensureCapacity(digits);
+		for(int i = mBufLen + digits - 1; i >= mBufLen; i--) {
+			mBuf[i] = (char) ('0' + (frac % 10));
+			frac /= 10;
+		}
+		mBufLen += digits;
+	}
+	
+	/**
+	 * Appends the given UTC time as ISO-8601 timestamp (yyyy-MM-dd'T'HH:mm:ss'Z').
+	 * The date part is computed only when the day changes.
+	 */
+	private void appendIsoTime(long millis) {
+		long day = millis / 86400000L;
+		if(millis % 86400000L < 0)
+			day--;
+		if(day != mCachedDay) {
+			fillDatePrefix(day);
+			mCachedDay = day;
+		}
+		int secOfDay = (int) ((millis - day * 86400000L) / 1000);
+		
+		ensureCapacity(20);
+		System.arraycopy(mDatePrefix, 0, mBuf, mBufLen, mDatePrefix.length);
+		mBufLen += mDatePrefix.length;
+		appendTwoDigits(secOfDay / 3600);
+		mBuf[mBufLen++] = ':';
+		appendTwoDigits((secOfDay / 60) % 60);
+		mBuf[mBufLen++] = ':';
+		appendTwoDigits(secOfDay % 60);
+		mBuf[mBufLen++] = 'Z';
+	}
+	
+	private void appendTwoDigits(int v) {
+		mBuf[mBufLen++] = (char) ('0' + v / 10);
+		mBuf[mBufLen++] = (char) ('0' + v % 10);
+	}
+	
+	/**
+	 * Converts days since 1970-01-01 to a civil date and caches it as "yyyy-MM-ddT".
+	 * See Howard Hinnant's civil_from_days algorithm.
+	 */
+	private void fillDatePrefix(long days) {
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int d = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int m = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int y = (int) (yoe + era * 400 + (m <= 2 ? 1 : 0));
+		
+		mDatePrefix[0] = (char) ('0' + (y / 1000) % 10);
+		mDatePrefix[1] = (char) ('0' + (y / 100) % 10);
+		mDatePrefix[2] = (char) ('0' + (y / 10) % 10);
+		mDatePrefix[3] = (char) ('0' + y % 10);
+		mDatePrefix[4] = '-';
+		mDatePrefix[5] = (char) ('0' + m / 10);
+		mDatePrefix[6] = (char) ('0' + m % 10);
+		mDatePrefix[7] = '-';
+		mDatePrefix[8] = (char) ('0' + d / 10);
+		mDatePrefix[9] = (char) ('0' + d % 10);
+		mDatePrefix[10] = 'T';
+	}
 
+	/**
+	 * @return true, if writing to the file failed at least once
+	 */
+	public boolean hasError() {
+		return mError;
+	}
+	
 	public String getFilename() {
 		return mFilename;
 	}
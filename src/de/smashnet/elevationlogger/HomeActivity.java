@@ -1,8 +1,8 @@
 package de.smashnet.elevationlogger;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.Locale;
 
 import android.app.ActionBar;
@@ -23,6 +23,7 @@ import android.view.Menu;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 
 /**
@@ -33,7 +34,7 @@ import android.widget.TextView;
  * @date 29.12.2013
  */
 public class HomeActivity extends FragmentActivity implements
-		ActionBar.TabListener {
+		ActionBar.TabListener, SensorPublisher.Subscriber {
 
 	/**
 	 * The {@link android.support.v4.view.PagerAdapter} that will provide
@@ -47,11 +48,46 @@ public class HomeActivity extends FragmentActivity implements
 	
 	/**
 	 * Our handler for received Intents. This will be called whenever an Intent
-	 * with an action named "custom-event-name" is broadcasted.
+	 * with an action named "send-trace-list" is broadcasted.
 	 */
-	private BroadcastReceiver mMessageReceiverComplete = new SensorDataCompleteReceiver();
-	private BroadcastReceiver mMessageReceiverPressure = new SensorDataPressureReceiver();
 	private BroadcastReceiver mMessageReceiverTraceList = new TraceListReceiver();
+	
+	/**
+	 * Our handler for Intents named "trace-list-update", broadcasted when a
+	 * trace is added or changed.
+	 */
+	private BroadcastReceiver mMessageReceiverTraceListUpdate = new TraceListUpdateReceiver();
+	
+	/**
+	 * Our handler for Intents named "send-upload-result"
+	 */
+	private BroadcastReceiver mMessageReceiverUploadResult = new UploadResultReceiver();
+	
+	/**
+	 * Rows of the trace list tab, kept while the tab is recreated
+	 */
+	private TraceListAdapter mTraceListAdapter;
+	
+	/**
+	 * Views of the raw value tab, set once the tab is created
+	 */
+	private TextView mLatRes;
+	private TextView mLonRes;
+	private TextView mAltRes;
+	private TextView mAccRes;
+	private TextView mPreRes;
+	private TextView mPreAlt;
+	private TextView mOsmRes;
+	private TextView mDistRes;
+	private TextView mTimRes;
+	
+	/**
+	 * Converts air pressure to altitude, calibrated by accurate fixes
+	 */
+	private final BarometricAltitude mBaroAltitude = new BarometricAltitude();
+	
+	private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("dd.MM.yy HH:mm:ss", Locale.GERMANY);
+	private final Date mTime = new Date();
 
 	/**
 	 * The {@link ViewPager} that will host the section contents.
@@ -102,15 +138,26 @@ public class HomeActivity extends FragmentActivity implements
 					.setTabListener(this));
 		}
 		
+		mTraceListAdapter = new TraceListAdapter(this, new TraceListAdapter.PageLoader() {
+			@Override
+			public void loadPage(int offset, int limit) {
+				// Answered by TraceListReceiver
+				Intent intent = new Intent("get-trace-list");
+				intent.putExtra("Offset", offset);
+				intent.putExtra("Limit", limit);
+				intent.putExtra("NewestFirst", true);
+				LocalBroadcastManager.getInstance(HomeActivity.this).sendBroadcast(intent);
+			}
+		}, SensorService.TRACE_LIST_PAGE_SIZE);
+		
 		// Register to receive messages.
-		// We are registering an observer (mMessageReceiver) to receive Intents
-		// with actions named "sensor-data".
-		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverComplete,
-		    new IntentFilter("sensor-data-complete"));
-		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverPressure,
-			new IntentFilter("sensor-data-pressure"));
+		// Sensor values arrive through the SensorPublisher while we are resumed.
 		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverTraceList,
 				new IntentFilter("send-trace-list"));
+		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverTraceListUpdate,
+				new IntentFilter("trace-list-update"));
+		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverUploadResult,
+				new IntentFilter("send-upload-result"));
 	}
 
 	@Override
@@ -123,11 +170,13 @@ public class HomeActivity extends FragmentActivity implements
 	@Override
 	public void onResume() {
 	  super.onResume();
+	  SensorPublisher.getInstance().subscribe(this);
 	}
 	
 	@Override
 	public void onPause() {
 		super.onPause();
+		SensorPublisher.getInstance().unsubscribe(this);
 	}
 	
 	@Override
@@ -138,6 +187,9 @@ public class HomeActivity extends FragmentActivity implements
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(mMessageReceiverTraceList);
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(mMessageReceiverTraceListUpdate);
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(mMessageReceiverUploadResult);
 	}
 
 	@Override
@@ -182,16 +234,20 @@ public class HomeActivity extends FragmentActivity implements
 	}
 	
 	/**
-	 * This one is invoked if the "Send Results" button is pushed. It processes so far
-	 * unprocessed GPX files written by the SensorService. GPX files are converted into
-	 * simple traces (location,pressure) tuples. (Lat,Lon) locations are mapped to
-	 * nearest OSM node.
+	 * This one is invoked if the "Send Results" button is pushed. It asks the
+	 * SensorService to upload all recorded traces that are not uploaded yet,
+	 * see TraceUploader. The outcome is shown in the event log.
 	 * 
 	 * @param view
 	 */
 	public void onSendResults(View view) {
-		//So far just testing content
-		writeLog("Test");
+		if(!mServiceRunning) {
+			writeLog("Start the SensorService to upload traces");
+			return;
+		}
+		// Answered by UploadResultReceiver
+		LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent("start-upload"));
+		writeLog("Uploading traces...");
 	}
 	
 	/**
@@ -213,127 +269,114 @@ public class HomeActivity extends FragmentActivity implements
 	}
 	
 	/**
-	 * Custom receiver for sensor data from SensorService
+	 * Looks up the views of the raw value tab once, when the tab is created.
+	 * 
+	 * @param rootView the root view of the raw value tab
+	 */
+	void bindRawViews(View rootView) {
+		mLatRes = (TextView) rootView.findViewById(R.id.tv_lat_res);
+		mLonRes = (TextView) rootView.findViewById(R.id.tv_long_res);
+		mAltRes = (TextView) rootView.findViewById(R.id.tv_alt_res);
+		mAccRes = (TextView) rootView.findViewById(R.id.tv_acc_res);
+		mPreRes = (TextView) rootView.findViewById(R.id.tv_air_pressure_res);
+		mPreAlt = (TextView) rootView.findViewById(R.id.tv_air_altitude_res);
+		mOsmRes = (TextView) rootView.findViewById(R.id.tv_osm_id_res);
+		mDistRes = (TextView) rootView.findViewById(R.id.tv_osm_dist_res);
+		mTimRes = (TextView) rootView.findViewById(R.id.tv_time_res);
+	}
+	
+	/**
+	 * Shows the latest sensor values from SensorService in the raw value tab.
+	 * Only the views of changed values are updated.
+	 * 
+	 * @param s the snapshot, only valid during this call
+	 */
+	@Override
+	public void onSensorSnapshot(SensorPublisher.Snapshot s) {
+		if(mLatRes == null)
+			return;
+		
+		if((s.changed & SensorPublisher.CHANGED_FIX) != 0) {
+			mBaroAltitude.calibrate(s.pressure, s.altitude, s.accuracy);
+			mTime.setTime(s.time);
+			
+			mLatRes.setText(String.valueOf(s.latitude));
+			mLonRes.setText(String.valueOf(s.longitude));
+			mAltRes.setText(String.valueOf(s.altitude) + " m");
+			mAccRes.setText(String.valueOf(s.accuracy) + " m");
+			if(s.osmId > 0) {
+				mOsmRes.setText(String.valueOf(s.osmId));
+			} else {
+				mOsmRes.setText("-");
+			}
+			if(s.distance > 0.0) {
+				mDistRes.setText(String.valueOf(s.distance) + " m");
+			} else {
+				mDistRes.setText("-");
+			}
+			mTimRes.setText(mTimeFormat.format(mTime));
+		}
+		
+		if((s.changed & SensorPublisher.CHANGED_PRESSURE) != 0) {
+			mPreRes.setText(String.valueOf(s.pressure) + " mBar");
+			mPreAlt.setText(String.format("%.2f", mBaroAltitude.altitude(s.pressure)) + " m");
+		}
+	}
+	
+	/**
+	 * Custom receiver to receive trace list data from SensorService: pages
+	 * of trace summaries asked for by the trace list adapter.
 	 * @author Nicolas Inden
 	 */
-	public class SensorDataCompleteReceiver extends BroadcastReceiver {
+	public class TraceListReceiver extends BroadcastReceiver {
 
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			double lat, lon, alt, dist;
-			float acc, pressure;
-			long time, osm_id;
-			
-			// Get extra data included in the Intent
-		    lat = intent.getDoubleExtra("lat", -1.0);
-		    if(lat == -1.0)
-		    	return;
-		    lon = intent.getDoubleExtra("lon", -1.0);
-		    if(lon == -1.0)
-		    	return;
-		    alt = intent.getDoubleExtra("alt", -1.0);
-		    if(alt == -1.0)
-		    	return;
-		    acc = intent.getFloatExtra("acc", -1.0f);
-		    if(acc == -1.0f)
-		    	return;
-		    pressure = intent.getFloatExtra("pres", -1.0f);
-		    if(pressure == -1.0f)
-		    	return;
-		    
-		    osm_id = intent.getLongExtra("osm_id", -1);
-		    dist = intent.getDoubleExtra("osm_distance", -1.0d);
-		    
-		    time = intent.getLongExtra("time", 0);
-		    if(time == 0)
-		    	return;
-		    
-		    // Output raw values in raw-value-tab
-		    TextView latRes = (TextView) findViewById(R.id.tv_lat_res);
-		    TextView lonRes = (TextView) findViewById(R.id.tv_long_res);
-		    TextView altRes = (TextView) findViewById(R.id.tv_alt_res);
-		    TextView accRes = (TextView) findViewById(R.id.tv_acc_res);
-		    TextView preRes = (TextView) findViewById(R.id.tv_air_pressure_res);
-		    TextView osmRes = (TextView) findViewById(R.id.tv_osm_id_res);
-		    TextView distRes = (TextView) findViewById(R.id.tv_osm_dist_res);
-		    TextView timRes = (TextView) findViewById(R.id.tv_time_res);
-		    
-		    SimpleDateFormat sDateFormat = new SimpleDateFormat("dd.MM.yy HH:mm:ss", Locale.GERMANY);
-			String date = sDateFormat.format(time);
-		    
-		    latRes.setText(String.valueOf(lat));
-		    lonRes.setText(String.valueOf(lon));
-		    altRes.setText(String.valueOf(alt) + " m");
-		    accRes.setText(String.valueOf(acc) + " m");
-		    preRes.setText(String.valueOf(pressure) + " mBar");
-		    if(osm_id > 0) {
-		    	osmRes.setText(String.valueOf(osm_id));
-		    } else {
-		    	osmRes.setText("-");
-		    }
-		    if(dist > 0.0) {
-		    	distRes.setText(String.valueOf(dist) + " m");
-		    } else {
-		    	distRes.setText("-");
-		    }
-		    timRes.setText(date);
+			@SuppressWarnings("unchecked")
+			ArrayList<TraceSummary> summaries = (ArrayList<TraceSummary>) intent.getSerializableExtra("Summaries");
+			mTraceListAdapter.setPage(intent.getIntExtra("Offset", 0), summaries, intent.getIntExtra("Total", 0));
 		}
 		
 	}
 	
 	/**
-	 * Custom receiver for sensor data from SensorService
+	 * Custom receiver to receive added and changed traces from SensorService
 	 * @author Nicolas Inden
 	 */
-	public class SensorDataPressureReceiver extends BroadcastReceiver {
+	public class TraceListUpdateReceiver extends BroadcastReceiver {
 
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			float pressure;
-			
-			pressure = intent.getFloatExtra("pres", -1.0f);
-		    if(pressure == -1.0f)
-		    	return;
-		    
-		    TextView preRes = (TextView) findViewById(R.id.tv_air_pressure_res);
-		    TextView preAlt = (TextView) findViewById(R.id.tv_air_altitude_res);
-		    preRes.setText(String.valueOf(pressure) + " mBar");
-		    double res = -((Math.pow(pressure/1013.25,1/5.255) - 1) * 288.15)/0.0065;
-		    preAlt.setText(String.format("%.2f", res) + " m");
+			TraceSummary summary = (TraceSummary) intent.getSerializableExtra("Summary");
+			mTraceListAdapter.update(summary, intent.getBooleanExtra("Added", false));
 		}
 		
 	}
 	
 	/**
-	 * Custom receiver to receive trace list data from SensorService
+	 * Custom receiver to receive the outcome of an upload from SensorService
 	 * @author Nicolas Inden
 	 */
-	public class TraceListReceiver extends BroadcastReceiver {
+	public class UploadResultReceiver extends BroadcastReceiver {
 
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			LinearLayout traceLayout = (LinearLayout) findViewById(R.id.linlay_traces);
-			@SuppressWarnings("unchecked")
-			LinkedList<LocationTrace> traces = (LinkedList<LocationTrace>) intent.getSerializableExtra("Traces");
-			
-			for(LocationTrace lt : traces) {
-				StringBuilder sb = new StringBuilder();
-
-				SimpleDateFormat sDateFormat = new SimpleDateFormat("dd.MM.yy-HH:mm", Locale.GERMANY);
-				String date = sDateFormat.format(lt.getDate());
-
-				sb.append(date + " | Length: ");
-				sb.append(lt.getLength());
-				sb.append(" nodes. | Is Uploaded: ");
-				sb.append(lt.isUploaded());
-				
-				TextView tv = new TextView(context);
-				tv.setText(sb.toString());
-				traceLayout.addView(tv);
-			}
+			writeLog(intent.getStringExtra("Result"));
 		}
 		
 	}
+	
+	/**
+	 * Shows the trace list adapter in the trace list tab, when the tab is
+	 * created, and loads its first page unless loaded already.
+	 * 
+	 * @param rootView the root view of the trace list tab
+	 */
+	void bindTraceList(View rootView) {
+		ListView list = (ListView) rootView.findViewById(R.id.list_traces);
+		list.setAdapter(mTraceListAdapter);
+		mTraceListAdapter.load();
+	}
 
 	/**
 	 * A {@link FragmentPagerAdapter} that returns a fragment corresponding to
@@ -419,13 +462,11 @@ public class HomeActivity extends FragmentActivity implements
 		}
 
 		private void onCreateTraceList(View rootView) {
-			// Ask SensorService for current tracelist
-			Intent intent = new Intent("get-trace-list");
-			LocalBroadcastManager.getInstance(rootView.getContext()).sendBroadcast(intent);
+			((HomeActivity) getActivity()).bindTraceList(rootView);
 		}
 
 		private void onCreateRawView(View rootView) {
-			
+			((HomeActivity) getActivity()).bindRawViews(rootView);
 		}
 
 		private void onCreateHome(View rootView) {
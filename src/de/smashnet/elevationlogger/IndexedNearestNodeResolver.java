@@ -0,0 +1,60 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Answers nearest node lookups from an OsmNodeIndex. As long as no index is
+ * set, lookups go to a fallback resolver instead.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class IndexedNearestNodeResolver implements NearestNodeResolver {
+	/**
+	 * The index, may be set from another thread once it is loaded
+	 */
+	private volatile OsmNodeIndex mIndex;
+	/**
+	 * Used while no index is set, may be null
+	 */
+	private NearestNodeResolver mFallback;
+	
+	private final int[] mNode = new int[2];
+	private final double[] mDist = new double[2];
+	
+	/**
+	 * @param index the index, may be null and set later
+	 * @param fallback resolver used while no index is set, may be null
+	 */
+	public IndexedNearestNodeResolver(OsmNodeIndex index, NearestNodeResolver fallback) {
+		mIndex = index;
+		mFallback = fallback;
+	}
+	
+	public void setIndex(OsmNodeIndex index) {
+		mIndex = index;
+	}
+	
+	@Override
+	public boolean resolve(double lat, double lon, double maxDistance, NearestNodeResult result) {
+		OsmNodeIndex index = mIndex;
+		if(index == null) {
+			if(mFallback != null)
+				return mFallback.resolve(lat, lon, maxDistance, result);
+			result.clear();
+			return false;
+		}
+		int found = index.nearest(lat, lon, maxDistance, 2, mNode, mDist);
+		if(found > 0) {
+			result.set(index.getId(mNode[0]), mDist[0], index.getLatitude(mNode[0]),
+					index.getLongitude(mNode[0]), found > 1 ? mDist[1] : Double.POSITIVE_INFINITY);
+			return true;
+		}
+		result.clear();
+		return false;
+	}
+	
+	@Override
+	public void close() {
+		if(mFallback != null)
+			mFallback.close();
+	}
+}
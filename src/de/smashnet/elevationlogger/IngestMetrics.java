@@ -0,0 +1,140 @@
+package de.smashnet.elevationlogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and per-stage latency histograms of the ingest path. Everything is
+ * preallocated and recorded lock-free, so it stays enabled while recording.
+ *
+ * Stages, all in nanoseconds:
+ * <ul>
+ * 	<li>queue: from offering a fix until the matching stage takes it</li>
+ * 	<li>resolve: nearest OSM node lookup</li>
+ * 	<li>publish: reporting the fix to the listener (the UI broadcast)</li>
+ * 	<li>append: appending a recorded fix to the trace, including the
+ * 	journal's group commits</li>
+ * 	<li>close: closing a trace, including archiving it</li>
+ * 	<li>total: from offering a fix until the persistence stage is done
+ * 	with it</li>
+ * </ul>
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class IngestMetrics {
+	public static final int STAGE_QUEUE = 0;
+	public static final int STAGE_RESOLVE = 1;
+	public static final int STAGE_PUBLISH = 2;
+	public static final int STAGE_APPEND = 3;
+	public static final int STAGE_CLOSE = 4;
+	public static final int STAGE_TOTAL = 5;
+	private static final String[] STAGE_NAMES = { "queue", "resolve", "publish", "append", "close", "total" };
+
+	/**
+	 * Fixes offered to the pipeline
+	 */
+	public static final int OFFERED = 0;
+	/**
+	 * Fixes rejected before the pipeline, e.g. without accuracy or altitude
+	 */
+	public static final int REJECTED = 1;
+	/**
+	 * Fixes dropped because the pipeline was full
+	 */
+	public static final int DROPPED = 2;
+	public static final int MATCHED = 3;
+	/**
+	 * Fixes appended to a trace
+	 */
+	public static final int PERSISTED = 4;
+	/**
+	 * Fixes a stage failed on
+	 */
+	public static final int FAILED = 5;
+	/**
+	 * Recording trigger transitions to recording
+	 */
+	public static final int TRIGGER_STARTS = 6;
+	/**
+	 * Recording trigger transitions to not recording
+	 */
+	public static final int TRIGGER_STOPS = 7;
+	public static final int TRACES_STARTED = 8;
+	private static final String[] COUNTER_NAMES = { "offered", "rejected", "dropped", "matched", "persisted",
+		"failed", "triggerStarts", "triggerStops", "tracesStarted" };
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_NAMES.length);
+	private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_NAMES.length];
+	private final long mCreated = System.currentTimeMillis();
+
+	public IngestMetrics() {
+		for(int i = 0; i < mStages.length; i++)
+			mStages[i] = new LatencyHistogram();
+	}
+
+	public void increment(int counter) {
+		mCounters.incrementAndGet(counter);
+	}
+
+	public long get(int counter) {
+		return mCounters.get(counter);
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 */
+	public void record(int stage, long nanos) {
+		mStages[stage].record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(int stage) {
+		return mStages[stage];
+	}
+
+	/**
+	 * @return all counters and a summary of each stage as JSON, latencies in
+	 * 	nanoseconds
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\n\t\"since\" : ").append(mCreated);
+		sb.append(",\n\t\"time\" : ").append(System.currentTimeMillis());
+		sb.append(",\n\t\"counters\" : {");
+		for(int i = 0; i < COUNTER_NAMES.length; i++) {
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("\t\t\"").append(COUNTER_NAMES[i]).append("\" : ").append(mCounters.get(i));
+		}
+		sb.append("\n\t},\n\t\"stages\" : {");
+		for(int s = 0; s < STAGE_NAMES.length; s++) {
+			LatencyHistogram.Snapshot snap = mStages[s].snapshot();
+			sb.append(s == 0 ? "\n" : ",\n");
+			sb.append("\t\t\"").append(STAGE_NAMES[s]).append("\" : { \"count\" : ").append(snap.getCount());
+			sb.append(", \"mean\" : ").append(Math.round(snap.getMean()));
+			for(int p = 0; p < PERCENTILES.length; p++)
+				sb.append(", \"").append(PERCENTILE_NAMES[p]).append("\" : ").append(snap.getValueAtPercentile(PERCENTILES[p]));
+			sb.append(", \"max\" : ").append(snap.getMax()).append(" }");
+		}
+		sb.append("\n\t}\n}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Writes toJson() to a file, replacing it.
+	 */
+	public void writeTo(File file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(toJson());
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package de.smashnet.elevationlogger;
+
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Moves the processing of GPS fixes off the thread delivering them. Fixes are
+ * put into a FixRingBuffer and pass two stages, each running on its own
+ * thread:
+ * <ol>
+ * 	<li>matching: runs the RecordingTrigger, looks up the nearest OSM node,
+ * 	fuses the altitude of recorded fixes and reports the fix to the
+ * 	Listener</li>
+ * 	<li>persistence: starts, extends and closes traces through the Sink</li>
+ * </ol>
+ * Both stages see the fixes in the order they were offered, so the order
+ * within a trace is preserved. Once the ring is full, the DropPolicy decides
+ * whether new fixes are dropped or the offering thread waits. Fixes are only
+ * ever dropped on entry, before the trigger has seen them, so a dropped fix
+ * never leaves a trace half started or closed.
+ * 
+ * Counters and stage latencies are kept in IngestMetrics, see getMetrics().
+ * A fix whose processing throws is counted as failed and skipped; the
+ * exception is logged, at most once per ERROR_LOG_MILLIS and stage.
+ * 
+ * Apart from logging, nothing here depends on Android, so the pipeline can
+ * be driven without a device.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class IngestPipeline {
+	/**
+	 * Fix is not recorded
+	 */
+	static final int ACTION_NONE = 0;
+	/**
+	 * Fix is appended to the current trace
+	 */
+	static final int ACTION_RECORD = 1;
+	/**
+	 * A new trace is started and the fix is appended to it
+	 */
+	static final int ACTION_START = 2;
+	/**
+	 * The current trace is closed, the fix is not recorded
+	 */
+	static final int ACTION_CLOSE = 3;
+	
+	private static final int STAGE_MATCH = 1;
+	private static final int STAGE_PERSIST = 2;
+	
+	/**
+	 * Min time between two logged failures of a stage in milliseconds
+	 */
+	static final long ERROR_LOG_MILLIS = 10000;
+	
+	/**
+	 * What happens to a fix offered while the ring is full
+	 */
+	public enum DropPolicy {
+		/**
+		 * The new fix is dropped and counted, the caller never waits
+		 */
+		DROP_NEWEST,
+		/**
+		 * The caller waits until a slot is free
+		 */
+		BLOCK
+	}
+	
+	/**
+	 * Receives the traces built from the recorded fixes. Called on the
+	 * persistence thread only.
+	 */
+	public interface Sink {
+		void startTrace();
+		void addNode(FixRingBuffer.Fix fix);
+		void closeTrace();
+	}
+	
+	/**
+	 * Receives every matched fix, recorded or not. Called on the matching
+	 * thread, so it must not block for long. The fix must not be kept.
+	 */
+	public interface Listener {
+		void onFix(FixRingBuffer.Fix fix, boolean recording);
+	}
+	
+	private final FixRingBuffer mRing;
+	private final NearestNodeResolver mResolver;
+	private final RecordingTrigger mTrigger;
+	private final Sink mSink;
+	private final Listener mListener;
+	private final DropPolicy mPolicy;
+	/**
+	 * Search radius for the nearest OSM node in meters
+	 */
+	private final double mMaxDistance;
+	
+	private final NearestNodeResult mNearest = new NearestNodeResult();
+	/**
+	 * Fuses the altitude within the current trace, restarted with every trace
+	 * so AltitudeFusion.replay() on the stored trace gives the same values
+	 */
+	private final AltitudeFusion mFusion = new AltitudeFusion();
+	
+	private volatile Thread mMatcher;
+	private volatile Thread mPersister;
+	private volatile boolean mRunning;
+	
+	private final IngestMetrics mMetrics = new IngestMetrics();
+	
+	/**
+	 * Per stage: time of the last logged failure and failures not logged
+	 * since. Each is only used by the thread of its stage.
+	 */
+	private final long[] mLastErrorLog = new long[STAGE_PERSIST + 1];
+	private final int[] mUnloggedErrors = new int[STAGE_PERSIST + 1];
+	
+	/**
+	 * @param resolver finds the nearest OSM node, only used by the matching stage
+	 * @param trigger decides which fixes are recorded
+	 * @param sink receives the recorded traces
+	 * @param listener receives every matched fix, may be null
+	 * @param capacity number of fixes the ring holds
+	 * @param policy what happens when the ring is full
+	 * @param maxDistance search radius for the nearest OSM node in meters
+	 */
+	public IngestPipeline(NearestNodeResolver resolver, RecordingTrigger trigger, Sink sink, Listener listener,
+			int capacity, DropPolicy policy, double maxDistance) {
+		mRing = new FixRingBuffer(capacity, 2);
+		mResolver = resolver;
+		mTrigger = trigger;
+		mSink = sink;
+		mListener = listener;
+		mPolicy = policy;
+		mMaxDistance = maxDistance;
+	}
+	
+	/**
+	 * Starts the stage threads.
+	 */
+	public synchronized void start() {
+		if(mRunning)
+			return;
+		mRunning = true;
+		mMatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runStage(STAGE_MATCH);
+			}
+		}, "IngestMatcher");
+		mPersister = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runStage(STAGE_PERSIST);
+			}
+		}, "IngestPersister");
+		mMatcher.start();
+		mPersister.start();
+	}
+	
+	/**
+	 * Offers a fix to the pipeline. Must always be called from the same
+	 * thread.
+	 * 
+	 * @return false, if the fix was dropped
+	 */
+	public boolean offer(double lat, double lon, double alt, float acc, long time, double pressure) {
+		long now = System.nanoTime();
+		mMetrics.increment(IngestMetrics.OFFERED);
+		FixRingBuffer.Fix fix = mRing.claim();
+		while(fix == null) {
+			if(mPolicy == DropPolicy.DROP_NEWEST || !mRunning) {
+				mMetrics.increment(IngestMetrics.DROPPED);
+				return false;
+			}
+			LockSupport.parkNanos(100000);
+			fix = mRing.claim();
+		}
+		fix.latitude = lat;
+		fix.longitude = lon;
+		fix.altitude = alt;
+		fix.accuracy = acc;
+		fix.time = time;
+		fix.pressure = pressure;
+		fix.osmId = -1;
+		fix.distance = 0;
+		fix.fusedAltitude = Double.NaN;
+		fix.altitudeVariance = Double.NaN;
+		fix.action = ACTION_NONE;
+		fix.offerNanos = now;
+		mRing.publish();
+		LockSupport.unpark(mMatcher);
+		return true;
+	}
+	
+	/**
+	 * Stops the pipeline after all offered fixes have been processed and
+	 * waits for the stage threads to finish. The current trace is left open.
+	 */
+	public void shutdown() {
+		Thread matcher, persister;
+		synchronized(this) {
+			if(!mRunning)
+				return;
+			mRunning = false;
+			matcher = mMatcher;
+			persister = mPersister;
+		}
+		LockSupport.unpark(matcher);
+		LockSupport.unpark(persister);
+		try {
+			matcher.join();
+			persister.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * @return the number of fixes offered so far
+	 */
+	public long getOffered() {
+		return mMetrics.get(IngestMetrics.OFFERED);
+	}
+	
+	/**
+	 * @return the number of fixes dropped because the ring was full
+	 */
+	public long getDropped() {
+		return mMetrics.get(IngestMetrics.DROPPED);
+	}
+	
+	public long getMatched() {
+		return mMetrics.get(IngestMetrics.MATCHED);
+	}
+	
+	/**
+	 * @return the number of fixes handed to the sink
+	 */
+	public long getPersisted() {
+		return mMetrics.get(IngestMetrics.PERSISTED);
+	}
+	
+	/**
+	 * @return the number of fixes the listener or sink failed on
+	 */
+	public long getFailed() {
+		return mMetrics.get(IngestMetrics.FAILED);
+	}
+	
+	/**
+	 * @return counters and stage latencies of this pipeline
+	 */
+	public IngestMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * @return the number of fixes waiting in the ring
+	 */
+	public int getBacklog() {
+		return mRing.size();
+	}
+	
+	/**
+	 * Processes all available fixes for the given stage in batches, parking
+	 * while there are none. The stage ends once the pipeline is stopped and
+	 * everything before it has been processed.
+	 */
+	private void runStage(int stage) {
+		long next = mRing.released(stage) + 1;
+		while(true) {
+			boolean running = mRunning;
+			long available = mRing.available(stage);
+			if(available < next) {
+				if(!running) {
+					if(stage == STAGE_MATCH) {
+						LockSupport.unpark(mPersister);
+						return;
+					}
+					// Everything the matcher released before it ended is visible now
+					if(!mMatcher.isAlive() && mRing.available(stage) < next)
+						return;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+			for(long seq = next; seq <= available; seq++) {
+				try {
+					if(stage == STAGE_MATCH)
+						match(mRing.get(seq));
+					else
+						persist(mRing.get(seq));
+				} catch (RuntimeException e) {
+					mMetrics.increment(IngestMetrics.FAILED);
+					logFailure(stage, e);
+				}
+			}
+			mRing.release(stage, available);
+			next = available + 1;
+			if(stage == STAGE_MATCH)
+				LockSupport.unpark(mPersister);
+		}
+	}
+	
+	private void match(FixRingBuffer.Fix fix) {
+		long start = System.nanoTime();
+		mMetrics.record(IngestMetrics.STAGE_QUEUE, start - fix.offerNanos);
+		switch(mTrigger.update(fix.accuracy)) {
+		case RecordingTrigger.START:
+			fix.action = ACTION_START;
+			mMetrics.increment(IngestMetrics.TRIGGER_STARTS);
+			break;
+		case RecordingTrigger.STOP:
+			fix.action = ACTION_CLOSE;
+			mMetrics.increment(IngestMetrics.TRIGGER_STOPS);
+			break;
+		default:
+			fix.action = mTrigger.isRecording() ? ACTION_RECORD : ACTION_NONE;
+		}
+		
+		if(fix.action == ACTION_START)
+			mFusion.reset();
+		if(fix.action == ACTION_START || fix.action == ACTION_RECORD) {
+			mFusion.update(fix.time, fix.altitude, fix.accuracy, fix.pressure);
+			fix.fusedAltitude = mFusion.getAltitude();
+			fix.altitudeVariance = mFusion.getVariance();
+		}
+		
+		start = System.nanoTime();
+		mResolver.resolve(fix.latitude, fix.longitude, mMaxDistance, mNearest);
+		fix.osmId = mNearest.osmId;
+		fix.distance = mNearest.distance;
+		long end = System.nanoTime();
+		mMetrics.record(IngestMetrics.STAGE_RESOLVE, end - start);
+		mMetrics.increment(IngestMetrics.MATCHED);
+		
+		if(mListener != null) {
+			mListener.onFix(fix, mTrigger.isRecording());
+			mMetrics.record(IngestMetrics.STAGE_PUBLISH, System.nanoTime() - end);
+		}
+	}
+	
+	/**
+	 * Logs a failure of a stage, unless one was logged less than
+	 * ERROR_LOG_MILLIS ago. Suppressed failures are counted in the next entry.
+	 */
+	private void logFailure(int stage, RuntimeException e) {
+		long now = System.currentTimeMillis();
+		if(mLastErrorLog[stage] != 0 && now - mLastErrorLog[stage] < ERROR_LOG_MILLIS) {
+			mUnloggedErrors[stage]++;
+			return;
+		}
+		String name = stage == STAGE_MATCH ? "Matching" : "Persisting";
+		String suppressed = mUnloggedErrors[stage] > 0 ? " (" + mUnloggedErrors[stage] + " more not logged)" : "";
+		Log.e("IngestPipeline", name + " a fix failed" + suppressed, e);
+		mLastErrorLog[stage] = now;
+		mUnloggedErrors[stage] = 0;
+	}
+	
+	private void persist(FixRingBuffer.Fix fix) {
+		long start = System.nanoTime();
+		if(fix.action == ACTION_START) {
+			mSink.startTrace();
+			mMetrics.increment(IngestMetrics.TRACES_STARTED);
+		}
+		// The fix starting a trace is recorded as well
+		if(fix.action == ACTION_START || fix.action == ACTION_RECORD) {
+			mSink.addNode(fix);
+			mMetrics.increment(IngestMetrics.PERSISTED);
+		} else if(fix.action == ACTION_CLOSE) {
+			mSink.closeTrace();
+		}
+		long end = System.nanoTime();
+		if(fix.action == ACTION_CLOSE)
+			mMetrics.record(IngestMetrics.STAGE_CLOSE, end - start);
+		else if(fix.action != ACTION_NONE)
+			mMetrics.record(IngestMetrics.STAGE_APPEND, end - start);
+		mMetrics.record(IngestMetrics.STAGE_TOTAL, end - fix.offerNanos);
+	}
+}
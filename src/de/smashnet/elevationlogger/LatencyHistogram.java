@@ -0,0 +1,157 @@
+package de.smashnet.elevationlogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed number of buckets and a
+ * bounded relative error, in the manner of HdrHistogram. Values below 2^b
+ * have a bucket each; above, every power of two is split into 2^b buckets of
+ * equal width, so a bucket is never wider than 1 / 2^b of its values. With the
+ * default b = 5 that is about 3%. Values above the largest trackable value are
+ * counted in the last bucket.
+ *
+ * Recording is lock-free and allocation-free: a few atomic increments, so it
+ * may stay enabled on hot paths. Snapshots are taken without stopping
+ * recorders, so values recorded meanwhile may or may not be included.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class LatencyHistogram {
+	private final int mSubBucketBits;
+	private final int mSubBuckets;
+	private final long mMaxValue;
+	private final AtomicLongArray mCounts;
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * Tracks up to 2^36 ns (about 68 s) with 5 sub-bucket bits, in 1024
+	 * buckets.
+	 */
+	public LatencyHistogram() {
+		this(5, 36);
+	}
+
+	/**
+	 * @param subBucketBits each power of two is split into 2^subBucketBits
+	 * 	buckets
+	 * @param maxValueBits largest trackable value is 2^maxValueBits - 1
+	 */
+	public LatencyHistogram(int subBucketBits, int maxValueBits) {
+		mSubBucketBits = subBucketBits;
+		mSubBuckets = 1 << subBucketBits;
+		mMaxValue = (1L << maxValueBits) - 1;
+		mCounts = new AtomicLongArray(indexOf(mMaxValue) + 1);
+	}
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param nanos the latency, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long v = Math.max(0, Math.min(nanos, mMaxValue));
+		mCounts.incrementAndGet(indexOf(v));
+		mTotal.addAndGet(v);
+		long max = mMax.get();
+		while(v > max && !mMax.compareAndSet(max, v))
+			max = mMax.get();
+	}
+
+	/**
+	 * Clears all recorded values.
+	 */
+	public void reset() {
+		for(int i = 0; i < mCounts.length(); i++)
+			mCounts.set(i, 0);
+		mTotal.set(0);
+		mMax.set(0);
+	}
+
+	/**
+	 * @return a copy of the current counts
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[mCounts.length()];
+		long count = 0;
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] = mCounts.get(i);
+			count += counts[i];
+		}
+		return new Snapshot(counts, count, mTotal.get(), mMax.get());
+	}
+
+	private int indexOf(long v) {
+		if(v < mSubBuckets)
+			return (int) v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - mSubBucketBits;
+		return (shift + 1) * mSubBuckets + (int) ((v >>> shift) & (mSubBuckets - 1));
+	}
+
+	/**
+	 * @return the largest value that falls into the bucket
+	 */
+	private long highestValueOf(int index) {
+		if(index < mSubBuckets)
+			return index;
+		int shift = index / mSubBuckets - 1;
+		long low = (long) (mSubBuckets + index % mSubBuckets) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	/**
+	 * The counts of a histogram at one point in time.
+	 */
+	public class Snapshot {
+		private final long[] mSnapshotCounts;
+		private final long mCount;
+		private final long mSum;
+		private final long mSnapshotMax;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			mSnapshotCounts = counts;
+			mCount = count;
+			mSum = sum;
+			mSnapshotMax = max;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * @return the mean in nanoseconds, 0 if empty
+		 */
+		public double getMean() {
+			return mCount == 0 ? 0 : (double) mSum / mCount;
+		}
+
+		/**
+		 * @return the largest recorded value in nanoseconds
+		 */
+		public long getMax() {
+			return mSnapshotMax;
+		}
+
+		/**
+		 * @param percentile in [0, 100]
+		 * @return the value in nanoseconds that the given percentage of
+		 * 	recorded values does not exceed, within the bucket precision; 0
+		 * 	if empty
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if(mCount == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+			long seen = 0;
+			for(int i = 0; i < mSnapshotCounts.length; i++) {
+				seen += mSnapshotCounts[i];
+				if(seen >= rank)
+					return Math.min(highestValueOf(i), mSnapshotMax);
+			}
+			return mSnapshotMax;
+		}
+	}
+}
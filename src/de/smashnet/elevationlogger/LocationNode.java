@@ -1,5 +1,7 @@
 package de.smashnet.elevationlogger;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import android.location.Location;
@@ -47,6 +49,15 @@ public class LocationNode implements Serializable{
 	 * The date and time this node was visited.
 	 */
 	private long mDateVisited;
+	/**
+	 * Altitude fused from GPS and air pressure while recording, see
+	 * AltitudeFusion. NaN if there is no estimate.
+	 */
+	private double mFusedAltitude = Double.NaN;
+	/**
+	 * Variance of mFusedAltitude in m^2, NaN if there is no estimate.
+	 */
+	private double mAltitudeVariance = Double.NaN;
 	
 	public LocationNode(Location loc, long osmNode, double dist, double pressure) {
 		setLatitude(loc.getLatitude());
@@ -58,6 +69,25 @@ public class LocationNode implements Serializable{
 		setGPSAltitude(loc.getAltitude());
 		setDateVisited(loc.getTime());
 	}
+	
+	public LocationNode(double lat, double lon, float acc, long osmNode, double dist, double pressure,
+			double gpsAltitude, long time) {
+		setLatitude(lat);
+		setLongitude(lon);
+		setAccuracy(acc);
+		setOSMNode(osmNode);
+		setDistance(dist);
+		setAirPressure(pressure);
+		setGPSAltitude(gpsAltitude);
+		setDateVisited(time);
+	}
+	
+	public LocationNode(double lat, double lon, float acc, long osmNode, double dist, double pressure,
+			double gpsAltitude, long time, double fusedAltitude, double altitudeVariance) {
+		this(lat, lon, acc, osmNode, dist, pressure, gpsAltitude, time);
+		setFusedAltitude(fusedAltitude);
+		setAltitudeVariance(altitudeVariance);
+	}
 
 	/**
 	 * @return the mLatitude
@@ -171,4 +201,50 @@ public class LocationNode implements Serializable{
 		this.mDateVisited = mDateVisited;
 	}
 
+	/**
+	 * @return the fused altitude in meters, NaN if there is no estimate
+	 */
+	public double getFusedAltitude() {
+		return mFusedAltitude;
+	}
+
+	/**
+	 * @param mFusedAltitude the mFusedAltitude to set
+	 */
+	public void setFusedAltitude(double mFusedAltitude) {
+		this.mFusedAltitude = mFusedAltitude;
+	}
+
+	/**
+	 * @return the variance of the fused altitude in m^2, NaN if there is no
+	 * 	estimate
+	 */
+	public double getAltitudeVariance() {
+		return mAltitudeVariance;
+	}
+
+	/**
+	 * @param mAltitudeVariance the mAltitudeVariance to set
+	 */
+	public void setAltitudeVariance(double mAltitudeVariance) {
+		this.mAltitudeVariance = mAltitudeVariance;
+	}
+
+	/**
+	 * Nodes serialized by older versions have no fused altitude, which must
+	 * read as NaN rather than 0.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		mLatitude = fields.get("mLatitude", 0.0);
+		mLongitude = fields.get("mLongitude", 0.0);
+		mAccuracy = fields.get("mAccuracy", 0.0f);
+		mOSMNode = fields.get("mOSMNode", 0L);
+		mDistance = fields.get("mDistance", 0.0);
+		mAirPressure = fields.get("mAirPressure", 0.0);
+		mGPSAltitude = fields.get("mGPSAltitude", 0.0);
+		mDateVisited = fields.get("mDateVisited", 0L);
+		mFusedAltitude = fields.get("mFusedAltitude", Double.NaN);
+		mAltitudeVariance = fields.get("mAltitudeVariance", Double.NaN);
+	}
 }
@@ -1,10 +1,16 @@
 package de.smashnet.elevationlogger;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.LinkedList;
 
+import android.util.Log;
+
 /**
  * Represents a sequence of OSM nodes which the user passed
  * at some point in time. One location-node consists of a OSM
@@ -20,9 +26,29 @@ public class LocationTrace implements Serializable{
 	 */
 	private static final long serialVersionUID = 9004954282610176535L;
 	/**
-	 * The list of nodes this trace consists of.
+	 * The serialized form keeps the node list of older versions, so existing
+	 * DB snapshots stay readable. See writeObject() and readObject().
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("mNodes", LinkedList.class),
+		new ObjectStreamField("mDate", Date.class),
+		new ObjectStreamField("mUploaded", boolean.class),
+		new ObjectStreamField("mId", long.class),
+		new ObjectStreamField("mDir", File.class)
+	};
+	/**
+	 * The nodes this trace consists of, stored column-wise. For archived
+	 * traces this is null until the nodes are needed.
+	 */
+	private transient NodeColumns mNodes;
+	/**
+	 * Archive holding the nodes of this trace, null if not archived.
 	 */
-	private LinkedList<LocationNode> mNodes;
+	private transient TraceArchive mArchive;
+	/**
+	 * Index entry of this trace in mArchive.
+	 */
+	private transient TraceArchive.Entry mEntry;
 	/**
 	 * Date and time when this trace was recorded.
 	 */
@@ -31,6 +57,10 @@ public class LocationTrace implements Serializable{
 	 * True, if this trace has already been uploaded.
 	 */
 	private boolean mUploaded;
+	/**
+	 * Identifies this trace within its TraceDB.
+	 */
+	private long mId;
 
 	File mDir;
 	
@@ -41,40 +71,168 @@ public class LocationTrace implements Serializable{
 	 */
 	public LocationTrace(File dir) {
 		mDir = dir;
-		mNodes = new LinkedList<LocationNode>();
+		mNodes = new NodeColumns();
 		setDate(new Date());
 	}
 	
 	/**
-	 * Adds a LocationNode to this trace and writes appropriate gpx content
-	 * to GpxWriter buffer.
+	 * Creates a trace whose nodes are loaded from an archive on first access.
+	 * 
+	 * @param dir the folder where the gpx of this trace is saved
+	 * @param archive the archive holding the nodes
+	 * @param entry the index entry of this trace
+	 */
+	LocationTrace(File dir, TraceArchive archive, TraceArchive.Entry entry) {
+		mDir = dir;
+		mArchive = archive;
+		mEntry = entry;
+		mId = entry.getId();
+		mDate = new Date(entry.getDate());
+		mUploaded = entry.isUploaded();
+	}
+	
+	/**
+	 * Marks this trace as stored in the given archive. Its nodes may be
+	 * released with unload() from now on.
+	 */
+	void setArchived(TraceArchive archive, TraceArchive.Entry entry) {
+		mArchive = archive;
+		mEntry = entry;
+	}
+	
+	/**
+	 * @return the index entry of this trace, null if not archived yet
+	 */
+	TraceArchive.Entry getArchiveEntry() {
+		return mEntry;
+	}
+	
+	/**
+	 * Decodes the nodes from the archive if this has not happened yet. If
+	 * that fails nothing is kept, so the next call tries again.
+	 * 
+	 * @return the nodes, valid even if unload() is called right after
+	 * @throws IOException if the nodes could not be read from the archive
+	 */
+	private synchronized NodeColumns ensureLoaded() throws IOException {
+		if(mNodes != null)
+			return mNodes;
+		NodeColumns nodes = new NodeColumns();
+		mArchive.load(mEntry, nodes);
+		mNodes = nodes;
+		return nodes;
+	}
+	
+	/**
+	 * @return the nodes to append to
+	 * @throws IllegalStateException if this trace is archived and not loaded
+	 */
+	private synchronized NodeColumns appendTarget() {
+		if(mNodes == null)
+			throw new IllegalStateException("Trace " + mId + " is archived");
+		return mNodes;
+	}
+	
+	/**
+	 * Releases the nodes of an archived trace. They are loaded again when
+	 * needed. Has no effect on traces that are not archived.
+	 */
+	public synchronized void unload() {
+		if(mEntry != null)
+			mNodes = null;
+	}
+	
+	/**
+	 * @return true, if the nodes of this trace are in memory
+	 */
+	public synchronized boolean isLoaded() {
+		return mNodes != null;
+	}
+	
+	/**
+	 * Adds the values of a LocationNode to this trace.
 	 * 
 	 * @param node
 	 */
 	public void addNode(LocationNode node) {
-		mNodes.add(node);
+		appendTarget().add(node);
 	}
 	
 	/**
-	 * @return the list of LocationNodes
+	 * Adds a node given by its values to this trace.
 	 */
-	public LinkedList<LocationNode> getNodes() {
-		return mNodes;
+	public void addNode(double lat, double lon, float acc, long osmNode, double dist, double pressure,
+			double gpsAltitude, long time) {
+		appendTarget().add(lat, lon, acc, osmNode, dist, pressure, gpsAltitude, time);
+	}
+	
+	/**
+	 * @return the column store holding the nodes of this trace
+	 * @throws IOException if the nodes of an archived trace could not be loaded
+	 */
+	public NodeColumns getNodes() throws IOException {
+		return ensureLoaded();
 	}
 	
 	/**
-	 * Create a standard conform GPX file from this trace.
+	 * @return a new cursor over the nodes of this trace
+	 * @throws IOException if the nodes of an archived trace could not be loaded
+	 */
+	public NodeColumns.Cursor cursor() throws IOException {
+		return ensureLoaded().cursor();
+	}
+	
+	/**
+	 * Create a standard conform GPX file from this trace. No file is written
+	 * if the nodes cannot be loaded.
 	 */
 	public void writeToGPXFile() {
+		NodeColumns nodes;
+		try {
+			nodes = ensureLoaded();
+		} catch (IOException e) {
+			Log.e("LocationTrace", "Error loading trace " + mId + ", no GPX written: " + e);
+			return;
+		}
 		GpxWriter gpxWriter = new GpxWriter(getDate(), mDir, "record.gpx");
+		try {
+			gpxWriter.open(GpxWriter.FlushPolicy.DEFAULT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.w("LocationTrace", "Could not open GPX file, buffering the whole trace until close");
+		}
+		writeGPX(gpxWriter, nodes);
+		gpxWriter.close();
+	}
+	
+	/**
+	 * Writes this trace as complete GPX document through the given writer:
+	 * header, one point per node and footer. The writer is not closed.
+	 * 
+	 * @return the number of nodes written
+	 * @throws IOException if the nodes of an archived trace could not be
+	 * 	loaded, nothing is written then
+	 */
+	public int writeGPX(GpxWriter gpxWriter) throws IOException {
+		return writeGPX(gpxWriter, ensureLoaded());
+	}
+	
+	/**
+	 * Writes the given nodes, e.g. a simplified copy of this trace's, the
+	 * same way as writeGPX(GpxWriter).
+	 */
+	int writeGPX(GpxWriter gpxWriter, NodeColumns nodes) {
 		gpxWriter.writeHeader();
 		
-		for(LocationNode node : mNodes) {
+		int count = 0;
+		NodeColumns.Cursor node = nodes.cursor();
+		while(node.moveToNext()) {
 			gpxWriter.addRoutePoint(node.getLatitude(), node.getLongitude(), node.getGPSAltitude(),
 					node.getAccuracy(), node.getAirPressure(), node.getDateVisited(), node.getOSMNode());
-			gpxWriter.flushToFile();
+			count++;
 		}
 		gpxWriter.writeFooter();
+		return count;
 	}
 
 	/**
@@ -91,6 +249,20 @@ public class LocationTrace implements Serializable{
 		this.mUploaded = mUploaded;
 	}
 
+	/**
+	 * @return the mId
+	 */
+	public long getId() {
+		return mId;
+	}
+
+	/**
+	 * @param mId the mId to set
+	 */
+	public void setId(long mId) {
+		this.mId = mId;
+	}
+
 	/**
 	 * @return the mDate
 	 */
@@ -99,7 +271,10 @@ public class LocationTrace implements Serializable{
 	}
 	
 	public int getLength() {
-		return mNodes.size();
+		NodeColumns nodes = mNodes;
+		if(nodes == null)
+			return mEntry.getLength();
+		return nodes.size();
 	}
 
 	/**
@@ -108,4 +283,32 @@ public class LocationTrace implements Serializable{
 	public void setDate(Date mDate) {
 		this.mDate = mDate;
 	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		NodeColumns columns = ensureLoaded();
+		LinkedList<LocationNode> nodes = new LinkedList<LocationNode>();
+		for(int i = 0; i < columns.size(); i++)
+			nodes.add(columns.get(i));
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("mNodes", nodes);
+		fields.put("mDate", mDate);
+		fields.put("mUploaded", mUploaded);
+		fields.put("mId", mId);
+		fields.put("mDir", mDir);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		mNodes = new NodeColumns();
+		LinkedList<LocationNode> nodes = (LinkedList<LocationNode>) fields.get("mNodes", null);
+		if(nodes != null)
+			for(LocationNode node : nodes)
+				mNodes.add(node);
+		mDate = (Date) fields.get("mDate", null);
+		mUploaded = fields.get("mUploaded", false);
+		mId = fields.get("mId", 0L);
+		mDir = (File) fields.get("mDir", null);
+	}
 }
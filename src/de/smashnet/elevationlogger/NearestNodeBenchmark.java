@@ -0,0 +1,66 @@
+package de.smashnet.elevationlogger;
+
+import java.util.Random;
+
+/**
+ * Compares the nearest OSM node lookup through Spatialite (prepared statement)
+ * with the lookup through an OsmNodeIndex. Query points are random offsets of
+ * up to about 50 m around randomly chosen indexed nodes, so both hits and
+ * misses occur.
+ *
+ * Meant to be run on the device, where the Spatialite database is available.
+ * It is not run automatically, as it takes the shared database handle for
+ * some time; call run() from a debug session or an instrumentation test.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class NearestNodeBenchmark {
+
+	/**
+	 * Runs the given number of queries against both lookups.
+	 *
+	 * @param db the open Spatialite database
+	 * @param index the index built over the same node table
+	 * @param queries number of query points
+	 * @param maxDistance search radius in meters
+	 * @return a one-line summary of timings and agreement
+	 */
+	public static String run(jsqlite.Database db, OsmNodeIndex index, int queries, double maxDistance) {
+		if(index.size() == 0)
+			return "Empty node index, nothing to compare";
+		Random rnd = new Random(42);
+		double[] lat = new double[queries];
+		double[] lon = new double[queries];
+		for(int i = 0; i < queries; i++) {
+			int node = rnd.nextInt(index.size());
+			lat[i] = index.getLatitude(node) + (rnd.nextDouble() - 0.5) * 0.0009;
+			lon[i] = index.getLongitude(node) + (rnd.nextDouble() - 0.5) * 0.0014;
+		}
+
+		NearestNodeResolver spatialite = new SpatialiteNearestNodeResolver(db, SensorService.OSM_NODE_TABLE, 0.001);
+		NearestNodeResolver indexed = new IndexedNearestNodeResolver(index, null);
+		NearestNodeResult result = new NearestNodeResult();
+
+		long[] dbIds = new long[queries];
+		long start = System.nanoTime();
+		for(int i = 0; i < queries; i++) {
+			spatialite.resolve(lat[i], lon[i], maxDistance, result);
+			dbIds[i] = result.osmId;
+		}
+		long dbNanos = System.nanoTime() - start;
+		spatialite.close();
+
+		int agree = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < queries; i++) {
+			indexed.resolve(lat[i], lon[i], maxDistance, result);
+			if(result.osmId == dbIds[i])
+				agree++;
+		}
+		long indexNanos = System.nanoTime() - start;
+
+		return String.format("%d queries: Spatialite %.1f us/query, index %.2f us/query, %d agree",
+				queries, dbNanos / 1000.0 / queries, indexNanos / 1000.0 / queries, agree);
+	}
+}
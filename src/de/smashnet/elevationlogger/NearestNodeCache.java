@@ -0,0 +1,286 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Bounded cache in front of a NearestNodeResolver. Locations are quantised
+ * to square cells of a few meters; the answer for a cell is computed once at
+ * the cell center and reused for every location within the cell, as long as
+ * it is guaranteed to be correct there.
+ *
+ * With h the half diagonal of a cell, d1 and d2 the distances from the cell
+ * center to the nearest and second nearest node, a location p within the cell
+ * is at most d1 + h away from the nearest node and at least d2 - h away from
+ * any other node. So if d2 - d1 >= 2h - tolerance, the cached node is never
+ * more than tolerance meters farther from p than the true nearest node. The
+ * distance to p is always computed exactly. Cells that do not satisfy this
+ * are remembered as ambiguous and passed through to the resolver.
+ *
+ * The center lookup uses the search radius enlarged by 2h, so a cell with no
+ * node within that radius has no node within the original radius anywhere.
+ * If the cached node is out of range at p, no other node is within range
+ * either as long as d2 - h >= radius; only then the miss is answered from the
+ * cache. With a tolerance of 0 this always holds, otherwise such lookups are
+ * passed through to the resolver.
+ *
+ * Entries live in an open-addressing table of primitive arrays and are
+ * evicted with the CLOCK algorithm. Not thread-safe.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class NearestNodeCache implements NearestNodeResolver {
+	private static final byte STATE_NODE = 1;
+	private static final byte STATE_NONE = 2;
+	private static final byte STATE_AMBIGUOUS = 3;
+
+	private NearestNodeResolver mDelegate;
+	/**
+	 * Cell edge length in degrees of latitude
+	 */
+	private double mCellDegrees;
+	/**
+	 * Half diagonal of a cell in meters
+	 */
+	private double mHalfDiagonal;
+	/**
+	 * Accepted extra distance of a cached node over the true nearest node
+	 */
+	private double mTolerance;
+
+	private final int mMask;
+	private final int mMaxEntries;
+	private int mEntries;
+	private int mClockHand;
+
+	private final boolean[] mUsed;
+	private final boolean[] mReferenced;
+	private final int[] mRow;
+	private final int[] mCol;
+	private final double[] mRadius;
+	private final byte[] mState;
+	private final long[] mOSMId;
+	private final double[] mNodeLat;
+	private final double[] mNodeLon;
+	/**
+	 * Distance from the cell center to the second nearest node, at most the
+	 * radius of the center lookup
+	 */
+	private final double[] mSecond;
+
+	private final NearestNodeResult mCenter = new NearestNodeResult();
+
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+	private long mPassThroughs;
+
+	/**
+	 * @param delegate the resolver answering cache misses
+	 * @param maxEntries max number of cached cells
+	 * @param cellSize cell edge length in meters
+	 * @param tolerance max distance in meters a cached node may be farther
+	 * 	away than the true nearest node, 0 for exact results
+	 */
+	public NearestNodeCache(NearestNodeResolver delegate, int maxEntries, double cellSize, double tolerance) {
+		mDelegate = delegate;
+		mCellDegrees = cellSize / OsmNodeIndex.METERS_PER_DEGREE;
+		mHalfDiagonal = cellSize * Math.sqrt(2) / 2;
+		mTolerance = tolerance;
+
+		// Keep the table at most half full
+		int capacity = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+		mMask = capacity - 1;
+		mMaxEntries = Math.max(maxEntries, 1);
+		mUsed = new boolean[capacity];
+		mReferenced = new boolean[capacity];
+		mRow = new int[capacity];
+		mCol = new int[capacity];
+		mRadius = new double[capacity];
+		mState = new byte[capacity];
+		mOSMId = new long[capacity];
+		mNodeLat = new double[capacity];
+		mNodeLon = new double[capacity];
+		mSecond = new double[capacity];
+	}
+
+	@Override
+	public boolean resolve(double lat, double lon, double maxDistance, NearestNodeResult result) {
+		int row = (int) Math.floor(lat / mCellDegrees);
+		double cosRow = Math.cos(Math.toRadians((row + 0.5) * mCellDegrees));
+		double colDegrees = mCellDegrees / Math.max(cosRow, 1e-6);
+		int col = (int) Math.floor(lon / colDegrees);
+
+		int slot = find(row, col, maxDistance);
+		if(slot >= 0) {
+			mHits++;
+			mReferenced[slot] = true;
+		} else {
+			mMisses++;
+			slot = insert(row, col, maxDistance, (row + 0.5) * mCellDegrees, (col + 0.5) * colDegrees);
+		}
+
+		switch(mState[slot]) {
+		case STATE_NODE:
+			double d = OsmNodeIndex.distance(lat, lon, mNodeLat[slot], mNodeLon[slot]);
+			if(d < maxDistance) {
+				result.set(mOSMId[slot], d, mNodeLat[slot], mNodeLon[slot], Double.NaN);
+				return true;
+			}
+			// Within tolerance the cached node may not be the nearest, so some
+			// other node can only be ruled out by the distance to the second
+			if(mSecond[slot] - mHalfDiagonal >= maxDistance) {
+				result.clear();
+				return false;
+			}
+			mPassThroughs++;
+			return mDelegate.resolve(lat, lon, maxDistance, result);
+		case STATE_NONE:
+			result.clear();
+			return false;
+		default:
+			mPassThroughs++;
+			return mDelegate.resolve(lat, lon, maxDistance, result);
+		}
+	}
+
+	@Override
+	public void close() {
+		mDelegate.close();
+	}
+
+	public long getHits() {
+		return mHits;
+	}
+
+	public long getMisses() {
+		return mMisses;
+	}
+
+	public long getEvictions() {
+		return mEvictions;
+	}
+
+	/**
+	 * @return the number of lookups in ambiguous cells, answered by the resolver
+	 */
+	public long getPassThroughs() {
+		return mPassThroughs;
+	}
+
+	/**
+	 * @return number of cached cells
+	 */
+	public int size() {
+		return mEntries;
+	}
+
+	/**
+	 * Looks up the cell center and stores the outcome in a new entry.
+	 *
+	 * @return the slot of the new entry
+	 */
+	private int insert(int row, int col, double maxDistance, double centerLat, double centerLon) {
+		double radius = maxDistance + 2 * mHalfDiagonal;
+		mDelegate.resolve(centerLat, centerLon, radius, mCenter);
+
+		if(mEntries >= mMaxEntries)
+			evict();
+		int slot = hash(row, col, maxDistance) & mMask;
+		while(mUsed[slot])
+			slot = (slot + 1) & mMask;
+		mUsed[slot] = true;
+		mReferenced[slot] = false;
+		mRow[slot] = row;
+		mCol[slot] = col;
+		mRadius[slot] = maxDistance;
+		mEntries++;
+
+		if(!mCenter.isFound()) {
+			mState[slot] = STATE_NONE;
+		} else if(Double.isNaN(mCenter.latitude) || Double.isNaN(mCenter.secondDistance)) {
+			// The resolver does not tell enough to prove anything
+			mState[slot] = STATE_AMBIGUOUS;
+		} else {
+			double second = Math.min(mCenter.secondDistance, radius);
+			if(second - mCenter.distance >= 2 * mHalfDiagonal - mTolerance) {
+				mState[slot] = STATE_NODE;
+				mOSMId[slot] = mCenter.osmId;
+				mNodeLat[slot] = mCenter.latitude;
+				mNodeLon[slot] = mCenter.longitude;
+				mSecond[slot] = second;
+			} else {
+				mState[slot] = STATE_AMBIGUOUS;
+			}
+		}
+		return slot;
+	}
+
+	private int find(int row, int col, double radius) {
+		int slot = hash(row, col, radius) & mMask;
+		while(mUsed[slot]) {
+			if(mRow[slot] == row && mCol[slot] == col && mRadius[slot] == radius)
+				return slot;
+			slot = (slot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes one entry chosen by the CLOCK algorithm: entries referenced
+	 * since the hand last passed get a second chance.
+	 */
+	private void evict() {
+		while(true) {
+			int slot = mClockHand;
+			mClockHand = (mClockHand + 1) & mMask;
+			if(!mUsed[slot])
+				continue;
+			if(mReferenced[slot]) {
+				mReferenced[slot] = false;
+				continue;
+			}
+			remove(slot);
+			mEvictions++;
+			return;
+		}
+	}
+
+	/**
+	 * Removes an entry and moves following entries of the same probe
+	 * sequence back, so lookups never hit a gap (no tombstones needed).
+	 */
+	private void remove(int slot) {
+		int hole = slot;
+		int next = slot;
+		while(true) {
+			next = (next + 1) & mMask;
+			if(!mUsed[next])
+				break;
+			int home = hash(mRow[next], mCol[next], mRadius[next]) & mMask;
+			// Move the entry if its home is not cyclically within (hole, next]
+			boolean inRange = (hole <= next) ? (home > hole && home <= next) : (home > hole || home <= next);
+			if(!inRange) {
+				mUsed[hole] = true;
+				mReferenced[hole] = mReferenced[next];
+				mRow[hole] = mRow[next];
+				mCol[hole] = mCol[next];
+				mRadius[hole] = mRadius[next];
+				mState[hole] = mState[next];
+				mOSMId[hole] = mOSMId[next];
+				mNodeLat[hole] = mNodeLat[next];
+				mNodeLon[hole] = mNodeLon[next];
+				mSecond[hole] = mSecond[next];
+				hole = next;
+			}
+		}
+		mUsed[hole] = false;
+		mEntries--;
+	}
+
+	private static int hash(int row, int col, double radius) {
+		long h = ((long) row << 32) ^ (col & 0xffffffffL) ^ Double.doubleToLongBits(radius) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+}
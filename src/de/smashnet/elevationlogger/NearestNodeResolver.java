@@ -0,0 +1,29 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Finds the OSM node nearest to a location.
+ * 
+ * Implementations fill a caller-owned NearestNodeResult, so a lookup per GPS
+ * fix needs no allocation. They are not required to be thread-safe.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public interface NearestNodeResolver {
+	
+	/**
+	 * Looks up the nearest OSM node within maxDistance meters.
+	 * 
+	 * @param lat latitude of the location
+	 * @param lon longitude of the location
+	 * @param maxDistance search radius in meters
+	 * @param result receives the node, cleared if none is found
+	 * @return true, if a node was found
+	 */
+	boolean resolve(double lat, double lon, double maxDistance, NearestNodeResult result);
+	
+	/**
+	 * Releases resources held by this resolver.
+	 */
+	void close();
+}
@@ -0,0 +1,59 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Reusable holder for the result of a NearestNodeResolver lookup.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class NearestNodeResult {
+	/**
+	 * Id of the nearest OSM node, -1 if none was found
+	 */
+	public long osmId = -1;
+	/**
+	 * Distance to the nearest OSM node in meters, -1 if none was found
+	 */
+	public double distance = -1.0d;
+	/**
+	 * Coordinates of the nearest OSM node, NaN if unknown
+	 */
+	public double latitude = Double.NaN;
+	public double longitude = Double.NaN;
+	/**
+	 * Distance to the second nearest OSM node in meters. Infinite if there is
+	 * none within the search radius, NaN if the resolver does not report it.
+	 */
+	public double secondDistance = Double.NaN;
+	
+	/**
+	 * @return true, if a node was found
+	 */
+	public boolean isFound() {
+		return osmId != -1;
+	}
+	
+	public void set(long osmId, double distance) {
+		set(osmId, distance, Double.NaN, Double.NaN, Double.NaN);
+	}
+	
+	public void set(long osmId, double distance, double latitude, double longitude, double secondDistance) {
+		this.osmId = osmId;
+		this.distance = distance;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.secondDistance = secondDistance;
+	}
+	
+	/**
+	 * Marks the result as "no node found". secondDistance becomes infinite,
+	 * as no node lies within the search radius.
+	 */
+	public void clear() {
+		osmId = -1;
+		distance = -1.0d;
+		latitude = Double.NaN;
+		longitude = Double.NaN;
+		secondDistance = Double.POSITIVE_INFINITY;
+	}
+}
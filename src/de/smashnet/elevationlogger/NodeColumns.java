@@ -0,0 +1,306 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Stores the nodes of a trace column by column in primitive arrays instead of
+ * one LocationNode object per node. Each column is split into fixed-size
+ * chunks, so growing never copies node data and a long recording needs no
+ * large contiguous allocation.
+ *
+ * Nodes are read through a Cursor, a reusable flyweight that exposes the
+ * fields of the node it points to without materialising a LocationNode.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class NodeColumns {
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private double[][] mLatitude = new double[4][];
+	private double[][] mLongitude = new double[4][];
+	private float[][] mAccuracy = new float[4][];
+	private long[][] mOSMNode = new long[4][];
+	private double[][] mDistance = new double[4][];
+	private double[][] mAirPressure = new double[4][];
+	private double[][] mGPSAltitude = new double[4][];
+	private long[][] mDateVisited = new long[4][];
+	private double[][] mFusedAltitude = new double[4][];
+	private double[][] mAltitudeVariance = new double[4][];
+
+	/**
+	 * Number of stored nodes
+	 */
+	private int mSize;
+
+	/**
+	 * Appends a node without fused altitude.
+	 */
+	public void add(double lat, double lon, float acc, long osmNode, double dist, double pressure,
+			double gpsAltitude, long time) {
+		add(lat, lon, acc, osmNode, dist, pressure, gpsAltitude, time, Double.NaN, Double.NaN);
+	}
+
+	/**
+	 * Appends a node.
+	 */
+	public void add(double lat, double lon, float acc, long osmNode, double dist, double pressure,
+			double gpsAltitude, long time, double fusedAltitude, double altitudeVariance) {
+		int chunk = mSize >>> CHUNK_SHIFT;
+		int i = mSize & CHUNK_MASK;
+		if(i == 0)
+			addChunk(chunk);
+		mLatitude[chunk][i] = lat;
+		mLongitude[chunk][i] = lon;
+		mAccuracy[chunk][i] = acc;
+		mOSMNode[chunk][i] = osmNode;
+		mDistance[chunk][i] = dist;
+		mAirPressure[chunk][i] = pressure;
+		mGPSAltitude[chunk][i] = gpsAltitude;
+		mDateVisited[chunk][i] = time;
+		mFusedAltitude[chunk][i] = fusedAltitude;
+		mAltitudeVariance[chunk][i] = altitudeVariance;
+		mSize++;
+	}
+
+	/**
+	 * Appends the values of a node. The node itself is not kept.
+	 */
+	public void add(LocationNode node) {
+		add(node.getLatitude(), node.getLongitude(), node.getAccuracy(), node.getOSMNode(),
+				node.getDistance(), node.getAirPressure(), node.getGPSAltitude(), node.getDateVisited(),
+				node.getFusedAltitude(), node.getAltitudeVariance());
+	}
+
+	/**
+	 * @return the number of stored nodes
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Removes all nodes and releases their memory.
+	 */
+	public void clear() {
+		mLatitude = new double[4][];
+		mLongitude = new double[4][];
+		mAccuracy = new float[4][];
+		mOSMNode = new long[4][];
+		mDistance = new double[4][];
+		mAirPressure = new double[4][];
+		mGPSAltitude = new double[4][];
+		mDateVisited = new long[4][];
+		mFusedAltitude = new double[4][];
+		mAltitudeVariance = new double[4][];
+		mSize = 0;
+	}
+
+	public double getLatitude(int index) {
+		return mLatitude[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	public double getLongitude(int index) {
+		return mLongitude[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	public float getAccuracy(int index) {
+		return mAccuracy[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	public long getOSMNode(int index) {
+		return mOSMNode[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	public double getDistance(int index) {
+		return mDistance[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	public double getAirPressure(int index) {
+		return mAirPressure[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	public double getGPSAltitude(int index) {
+		return mGPSAltitude[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	public long getDateVisited(int index) {
+		return mDateVisited[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the fused altitude, NaN if the node has none
+	 */
+	public double getFusedAltitude(int index) {
+		return mFusedAltitude[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the variance of the fused altitude, NaN if the node has none
+	 */
+	public double getAltitudeVariance(int index) {
+		return mAltitudeVariance[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	/**
+	 * Copies the air pressure of count nodes starting at index from into out,
+	 * chunk by chunk.
+	 */
+	public void copyAirPressure(int from, double[] out, int outOffset, int count) {
+		copy(mAirPressure, from, out, outOffset, count);
+	}
+
+	/**
+	 * Materialises the node at the given index. Prefer a Cursor when iterating.
+	 */
+	public LocationNode get(int index) {
+		return new LocationNode(getLatitude(index), getLongitude(index), getAccuracy(index), getOSMNode(index),
+				getDistance(index), getAirPressure(index), getGPSAltitude(index), getDateVisited(index),
+				getFusedAltitude(index), getAltitudeVariance(index));
+	}
+
+	/**
+	 * @return a new cursor positioned before the first node
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	private void addChunk(int chunk) {
+		if(chunk == mLatitude.length) {
+			int n = chunk * 2;
+			mLatitude = grow(mLatitude, n);
+			mLongitude = grow(mLongitude, n);
+			mAccuracy = grow(mAccuracy, n);
+			mOSMNode = grow(mOSMNode, n);
+			mDistance = grow(mDistance, n);
+			mAirPressure = grow(mAirPressure, n);
+			mGPSAltitude = grow(mGPSAltitude, n);
+			mDateVisited = grow(mDateVisited, n);
+			mFusedAltitude = grow(mFusedAltitude, n);
+			mAltitudeVariance = grow(mAltitudeVariance, n);
+		}
+		mLatitude[chunk] = new double[CHUNK_SIZE];
+		mLongitude[chunk] = new double[CHUNK_SIZE];
+		mAccuracy[chunk] = new float[CHUNK_SIZE];
+		mOSMNode[chunk] = new long[CHUNK_SIZE];
+		mDistance[chunk] = new double[CHUNK_SIZE];
+		mAirPressure[chunk] = new double[CHUNK_SIZE];
+		mGPSAltitude[chunk] = new double[CHUNK_SIZE];
+		mDateVisited[chunk] = new long[CHUNK_SIZE];
+		mFusedAltitude[chunk] = new double[CHUNK_SIZE];
+		mAltitudeVariance[chunk] = new double[CHUNK_SIZE];
+	}
+
+	private void copy(double[][] column, int from, double[] out, int outOffset, int count) {
+		if(from < 0 || count < 0 || from + count > mSize)
+			throw new IndexOutOfBoundsException("Nodes " + from + " to " + (from + count) + " of " + mSize);
+		while(count > 0) {
+			int i = from & CHUNK_MASK;
+			int n = Math.min(count, CHUNK_SIZE - i);
+			System.arraycopy(column[from >>> CHUNK_SHIFT], i, out, outOffset, n);
+			from += n;
+			outOffset += n;
+			count -= n;
+		}
+	}
+
+	private static double[][] grow(double[][] a, int n) {
+		double[][] res = new double[n][];
+		System.arraycopy(a, 0, res, 0, a.length);
+		return res;
+	}
+
+	private static float[][] grow(float[][] a, int n) {
+		float[][] res = new float[n][];
+		System.arraycopy(a, 0, res, 0, a.length);
+		return res;
+	}
+
+	private static long[][] grow(long[][] a, int n) {
+		long[][] res = new long[n][];
+		System.arraycopy(a, 0, res, 0, a.length);
+		return res;
+	}
+
+	/**
+	 * Flyweight view on one node of the columns. Typical use:
+	 * <pre>
+	 * NodeColumns.Cursor c = columns.cursor();
+	 * while(c.moveToNext())
+	 *     use(c.getLatitude(), c.getAirPressure());
+	 * </pre>
+	 */
+	public class Cursor {
+		private int mIndex = -1;
+		private int mChunk;
+		private int mOffset;
+
+		/**
+		 * Advances to the next node.
+		 *
+		 * @return false if there is no further node
+		 */
+		public boolean moveToNext() {
+			return moveTo(mIndex + 1);
+		}
+
+		/**
+		 * Positions the cursor on the given node.
+		 *
+		 * @return false if index is out of range
+		 */
+		public boolean moveTo(int index) {
+			if(index < 0 || index >= mSize)
+				return false;
+			mIndex = index;
+			mChunk = index >>> CHUNK_SHIFT;
+			mOffset = index & CHUNK_MASK;
+			return true;
+		}
+
+		public int getPosition() {
+			return mIndex;
+		}
+
+		public double getLatitude() {
+			return mLatitude[mChunk][mOffset];
+		}
+
+		public double getLongitude() {
+			return mLongitude[mChunk][mOffset];
+		}
+
+		public float getAccuracy() {
+			return mAccuracy[mChunk][mOffset];
+		}
+
+		public long getOSMNode() {
+			return mOSMNode[mChunk][mOffset];
+		}
+
+		public double getDistance() {
+			return mDistance[mChunk][mOffset];
+		}
+
+		public double getAirPressure() {
+			return mAirPressure[mChunk][mOffset];
+		}
+
+		public double getGPSAltitude() {
+			return mGPSAltitude[mChunk][mOffset];
+		}
+
+		public long getDateVisited() {
+			return mDateVisited[mChunk][mOffset];
+		}
+
+		public double getFusedAltitude() {
+			return mFusedAltitude[mChunk][mOffset];
+		}
+
+		public double getAltitudeVariance() {
+			return mAltitudeVariance[mChunk][mOffset];
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package de.smashnet.elevationlogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import jsqlite.Stmt;
+
+/**
+ * In-memory nearest neighbour index over OSM nodes. The nodes are sorted into
+ * a uniform grid of lat/lon cells and kept in primitive arrays (coordinates as
+ * integer microdegrees), so a query only looks at the few cells around the
+ * query point and allocates nothing.
+ *
+ * Distances are computed with an equirectangular approximation, which is
+ * accurate to a few millimeters over the short ranges used for map matching.
+ *
+ * The index is either built from the Spatialite node table or read from a
+ * file written by write().
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class OsmNodeIndex {
+	private static final int FILE_MAGIC = 0x454c4e49; // "ELNI"
+	private static final int FILE_VERSION = 1;
+
+	private static final double EARTH_RADIUS = 6371008.8;
+	static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180.0;
+
+	/**
+	 * Default cell edge length in microdegrees (about 550 m north-south)
+	 */
+	public static final int DEFAULT_CELL_SIZE = 5000;
+
+	/**
+	 * Largest number of grid cells, 64 MB of cell offsets. At the default
+	 * cell size this covers about 20 by 20 degrees.
+	 */
+	static final int MAX_CELLS = 1 << 24;
+
+	/**
+	 * OSM ids, ordered by cell
+	 */
+	private long[] mIds;
+	/**
+	 * Latitudes in microdegrees, ordered by cell
+	 */
+	private int[] mLat;
+	/**
+	 * Longitudes in microdegrees, ordered by cell
+	 */
+	private int[] mLon;
+
+	/**
+	 * Edge length of a cell in microdegrees
+	 */
+	private int mCellSize;
+	/**
+	 * Lower left corner of the grid in microdegrees
+	 */
+	private int mMinLat;
+	private int mMinLon;
+	private int mRows;
+	private int mCols;
+	/**
+	 * Nodes of cell c are mIds[mCellStart[c]] to mIds[mCellStart[c + 1] - 1]
+	 */
+	private int[] mCellStart;
+
+	private OsmNodeIndex() {
+	}
+
+	/**
+	 * Builds an index over the given nodes. The arrays are reordered and owned
+	 * by the index afterwards.
+	 *
+	 * @param ids OSM ids
+	 * @param lat latitudes in microdegrees
+	 * @param lon longitudes in microdegrees
+	 * @param count number of valid entries in the arrays
+	 * @param cellSize edge length of a grid cell in microdegrees
+	 * @throws IllegalArgumentException if the nodes span more than MAX_CELLS
+	 * 	cells
+	 */
+	public static OsmNodeIndex build(long[] ids, int[] lat, int[] lon, int count, int cellSize) {
+		OsmNodeIndex idx = new OsmNodeIndex();
+		idx.mCellSize = cellSize;
+		int minLat = Integer.MAX_VALUE, maxLat = Integer.MIN_VALUE;
+		int minLon = Integer.MAX_VALUE, maxLon = Integer.MIN_VALUE;
+		for(int i = 0; i < count; i++) {
+			minLat = Math.min(minLat, lat[i]);
+			maxLat = Math.max(maxLat, lat[i]);
+			minLon = Math.min(minLon, lon[i]);
+			maxLon = Math.max(maxLon, lon[i]);
+		}
+		if(count == 0) {
+			minLat = maxLat = minLon = maxLon = 0;
+		}
+		idx.mMinLat = minLat;
+		idx.mMinLon = minLon;
+		idx.mRows = (int) (((long) maxLat - minLat) / cellSize) + 1;
+		idx.mCols = (int) (((long) maxLon - minLon) / cellSize) + 1;
+		if((long) idx.mRows * idx.mCols > MAX_CELLS)
+			throw new IllegalArgumentException("Node index grid too large: " + idx.mRows + " x " + idx.mCols);
+
+		// Counting sort of all nodes by cell
+		int[] cell = new int[count];
+		int[] start = new int[idx.mRows * idx.mCols + 1];
+		for(int i = 0; i < count; i++) {
+			cell[i] = idx.cellOf(lat[i], lon[i]);
+			start[cell[i] + 1]++;
+		}
+		for(int c = 0; c < idx.mRows * idx.mCols; c++)
+			start[c + 1] += start[c];
+		int[] next = new int[idx.mRows * idx.mCols];
+		System.arraycopy(start, 0, next, 0, next.length);
+		idx.mIds = new long[count];
+		idx.mLat = new int[count];
+		idx.mLon = new int[count];
+		for(int i = 0; i < count; i++) {
+			int pos = next[cell[i]]++;
+			idx.mIds[pos] = ids[i];
+			idx.mLat[pos] = lat[i];
+			idx.mLon[pos] = lon[i];
+		}
+		idx.mCellStart = start;
+		return idx;
+	}
+
+	/**
+	 * Builds an index over all nodes of a Spatialite node table. Stops early
+	 * if the calling thread is interrupted.
+	 *
+	 * @param db the open Spatialite database
+	 * @param table the name of the node table
+	 * @throws jsqlite.Exception also if interrupted
+	 */
+	public static OsmNodeIndex fromDatabase(jsqlite.Database db, String table) throws jsqlite.Exception {
+		long[] ids = new long[1 << 16];
+		int[] lat = new int[1 << 16];
+		int[] lon = new int[1 << 16];
+		int n = 0;
+		Stmt stmt = db.prepare("SELECT osm_id, Y(geometry), X(geometry) FROM '" + table + "';");
+		try {
+			while(stmt.step()) {
+				if(Thread.currentThread().isInterrupted())
+					throw new jsqlite.Exception("Interrupted reading " + table);
+				if(n == ids.length) {
+					ids = grow(ids);
+					lat = grow(lat);
+					lon = grow(lon);
+				}
+				ids[n] = stmt.column_long(0);
+				lat[n] = toMicro(stmt.column_double(1));
+				lon[n] = toMicro(stmt.column_double(2));
+				n++;
+			}
+		} finally {
+			stmt.close();
+		}
+		return build(ids, lat, lon, n, DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Reads an index written by write().
+	 *
+	 * @throws IOException if the file cannot be read, is no index or is
+	 * 	incomplete
+	 */
+	public static OsmNodeIndex read(File file) throws IOException {
+		long length = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if(in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+				throw new IOException("Unknown node index format: " + file);
+			OsmNodeIndex idx = new OsmNodeIndex();
+			idx.mCellSize = in.readInt();
+			idx.mMinLat = in.readInt();
+			idx.mMinLon = in.readInt();
+			idx.mRows = in.readInt();
+			idx.mCols = in.readInt();
+			int count = in.readInt();
+			long cells = (long) idx.mRows * idx.mCols;
+			if(idx.mCellSize <= 0 || idx.mRows < 0 || idx.mCols < 0 || cells > MAX_CELLS || count < 0
+					|| length != 32 + (cells + 1) * 4 + (long) count * 16)
+				throw new IOException("Corrupt node index: " + file);
+			idx.mCellStart = new int[(int) cells + 1];
+			for(int c = 0; c < idx.mCellStart.length; c++)
+				idx.mCellStart[c] = in.readInt();
+			idx.mIds = new long[count];
+			idx.mLat = new int[count];
+			idx.mLon = new int[count];
+			for(int i = 0; i < count; i++) {
+				idx.mIds[i] = in.readLong();
+				idx.mLat[i] = in.readInt();
+				idx.mLon[i] = in.readInt();
+			}
+			for(int c = 0; c < idx.mCellStart.length; c++)
+				if(idx.mCellStart[c] < (c == 0 ? 0 : idx.mCellStart[c - 1]) || idx.mCellStart[c] > count)
+					throw new IOException("Corrupt node index: " + file);
+			if(idx.mCellStart[idx.mCellStart.length - 1] != count)
+				throw new IOException("Corrupt node index: " + file);
+			return idx;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes this index to a file, so it can be loaded without the database.
+	 * The index goes to a temporary file first, which is synced and renamed,
+	 * so after a crash the file is either complete or missing.
+	 *
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(mCellSize);
+			out.writeInt(mMinLat);
+			out.writeInt(mMinLon);
+			out.writeInt(mRows);
+			out.writeInt(mCols);
+			out.writeInt(mIds.length);
+			for(int c = 0; c < mCellStart.length; c++)
+				out.writeInt(mCellStart[c]);
+			for(int i = 0; i < mIds.length; i++) {
+				out.writeLong(mIds[i]);
+				out.writeInt(mLat[i]);
+				out.writeInt(mLon[i]);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp);
+		}
+	}
+
+	/**
+	 * @return the number of indexed nodes
+	 */
+	public int size() {
+		return mIds.length;
+	}
+
+	/**
+	 * @return the OSM id of the node at the given position
+	 */
+	public long getId(int node) {
+		return mIds[node];
+	}
+
+	public double getLatitude(int node) {
+		return mLat[node] * 1e-6;
+	}
+
+	public double getLongitude(int node) {
+		return mLon[node] * 1e-6;
+	}
+
+	/**
+	 * Finds the k nearest nodes within maxDistance meters, ordered by distance.
+	 *
+	 * @param lat latitude of the query point
+	 * @param lon longitude of the query point
+	 * @param maxDistance search radius in meters
+	 * @param k max number of results, at most outNodes.length
+	 * @param outNodes receives the positions of the found nodes (see getId())
+	 * @param outDist receives their distances in meters
+	 * @return the number of nodes found
+	 */
+	public int nearest(double lat, double lon, double maxDistance, int k, int[] outNodes, double[] outDist) {
+		k = Math.min(k, outNodes.length);
+		if(k <= 0)
+			return 0;
+		int found = 0;
+		double cosLat = Math.cos(Math.toRadians(lat));
+		int latLo = toMicro(lat - maxDistance / METERS_PER_DEGREE);
+		int latHi = toMicro(lat + maxDistance / METERS_PER_DEGREE);
+		double lonRange = maxDistance / (METERS_PER_DEGREE * Math.max(cosLat, 1e-6));
+		int lonLo = toMicro(lon - lonRange);
+		int lonHi = toMicro(lon + lonRange);
+
+		int rowLo = Math.max(0, floorDiv(latLo - mMinLat, mCellSize));
+		int rowHi = Math.min(mRows - 1, floorDiv(latHi - mMinLat, mCellSize));
+		int colLo = Math.max(0, floorDiv(lonLo - mMinLon, mCellSize));
+		int colHi = Math.min(mCols - 1, floorDiv(lonHi - mMinLon, mCellSize));
+
+		for(int row = rowLo; row <= rowHi; row++) {
+			for(int col = colLo; col <= colHi; col++) {
+				int c = row * mCols + col;
+				for(int i = mCellStart[c]; i < mCellStart[c + 1]; i++) {
+					double d = distance(lat, lon, cosLat, i);
+					if(d > maxDistance || (found == k && d >= outDist[k - 1]))
+						continue;
+					// Insertion into the sorted result list
+					int pos = (found < k) ? found++ : k - 1;
+					while(pos > 0 && outDist[pos - 1] > d) {
+						outDist[pos] = outDist[pos - 1];
+						outNodes[pos] = outNodes[pos - 1];
+						pos--;
+					}
+					outDist[pos] = d;
+					outNodes[pos] = i;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds all nodes within radius meters, in no particular order.
+	 *
+	 * @return the number of nodes found, at most outNodes.length
+	 */
+	public int withinRadius(double lat, double lon, double radius, int[] outNodes, double[] outDist) {
+		int found = 0;
+		double cosLat = Math.cos(Math.toRadians(lat));
+		double lonRange = radius / (METERS_PER_DEGREE * Math.max(cosLat, 1e-6));
+		int rowLo = Math.max(0, floorDiv(toMicro(lat - radius / METERS_PER_DEGREE) - mMinLat, mCellSize));
+		int rowHi = Math.min(mRows - 1, floorDiv(toMicro(lat + radius / METERS_PER_DEGREE) - mMinLat, mCellSize));
+		int colLo = Math.max(0, floorDiv(toMicro(lon - lonRange) - mMinLon, mCellSize));
+		int colHi = Math.min(mCols - 1, floorDiv(toMicro(lon + lonRange) - mMinLon, mCellSize));
+
+		for(int row = rowLo; row <= rowHi; row++) {
+			for(int col = colLo; col <= colHi; col++) {
+				int c = row * mCols + col;
+				for(int i = mCellStart[c]; i < mCellStart[c + 1] && found < outNodes.length; i++) {
+					double d = distance(lat, lon, cosLat, i);
+					if(d <= radius) {
+						outNodes[found] = i;
+						outDist[found] = d;
+						found++;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the distance in meters between two nearby points
+	 */
+	public static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = lat2 - lat1;
+		double dLon = (lon2 - lon1) * Math.cos(Math.toRadians(lat1));
+		return Math.sqrt(dLat * dLat + dLon * dLon) * METERS_PER_DEGREE;
+	}
+
+	/**
+	 * @return the distance in meters between the query point and a node
+	 */
+	private double distance(double lat, double lon, double cosLat, int node) {
+		double dLat = mLat[node] * 1e-6 - lat;
+		double dLon = (mLon[node] * 1e-6 - lon) * cosLat;
+		return Math.sqrt(dLat * dLat + dLon * dLon) * METERS_PER_DEGREE;
+	}
+
+	private int cellOf(int lat, int lon) {
+		return ((lat - mMinLat) / mCellSize) * mCols + (lon - mMinLon) / mCellSize;
+	}
+
+	private static int floorDiv(int a, int b) {
+		int q = a / b;
+		if((a % b != 0) && ((a < 0) != (b < 0)))
+			q--;
+		return q;
+	}
+
+	private static int toMicro(double deg) {
+		return (int) Math.round(deg * 1e6);
+	}
+
+	private static long[] grow(long[] a) {
+		long[] res = new long[a.length * 2];
+		System.arraycopy(a, 0, res, 0, a.length);
+		return res;
+	}
+
+	private static int[] grow(int[] a) {
+		int[] res = new int[a.length * 2];
+		System.arraycopy(a, 0, res, 0, a.length);
+		return res;
+	}
+}
@@ -0,0 +1,543 @@
+package de.smashnet.elevationlogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Running air pressure statistics per OSM node: count, mean, variance,
+ * minimum and maximum. Kept in an open-addressing hash table with linear
+ * probing, keyed by the primitive OSM node id, so tens of millions of nodes
+ * take 48 bytes each and no objects. The table lives in fixed-size chunks of
+ * ByteBuffers, on the heap or, optionally, off-heap in direct buffers.
+ *
+ * Pressures are quantised to TraceCodec.DEFAULT_PRESSURE_RESOLUTION, the
+ * resolution traces are archived in, and accumulated as integer count, sum
+ * and sum of squares of their offset from a fixed reference pressure. Adding
+ * and merging are therefore exact, associative and commutative: merging
+ * stores built from any split of the same data, in any order, gives the very
+ * same store. The sum of squares overflows after about 10^8 samples of one
+ * node, far more than it will see.
+ *
+ * Stores can be saved to and loaded from snapshot files. They also remember
+ * the highest trace id merged, so new traces can be merged incrementally,
+ * see TraceDB.aggregatePressure().
+ *
+ * Public methods are synchronized, so the store may be used as the sink of
+ * an AnonymisationPipeline.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class PressureAggregateStore implements AnonymisationPipeline.Sink {
+	private static final int FILE_MAGIC = 0x454c5041; // "ELPA"
+	private static final int FILE_VERSION = 1;
+
+	/**
+	 * Pressures are accumulated as offsets from this, in mbar
+	 */
+	private static final double REFERENCE_PRESSURE = 1013.25;
+	private static final double RESOLUTION = TraceCodec.DEFAULT_PRESSURE_RESOLUTION;
+
+	/**
+	 * Slot: key, count, sum, sum of squares, min, max
+	 */
+	private static final int SLOT_SIZE = 6 * 8;
+	private static final int KEY = 0;
+	private static final int COUNT = 8;
+	private static final int SUM = 16;
+	private static final int SUM_SQUARES = 24;
+	private static final int MIN = 32;
+	private static final int MAX = 40;
+
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final double MAX_LOAD = 0.7;
+
+	/**
+	 * Orders the locks of two stores with the same identity hash code
+	 */
+	private static final Object TIE_LOCK = new Object();
+
+	/**
+	 * Statistics of one OSM node.
+	 */
+	public static class Aggregate {
+		private final long mCount;
+		private final double mMean;
+		private final double mVariance;
+		private final double mMin;
+		private final double mMax;
+
+		Aggregate(long count, long sum, long sumSquares, long min, long max) {
+			mCount = count;
+			double mean = (double) sum / count;
+			mMean = REFERENCE_PRESSURE + mean * RESOLUTION;
+			mVariance = count < 2 ? 0 : Math.max(0, (sumSquares - mean * sum) / (count - 1)) * RESOLUTION * RESOLUTION;
+			mMin = REFERENCE_PRESSURE + min * RESOLUTION;
+			mMax = REFERENCE_PRESSURE + max * RESOLUTION;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * @return the mean pressure in mbar
+		 */
+		public double getMean() {
+			return mMean;
+		}
+
+		/**
+		 * @return the sample variance in mbar^2, 0 for a single sample
+		 */
+		public double getVariance() {
+			return mVariance;
+		}
+
+		public double getMin() {
+			return mMin;
+		}
+
+		public double getMax() {
+			return mMax;
+		}
+	}
+
+	/**
+	 * Receives the aggregates of all nodes, see forEach().
+	 */
+	public interface Visitor {
+		void visit(long osmNode, Aggregate aggregate);
+	}
+
+	private final boolean mOffHeap;
+	private ByteBuffer[] mChunks;
+	private int mCapacity;
+	private int mSize;
+	private long mLastTraceId;
+
+	/**
+	 * @param expectedNodes number of OSM nodes to size the table for, it grows
+	 * 	as needed
+	 * @param offHeap true to keep the table in direct buffers outside the heap
+	 */
+	public PressureAggregateStore(int expectedNodes, boolean offHeap) {
+		mOffHeap = offHeap;
+		allocate(capacityFor(expectedNodes));
+	}
+
+	/**
+	 * Adds one pressure sample of an OSM node.
+	 *
+	 * @param osmNode the OSM node id, greater than 0
+	 * @param pressure the air pressure in mbar
+	 */
+	public synchronized void add(long osmNode, double pressure) {
+		if(osmNode <= 0)
+			throw new IllegalArgumentException("Invalid OSM node: " + osmNode);
+		if(Double.isNaN(pressure) || Double.isInfinite(pressure))
+			throw new IllegalArgumentException("Invalid pressure: " + pressure);
+		long q = Math.round((pressure - REFERENCE_PRESSURE) / RESOLUTION);
+		update(osmNode, 1, q, q * q, q, q);
+	}
+
+	/**
+	 * Adds a tuple of an AnonymisationPipeline, the time is not kept.
+	 */
+	@Override
+	public synchronized void accept(long osmNode, double pressure, long time) {
+		add(osmNode, pressure);
+	}
+
+	/**
+	 * Adds all aggregates of another store and takes the higher last trace
+	 * id. The other store must not be modified meanwhile.
+	 */
+	public synchronized void merge(PressureAggregateStore other) {
+		if(other == this)
+			throw new IllegalArgumentException("Cannot merge a store into itself");
+		for(int chunk = 0; chunk < other.mChunks.length; chunk++) {
+			ByteBuffer b = other.mChunks[chunk];
+			for(int pos = 0; pos < b.capacity(); pos += SLOT_SIZE) {
+				long key = b.getLong(pos + KEY);
+				if(key != 0)
+					update(key, b.getLong(pos + COUNT), b.getLong(pos + SUM), b.getLong(pos + SUM_SQUARES),
+							b.getLong(pos + MIN), b.getLong(pos + MAX));
+			}
+		}
+		mLastTraceId = Math.max(mLastTraceId, other.mLastTraceId);
+	}
+
+	/**
+	 * Merges shards into a new store, in parallel: pairs of stores are merged
+	 * concurrently until one is left. The shards are left unchanged. As merging
+	 * is exact, the result does not depend on the number of shards, their
+	 * order or the parallelism.
+	 *
+	 * @param shards the stores to merge
+	 * @param parallelism number of worker threads
+	 * @param offHeap true to keep the result outside the heap
+	 * @return the merged store
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public static PressureAggregateStore mergeAll(List<PressureAggregateStore> shards, int parallelism,
+			final boolean offHeap) throws InterruptedException {
+		if(shards.isEmpty())
+			return new PressureAggregateStore(0, offHeap);
+		ArrayList<PressureAggregateStore> level = new ArrayList<PressureAggregateStore>(shards);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(parallelism, 1));
+		try {
+			// The first round merges into new stores, later ones into those
+			boolean first = true;
+			while(first || level.size() > 1) {
+				ArrayList<Future<PressureAggregateStore>> merged = new ArrayList<Future<PressureAggregateStore>>();
+				for(int i = 0; i < level.size(); i += 2) {
+					final PressureAggregateStore a = level.get(i);
+					final PressureAggregateStore b = i + 1 < level.size() ? level.get(i + 1) : null;
+					final boolean copy = first;
+					merged.add(pool.submit(new Callable<PressureAggregateStore>() {
+						@Override
+						public PressureAggregateStore call() {
+							PressureAggregateStore res = a;
+							if(copy) {
+								res = new PressureAggregateStore(a.size() + (b != null ? b.size() : 0), offHeap);
+								res.merge(a);
+							}
+							if(b != null)
+								res.merge(b);
+							return res;
+						}
+					}));
+				}
+				level.clear();
+				for(Future<PressureAggregateStore> f : merged) {
+					try {
+						level.add(f.get());
+					} catch (ExecutionException e) {
+						throw new IllegalStateException("Error merging pressure aggregates", e.getCause());
+					}
+				}
+				first = false;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return level.get(0);
+	}
+
+	/**
+	 * @return the statistics of an OSM node, null if it has none
+	 */
+	public synchronized Aggregate get(long osmNode) {
+		if(osmNode <= 0)
+			return null;
+		for(int slot = slotOf(osmNode); ; slot = (slot + 1) & (mCapacity - 1)) {
+			ByteBuffer b = mChunks[slot >>> CHUNK_SHIFT];
+			int pos = (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+			long key = b.getLong(pos + KEY);
+			if(key == 0)
+				return null;
+			if(key == osmNode)
+				return aggregateAt(b, pos);
+		}
+	}
+
+	/**
+	 * Hands the statistics of all OSM nodes to the visitor, in no particular
+	 * order.
+	 */
+	public synchronized void forEach(Visitor visitor) {
+		for(ByteBuffer b : mChunks) {
+			for(int pos = 0; pos < b.capacity(); pos += SLOT_SIZE) {
+				long key = b.getLong(pos + KEY);
+				if(key != 0)
+					visitor.visit(key, aggregateAt(b, pos));
+			}
+		}
+	}
+
+	/**
+	 * @return the number of OSM nodes with statistics
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the highest id of the traces merged so far, 0 if none
+	 */
+	public synchronized long getLastTraceId() {
+		return mLastTraceId;
+	}
+
+	public synchronized void setLastTraceId(long traceId) {
+		mLastTraceId = traceId;
+	}
+
+	/**
+	 * @return true, if both stores hold the same statistics and last trace id
+	 */
+	public boolean contentEquals(PressureAggregateStore other) {
+		if(other == this)
+			return true;
+		// Both stores are locked in the same order whichever is asked, so two
+		// threads comparing a pair in opposite directions cannot deadlock
+		int h = System.identityHashCode(this);
+		int oh = System.identityHashCode(other);
+		if(h == oh) {
+			synchronized(TIE_LOCK) {
+				synchronized(this) {
+					synchronized(other) {
+						return sameContent(other);
+					}
+				}
+			}
+		}
+		PressureAggregateStore first = h < oh ? this : other;
+		PressureAggregateStore second = h < oh ? other : this;
+		synchronized(first) {
+			synchronized(second) {
+				return sameContent(other);
+			}
+		}
+	}
+
+	/**
+	 * Compares the contents, with both stores locked.
+	 */
+	private boolean sameContent(PressureAggregateStore other) {
+		if(mSize != other.mSize || mLastTraceId != other.mLastTraceId)
+			return false;
+		for(ByteBuffer b : mChunks) {
+			for(int pos = 0; pos < b.capacity(); pos += SLOT_SIZE) {
+				long key = b.getLong(pos + KEY);
+				if(key == 0)
+					continue;
+				int o = other.find(key);
+				if(o < 0)
+					return false;
+				ByteBuffer ob = other.mChunks[o >>> CHUNK_SHIFT];
+				int opos = (o & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+				for(int f = COUNT; f < SLOT_SIZE; f += 8) {
+					if(b.getLong(pos + f) != ob.getLong(opos + f))
+						return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a snapshot of the store. It goes to a temporary file first,
+	 * which then replaces the given one, so the file holds either the old or
+	 * the new snapshot after a crash.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel ch = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 8 + 8 + 4);
+			header.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+			header.putDouble(REFERENCE_PRESSURE).putDouble(RESOLUTION);
+			header.putLong(mLastTraceId).putInt(mSize);
+			header.flip();
+			while(header.hasRemaining())
+				ch.write(header);
+
+			ByteBuffer buf = ByteBuffer.allocate(1024 * SLOT_SIZE);
+			for(ByteBuffer b : mChunks) {
+				for(int pos = 0; pos < b.capacity(); pos += SLOT_SIZE) {
+					if(b.getLong(pos + KEY) == 0)
+						continue;
+					for(int f = 0; f < SLOT_SIZE; f += 8)
+						buf.putLong(b.getLong(pos + f));
+					if(!buf.hasRemaining())
+						drain(ch, buf);
+				}
+			}
+			drain(ch, buf);
+			ch.force(false);
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(file))
+			throw new IOException("Could not rename " + tmp);
+	}
+
+	/**
+	 * Reads a snapshot written by save().
+	 *
+	 * @param offHeap true to keep the table outside the heap
+	 * @throws IOException if the file cannot be read or is no snapshot
+	 */
+	public static PressureAggregateStore load(File file, boolean offHeap) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel ch = in.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 8 + 8 + 4);
+			fill(ch, header);
+			if(header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION)
+				throw new IOException("Unknown pressure aggregate format: " + file);
+			if(header.getDouble() != REFERENCE_PRESSURE || header.getDouble() != RESOLUTION)
+				throw new IOException("Unsupported pressure aggregate scale: " + file);
+			long lastTraceId = header.getLong();
+			int size = header.getInt();
+
+			PressureAggregateStore res = new PressureAggregateStore(size, offHeap);
+			res.mLastTraceId = lastTraceId;
+			ByteBuffer buf = ByteBuffer.allocate(1024 * SLOT_SIZE);
+			for(int read = 0; read < size; ) {
+				int n = Math.min(1024, size - read);
+				buf.clear();
+				buf.limit(n * SLOT_SIZE);
+				fill(ch, buf);
+				for(int i = 0; i < n; i++)
+					res.update(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+				read += n;
+			}
+			return res;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void drain(FileChannel ch, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while(buf.hasRemaining())
+			ch.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Reads until the buffer is full and flips it.
+	 */
+	private static void fill(FileChannel ch, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(ch.read(buf) < 0)
+				throw new IOException("Pressure aggregate snapshot truncated");
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Adds accumulated values to the slot of a key, creating it if needed.
+	 * The table only grows when a new key does not fit, so updates of
+	 * existing keys never resize it.
+	 */
+	private void update(long key, long count, long sum, long sumSquares, long min, long max) {
+		int slot = probe(key);
+		ByteBuffer b = mChunks[slot >>> CHUNK_SHIFT];
+		int pos = (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+		if(b.getLong(pos + KEY) == key) {
+			b.putLong(pos + COUNT, b.getLong(pos + COUNT) + count);
+			b.putLong(pos + SUM, b.getLong(pos + SUM) + sum);
+			b.putLong(pos + SUM_SQUARES, b.getLong(pos + SUM_SQUARES) + sumSquares);
+			b.putLong(pos + MIN, Math.min(b.getLong(pos + MIN), min));
+			b.putLong(pos + MAX, Math.max(b.getLong(pos + MAX), max));
+			return;
+		}
+		if(mSize + 1 > mCapacity * MAX_LOAD) {
+			grow();
+			slot = probe(key);
+			b = mChunks[slot >>> CHUNK_SHIFT];
+			pos = (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+		}
+		b.putLong(pos + KEY, key);
+		b.putLong(pos + COUNT, count);
+		b.putLong(pos + SUM, sum);
+		b.putLong(pos + SUM_SQUARES, sumSquares);
+		b.putLong(pos + MIN, min);
+		b.putLong(pos + MAX, max);
+		mSize++;
+	}
+
+	/**
+	 * @return the slot of a key, -1 if absent
+	 */
+	private int find(long key) {
+		int slot = probe(key);
+		long k = mChunks[slot >>> CHUNK_SHIFT].getLong((slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE + KEY);
+		return k == key ? slot : -1;
+	}
+
+	/**
+	 * @return the slot of a key, or the empty slot where it would be inserted
+	 */
+	private int probe(long key) {
+		for(int slot = slotOf(key); ; slot = (slot + 1) & (mCapacity - 1)) {
+			long k = mChunks[slot >>> CHUNK_SHIFT].getLong((slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE + KEY);
+			if(k == 0 || k == key)
+				return slot;
+		}
+	}
+
+	private static Aggregate aggregateAt(ByteBuffer b, int pos) {
+		return new Aggregate(b.getLong(pos + COUNT), b.getLong(pos + SUM), b.getLong(pos + SUM_SQUARES),
+				b.getLong(pos + MIN), b.getLong(pos + MAX));
+	}
+
+	/**
+	 * Spreads the bits of sequential ids over the table (MurmurHash3 finalizer).
+	 */
+	private int slotOf(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h & (mCapacity - 1);
+	}
+
+	private static int capacityFor(int nodes) {
+		long needed = (long) Math.ceil(Math.max(nodes, 1) / MAX_LOAD) + 1;
+		int capacity = 16;
+		while(capacity < needed && capacity < MAX_CAPACITY)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		mCapacity = capacity;
+		int chunks = Math.max(1, capacity >>> CHUNK_SHIFT);
+		int chunkBytes = Math.min(capacity, CHUNK_SLOTS) * SLOT_SIZE;
+		mChunks = new ByteBuffer[chunks];
+		for(int i = 0; i < chunks; i++)
+			mChunks[i] = mOffHeap ? ByteBuffer.allocateDirect(chunkBytes) : ByteBuffer.allocate(chunkBytes);
+		mSize = 0;
+	}
+
+	/**
+	 * Doubles the capacity and reinserts all slots.
+	 */
+	private void grow() {
+		if(mCapacity >= MAX_CAPACITY)
+			throw new IllegalStateException("Pressure aggregate table full");
+		ByteBuffer[] old = mChunks;
+		allocate(mCapacity << 1);
+		for(ByteBuffer b : old) {
+			for(int pos = 0; pos < b.capacity(); pos += SLOT_SIZE) {
+				long key = b.getLong(pos + KEY);
+				if(key != 0)
+					update(key, b.getLong(pos + COUNT), b.getLong(pos + SUM), b.getLong(pos + SUM_SQUARES),
+							b.getLong(pos + MIN), b.getLong(pos + MAX));
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Keeps the most recent air pressure samples with their sensor timestamps,
+ * so the pressure at the time of a GPS fix can be estimated instead of
+ * taking whatever value came last.
+ * 
+ * Sensor timestamps use a clock of their own. The offset to the elapsed
+ * realtime clock is estimated from the time each sample is received: the
+ * smallest observed difference is the one with the least delivery delay.
+ * The estimate creeps up by a bounded amount per sample, so drift between
+ * both clocks is tracked as well.
+ * 
+ * Samples live in two primitive arrays used as a ring, nothing is allocated
+ * after construction. Not thread-safe.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class PressureRingBuffer {
+	/**
+	 * Max amount in nanoseconds the offset estimate moves up per sample, so
+	 * delivery jitter barely affects it (20 ppm at the usual 2 Hz)
+	 */
+	private static final long OFFSET_CREEP_NANOS = 10000;
+	
+	private final long[] mTimes;
+	private final float[] mValues;
+	private final int mMask;
+	/**
+	 * Physical index of the oldest sample
+	 */
+	private int mHead;
+	private int mSize;
+	
+	/**
+	 * Elapsed realtime minus sensor time in nanoseconds
+	 */
+	private long mOffset;
+	private boolean mHasOffset;
+	
+	/**
+	 * @param capacity number of samples kept, rounded up to a power of two
+	 */
+	public PressureRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mTimes = new long[size];
+		mValues = new float[size];
+		mMask = size - 1;
+	}
+	
+	/**
+	 * Adds a sample. A sample older than the newest one means the sensor clock
+	 * was reset, so all previous samples are discarded.
+	 * 
+	 * @param sensorNanos timestamp of the sample in the sensor clock
+	 * @param receivedNanos elapsed realtime when the sample was received
+	 * @param pressure air pressure in mbar
+	 */
+	public void add(long sensorNanos, long receivedNanos, float pressure) {
+		if(mSize > 0 && sensorNanos < mTimes[(mHead + mSize - 1) & mMask])
+			clear();
+		
+		long offset = receivedNanos - sensorNanos;
+		if(!mHasOffset || offset < mOffset) {
+			mOffset = offset;
+			mHasOffset = true;
+		} else {
+			mOffset += Math.min(offset - mOffset, OFFSET_CREEP_NANOS);
+		}
+		
+		if(mSize == mTimes.length) {
+			mHead = (mHead + 1) & mMask;
+			mSize--;
+		}
+		int i = (mHead + mSize) & mMask;
+		mTimes[i] = sensorNanos;
+		mValues[i] = pressure;
+		mSize++;
+	}
+	
+	public void clear() {
+		mHead = 0;
+		mSize = 0;
+		mHasOffset = false;
+	}
+	
+	public int size() {
+		return mSize;
+	}
+	
+	/**
+	 * @return the current offset of elapsed realtime to the sensor clock in
+	 * 	nanoseconds
+	 */
+	public long getClockOffset() {
+		return mOffset;
+	}
+	
+	/**
+	 * Estimates the air pressure at the given time. If samples lie within the
+	 * window centered on that time, their mean is returned. Otherwise the
+	 * value is interpolated linearly between the samples around that time, or
+	 * the oldest or newest sample is taken if the time is outside the
+	 * buffered range.
+	 * 
+	 * @param elapsedNanos time in the elapsed realtime clock
+	 * @param windowNanos width of the averaging window, 0 to only interpolate
+	 * @return air pressure in mbar, NaN if there are no samples
+	 */
+	public double pressureAt(long elapsedNanos, long windowNanos) {
+		if(mSize == 0)
+			return Double.NaN;
+		long t = elapsedNanos - mOffset;
+		
+		if(windowNanos > 0) {
+			long from = t - windowNanos / 2;
+			long to = t + windowNanos / 2;
+			double sum = 0;
+			int n = 0;
+			for(int i = firstAtOrAfter(from); i < mSize; i++) {
+				int p = (mHead + i) & mMask;
+				if(mTimes[p] > to)
+					break;
+				sum += mValues[p];
+				n++;
+			}
+			if(n > 0)
+				return sum / n;
+		}
+		
+		int after = firstAtOrAfter(t);
+		if(after == 0)
+			return mValues[mHead];
+		if(after == mSize)
+			return mValues[(mHead + mSize - 1) & mMask];
+		int p1 = (mHead + after - 1) & mMask;
+		int p2 = (mHead + after) & mMask;
+		long t1 = mTimes[p1];
+		long t2 = mTimes[p2];
+		if(t2 == t1)
+			return mValues[p2];
+		double f = (double) (t - t1) / (t2 - t1);
+		return mValues[p1] + (mValues[p2] - mValues[p1]) * f;
+	}
+	
+	/**
+	 * @return the logical index of the first sample at or after the given
+	 * 	sensor time, mSize if there is none
+	 */
+	private int firstAtOrAfter(long sensorNanos) {
+		int lo = 0;
+		int hi = mSize;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(mTimes[(mHead + mid) & mMask] < sensorNanos)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
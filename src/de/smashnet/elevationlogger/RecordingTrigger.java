@@ -0,0 +1,60 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Schmitt trigger deciding whether GPS fixes are recorded. Recording starts
+ * once the accuracy is at least as good as the start threshold and stops once
+ * it gets worse than the stop threshold, so fixes around a single threshold
+ * do not split a trace into many short ones.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class RecordingTrigger {
+	public static final int NO_CHANGE = 0;
+	public static final int START = 1;
+	public static final int STOP = 2;
+	
+	/**
+	 * Recording starts at an accuracy (in meters) of this or better
+	 */
+	private float mStartAccuracy;
+	/**
+	 * Recording stops at an accuracy (in meters) worse than this
+	 */
+	private float mStopAccuracy;
+	
+	private boolean mRecording;
+	
+	public RecordingTrigger() {
+		this(14.0f, 18.0f);
+	}
+	
+	public RecordingTrigger(float startAccuracy, float stopAccuracy) {
+		mStartAccuracy = startAccuracy;
+		mStopAccuracy = stopAccuracy;
+	}
+	
+	/**
+	 * Feeds the accuracy of the next fix into the trigger.
+	 * 
+	 * @param accuracy GPS accuracy in meters
+	 * @return START or STOP if the recording state changed, NO_CHANGE otherwise
+	 */
+	public int update(float accuracy) {
+		if(accuracy <= mStartAccuracy && !mRecording) {
+			mRecording = true;
+			return START;
+		} else if(accuracy > mStopAccuracy && mRecording) {
+			mRecording = false;
+			return STOP;
+		}
+		return NO_CHANGE;
+	}
+	
+	/**
+	 * @return true, if fixes are currently recorded
+	 */
+	public boolean isRecording() {
+		return mRecording;
+	}
+}
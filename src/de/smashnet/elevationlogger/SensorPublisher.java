@@ -0,0 +1,193 @@
+package de.smashnet.elevationlogger;
+
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Channel passing the latest sensor values from the SensorService to the UI.
+ * Publishers only overwrite the fields of a pending snapshot; the snapshot is
+ * delivered to the subscribers on the main thread at most once per minimum
+ * interval, so any number of events in between are coalesced into one update.
+ * While there are no subscribers, published values are discarded and nothing
+ * is scheduled.
+ * 
+ * Publishing is thread-safe and allocation-free. Subscribers are added,
+ * removed and called on the main thread only.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class SensorPublisher {
+	/**
+	 * Snapshot field flag: position values have changed
+	 */
+	public static final int CHANGED_FIX = 1;
+	/**
+	 * Snapshot field flag: air pressure has changed
+	 */
+	public static final int CHANGED_PRESSURE = 2;
+	
+	private static SensorPublisher sInstance;
+	
+	/**
+	 * The latest sensor values. Instances passed to subscribers are reused and
+	 * must not be kept.
+	 */
+	public static class Snapshot {
+		public double latitude;
+		public double longitude;
+		public double altitude;
+		public float accuracy;
+		public long osmId = -1;
+		public double distance;
+		public long time;
+		public float pressure;
+		/**
+		 * CHANGED_* flags of the fields updated since the last delivery
+		 */
+		public int changed;
+		
+		void copyFrom(Snapshot s) {
+			latitude = s.latitude;
+			longitude = s.longitude;
+			altitude = s.altitude;
+			accuracy = s.accuracy;
+			osmId = s.osmId;
+			distance = s.distance;
+			time = s.time;
+			pressure = s.pressure;
+			changed = s.changed;
+		}
+	}
+	
+	/**
+	 * Receives coalesced sensor values on the main thread
+	 */
+	public interface Subscriber {
+		void onSensorSnapshot(Snapshot snapshot);
+	}
+	
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ArrayList<Subscriber> mSubscribers = new ArrayList<Subscriber>();
+	private volatile boolean mActive;
+	
+	/**
+	 * Written by publishers, guarded by mPending
+	 */
+	private final Snapshot mPending = new Snapshot();
+	/**
+	 * Handed to subscribers, main thread only
+	 */
+	private final Snapshot mDelivered = new Snapshot();
+	
+	private boolean mScheduled;
+	private long mLastDelivery;
+	private volatile long mMinInterval = 200;
+	
+	private final Runnable mDeliver = new Runnable() {
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+	
+	private SensorPublisher() {
+	}
+	
+	public static synchronized SensorPublisher getInstance() {
+		if(sInstance == null)
+			sInstance = new SensorPublisher();
+		return sInstance;
+	}
+	
+	/**
+	 * Sets the minimum time between two deliveries.
+	 * 
+	 * @param millis interval in milliseconds
+	 */
+	public void setMinInterval(long millis) {
+		mMinInterval = millis;
+	}
+	
+	/**
+	 * Adds a subscriber. Main thread only.
+	 */
+	public void subscribe(Subscriber s) {
+		if(!mSubscribers.contains(s))
+			mSubscribers.add(s);
+		mActive = true;
+	}
+	
+	/**
+	 * Removes a subscriber. Main thread only.
+	 */
+	public void unsubscribe(Subscriber s) {
+		mSubscribers.remove(s);
+		if(mSubscribers.isEmpty()) {
+			mActive = false;
+			synchronized(mPending) {
+				mPending.changed = 0;
+				mScheduled = false;
+			}
+			mHandler.removeCallbacks(mDeliver);
+		}
+	}
+	
+	/**
+	 * Publishes a new air pressure value.
+	 */
+	public void publishPressure(float pressure) {
+		if(!mActive)
+			return;
+		synchronized(mPending) {
+			mPending.pressure = pressure;
+			mPending.changed |= CHANGED_PRESSURE;
+			schedule();
+		}
+	}
+	
+	/**
+	 * Publishes a new position with its nearest OSM node.
+	 */
+	public void publishFix(double lat, double lon, double alt, float acc, long osmId, double dist, long time) {
+		if(!mActive)
+			return;
+		synchronized(mPending) {
+			mPending.latitude = lat;
+			mPending.longitude = lon;
+			mPending.altitude = alt;
+			mPending.accuracy = acc;
+			mPending.osmId = osmId;
+			mPending.distance = dist;
+			mPending.time = time;
+			mPending.changed |= CHANGED_FIX;
+			schedule();
+		}
+	}
+	
+	/**
+	 * Schedules a delivery unless one is pending. Caller holds mPending.
+	 */
+	private void schedule() {
+		if(mScheduled)
+			return;
+		mScheduled = true;
+		mHandler.postAtTime(mDeliver, Math.max(SystemClock.uptimeMillis(), mLastDelivery + mMinInterval));
+	}
+	
+	private void deliver() {
+		synchronized(mPending) {
+			mScheduled = false;
+			if(mPending.changed == 0)
+				return;
+			mDelivered.copyFrom(mPending);
+			mPending.changed = 0;
+			mLastDelivery = SystemClock.uptimeMillis();
+		}
+		for(int i = 0; i < mSubscribers.size(); i++)
+			mSubscribers.get(i).onSensorSnapshot(mDelivered);
+	}
+}
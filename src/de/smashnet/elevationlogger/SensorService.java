@@ -1,10 +1,21 @@
 package de.smashnet.elevationlogger;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import jsqlite.Exception;
-import jsqlite.Stmt;
+import android.annotation.TargetApi;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -17,9 +28,11 @@ import android.hardware.SensorManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
@@ -63,24 +76,97 @@ public class SensorService extends Service
 	float mCurrentPressure = 0.0f;
 	
 	/**
-	 * Used to Schmitt-triggering data recording
+	 * Recent air pressure samples, to look up the pressure at the time of a fix
 	 */
-	boolean mRecording;
+	private final PressureRingBuffer mPressureSamples = new PressureRingBuffer(64);
+	
+	/**
+	 * Width of the window air pressure is averaged over at a fix, in nanoseconds
+	 */
+	private static final long PRESSURE_WINDOW_NANOS = 1000000000L;
 	
 	/**
 	 * The trace DB
 	 */
 	TraceDB mTraceDB;
 	
+	/**
+	 * Interval of trace DB checkpoints in milliseconds, the most recording a
+	 * killed service can lose
+	 */
+	private static final long CHECKPOINT_MILLIS = 2000;
+	/**
+	 * How long a destroyed service waits for its upload to stop before the
+	 * trace DB is closed anyway
+	 */
+	private static final long UPLOAD_STOP_SECONDS = 10;
+	/**
+	 * Number of trace summaries answered per trace list query by default
+	 */
+	public static final int TRACE_LIST_PAGE_SIZE = 100;
+	
 	/**
 	 * Spatialite Database
 	 */
 	jsqlite.Database mDatabase;
 	
+	/**
+	 * Spatialite table holding the OSM nodes
+	 */
+	static final String OSM_NODE_TABLE = "regbez-koeln_nodes";
+	
+	/**
+	 * Finds the nearest OSM node, from the in-memory index once it is loaded
+	 */
+	IndexedNearestNodeResolver mNodeResolver;
+	
+	/**
+	 * Cache in front of mNodeResolver, used for all lookups
+	 */
+	NearestNodeCache mNodeCache;
+	
+	/**
+	 * Matches and records fixes off the main thread
+	 */
+	IngestPipeline mPipeline;
+	
 	/**
 	 * Receives query from HomeActivity to send current TraceList
 	 */
 	private BroadcastReceiver mMessageReceiverGetTraceList;
+	
+	/**
+	 * Receives queries for the ingest metrics
+	 */
+	private BroadcastReceiver mMessageReceiverGetMetrics;
+	
+	/**
+	 * Receives requests from HomeActivity to upload the recorded traces
+	 */
+	private BroadcastReceiver mMessageReceiverStartUpload;
+	
+	/**
+	 * Uploads traces to the endpoint in R.string.upload_endpoint, null if
+	 * none is configured
+	 */
+	TraceUploader mUploader;
+	
+	/**
+	 * Runs one upload at a time off the main thread
+	 */
+	private ExecutorService mUploadExecutor;
+	
+	/**
+	 * Builds or reads the OSM node index in the background, null if not
+	 * started. Interrupted and joined before the database is closed.
+	 */
+	private Thread mIndexLoader;
+	
+	/**
+	 * Closes the trace DB of a destroyed instance after its upload stopped,
+	 * null if none did so yet. Only used on the main thread.
+	 */
+	private static Thread sClosing;
 
 	@Override
 	public IBinder onBind(Intent intent) {
@@ -107,16 +193,59 @@ public class SensorService extends Service
 		// Unregister sensors and finish GPX file
 		mSensorManager.unregisterListener(this);
 		mLocationManager.removeUpdates(this);
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(mMessageReceiverGetMetrics);
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(mMessageReceiverStartUpload);
+		// Process the remaining fixes before the resolver and DB go away
+		mPipeline.shutdown();
+		Log.i("SensorService", "Ingest pipeline: " + mPipeline.getOffered() + " offered, "
+				+ mPipeline.getDropped() + " dropped, " + mPipeline.getPersisted() + " persisted");
+		Log.i("SensorService", "Nearest node cache: " + mNodeCache.getHits() + " hits, "
+				+ mNodeCache.getMisses() + " misses, " + mNodeCache.getEvictions() + " evictions");
+		writeMetrics();
+		// The loader reads the database, and must not publish into a closed cache
+		if(mIndexLoader != null) {
+			mIndexLoader.interrupt();
+			boolean interrupted = false;
+			while(true) {
+				try {
+					mIndexLoader.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+		mNodeCache.close();
 		try {
 			mDatabase.close();
 		} catch (Exception e) {
 			e.printStackTrace();
 			Log.w("SensorService", "Error closing database!");
 		}
-		//Serialize trace DB to storage
-		mTraceDB.writeTraceDBFile();
-		
-		Log.i("SensorService", "Service stopped!");
+		// Stop uploading, the next upload resumes. The DB is closed once the
+		// upload has stopped, without blocking the main thread meanwhile.
+		if(mUploader != null)
+			mUploader.cancel();
+		final ExecutorService uploads = mUploadExecutor;
+		final TraceDB db = mTraceDB;
+		sClosing = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				uploads.shutdownNow();
+				try {
+					if(!uploads.awaitTermination(UPLOAD_STOP_SECONDS, TimeUnit.SECONDS))
+						Log.w("SensorService", "Upload still running, closing trace DB anyway");
+				} catch (InterruptedException e) {
+					// Close right away
+				}
+				//Commit and close trace DB
+				db.close();
+				Log.i("SensorService", "Service stopped!");
+			}
+		}, "TraceDBClose");
+		sClosing.start();
 	}
 	
 	/**
@@ -131,14 +260,38 @@ public class SensorService extends Service
 	@Override
     public int onStartCommand(Intent intent, int flags, int startId) {
 		Log.i("SensorService", "Received start id " + startId + ": " + intent);
-		mRecording = false;
 		
+		// A destroyed instance may still be closing the same DB files
+		if(sClosing != null) {
+			try {
+				sClosing.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sClosing = null;
+		}
 		mTraceDB = new TraceDB(this, "traces.db");
+		mTraceDB.startCheckpoints(CHECKPOINT_MILLIS);
+		mTraceDB.setListener(new TraceListUpdater(getApplicationContext()));
 		
 		mMessageReceiverGetTraceList = new GetTraceListReceiver(mTraceDB);
 		
 		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverGetTraceList,
 			    new IntentFilter("get-trace-list"));
+		
+		String endpoint = getString(R.string.upload_endpoint);
+		if(endpoint.length() > 0) {
+			try {
+				mUploader = new TraceUploader(mTraceDB, new TraceUploader.Config(new URL(endpoint)),
+						new File(getStorageDir("ElevationLog","db"), "traces.db.upload"));
+			} catch (MalformedURLException e) {
+				Log.w("SensorService", "Invalid upload endpoint: " + endpoint);
+			}
+		}
+		mUploadExecutor = Executors.newSingleThreadExecutor();
+		mMessageReceiverStartUpload = new StartUploadReceiver();
+		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverStartUpload,
+				new IntentFilter("start-upload"));
         
 		// Init air pressure sensor
 		mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
@@ -146,14 +299,6 @@ public class SensorService extends Service
 		mSensorManager.registerListener(this, mPressure, 500000); // 500ms
 		Log.i("SensorService", "Started air pressure");
 			    
-		// Init GPS
-		mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-		mProvider = LocationManager.GPS_PROVIDER;
-		if(mProvider != null){
-			mLocationManager.requestLocationUpdates(mProvider, 400, 0, this);
-			Log.i("SensorService", "Started GPS");
-		}
-		
 		//Init Spatialite database
 		mDatabase = new jsqlite.Database();
 		try {
@@ -163,6 +308,27 @@ public class SensorService extends Service
 			e.printStackTrace();
 			Log.w("SensorService", "Error opening spatialite database!");
 		}
+		mNodeResolver = new IndexedNearestNodeResolver(null,
+				new SpatialiteNearestNodeResolver(mDatabase, OSM_NODE_TABLE, 0.001));
+		mNodeCache = new NearestNodeCache(mNodeResolver, 4096, 4.0, 0.0);
+		loadNodeIndex();
+		
+		// Raw nodes are recorded, exports may be simplified (TraceExporter.setSimplifier())
+		mPipeline = new IngestPipeline(mNodeCache, new RecordingTrigger(14.0f, 18.0f), new TraceDBSink(mTraceDB),
+				new FixPublisher(), 256, IngestPipeline.DropPolicy.DROP_NEWEST, 30);
+		mPipeline.start();
+		
+		mMessageReceiverGetMetrics = new GetMetricsReceiver(mPipeline.getMetrics());
+		LocalBroadcastManager.getInstance(this).registerReceiver(mMessageReceiverGetMetrics,
+				new IntentFilter("get-ingest-metrics"));
+		
+		// Init GPS
+		mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+		mProvider = LocationManager.GPS_PROVIDER;
+		if(mProvider != null){
+			mLocationManager.requestLocationUpdates(mProvider, 400, 0, this);
+			Log.i("SensorService", "Started GPS");
+		}
 			    
 		// GpxWriter is initialized in onLocationChanged()
 		
@@ -178,7 +344,7 @@ public class SensorService extends Service
 	}
 
 	/**
-	 * We use this function to broadcast air pressure values to the HomeActivity to have
+	 * We use this function to publish air pressure values to the HomeActivity to have
 	 * a more frequent update for the air pressure. Nevertheless, no data recording here
 	 * without a position.
 	 * 
@@ -187,15 +353,14 @@ public class SensorService extends Service
 	@Override
 	public void onSensorChanged(SensorEvent event) {
 		mCurrentPressure = event.values[0];
-		Intent intent = new Intent("sensor-data-pressure");
-		intent.putExtra("pres", mCurrentPressure);
-		LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+		mPressureSamples.add(event.timestamp, elapsedNanos(), mCurrentPressure);
+		SensorPublisher.getInstance().publishPressure(mCurrentPressure);
 	}
 
 	/**
-	 * This is invoked each time we receive a new location from the LocationManager. The values
-	 * are stored into a GPX file and additionally are broadcasted to the HomeActivity
-	 * for displaying purposes.
+	 * This is invoked each time we receive a new location from the LocationManager. Complete
+	 * fixes are handed to the ingest pipeline, which matches them to OSM nodes, records them
+	 * and publishes them to the HomeActivity for displaying purposes.
 	 * 
 	 * @param location the location object
 	 */
@@ -211,84 +376,112 @@ public class SensorService extends Service
 				location.setSpeed(0.0f);
 				mCurrentPressure = 980.0f;
 			} else {
+				mPipeline.getMetrics().increment(IngestMetrics.REJECTED);
 				return;
 			}
 		}
 		
-		// Schmitt-trigger data recording depending on GPS accuracy
-		if(location.getAccuracy() <= 14.0 && !mRecording){
-			mRecording = true;
-			mTraceDB.startNewCurrentTrace();
-		}else if(location.getAccuracy() > 18.0 && mRecording){
-			mRecording = false;
-			mTraceDB.closeCurrentTrace();
-		}
+		// Air pressure at the time of the fix, averaged over the samples around it
+		double pressure = mPressureSamples.pressureAt(fixElapsedNanos(location), PRESSURE_WINDOW_NANOS);
+		if(Double.isNaN(pressure))
+			pressure = mCurrentPressure;
 		
-		String res = getNearestOSMNode(location, 0.001, 30, 1);
-		long osm_id = -1;
-		double dist = -1.0d;
-		if(res != null){
-			osm_id = Long.valueOf(res.split(",")[0]);
-			dist = Double.valueOf(res.split(",")[1]);
-		}
-		
-		// Broadcast sensor-data to HomeActivity
-		Intent intent = new Intent("sensor-data-complete");
-		intent.putExtra("lat", location.getLatitude());
-		intent.putExtra("lon", location.getLongitude());
-		intent.putExtra("alt", location.getAltitude());
-		intent.putExtra("acc", location.getAccuracy());
-		intent.putExtra("pres", mCurrentPressure);
-		intent.putExtra("osm_id", osm_id);
-		intent.putExtra("osm_distance", dist);
-		intent.putExtra("time", location.getTime());
-		LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-		
-		// Sensor data log output
-		Log.i("SensorService", "Lat: " + location.getLatitude());
-		Log.i("SensorService", "Lon: " + location.getLongitude());
-	    Log.i("SensorService", "Alt: " + location.getAltitude());
-	    Log.i("SensorService", "Acc: " + location.getAccuracy());
-	    Log.i("SensorService", "Pres: " + mCurrentPressure);
-	    Log.i("SensorService", "Osm_id: " + osm_id);
-	    Log.i("SensorService", "Dist: " + dist);
-	    Log.i("SensorService", "Time: " + location.getTime());
-	    
-	    // Save sensor-data if GPS accuracy is <= 15 meters
-	    if(!mRecording)
-			return;
-	    
-	 	mTraceDB.addNodeToCurrentTrace(new LocationNode(location, osm_id, dist, mCurrentPressure));
+		if(!mPipeline.offer(location.getLatitude(), location.getLongitude(), location.getAltitude(),
+				location.getAccuracy(), location.getTime(), pressure))
+			Log.w("SensorService", "Ingest pipeline full, dropped fix");
+	}
+	
+	/**
+	 * @return the current elapsed realtime in nanoseconds
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+	private static long elapsedNanos() {
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+			return SystemClock.elapsedRealtimeNanos();
+		return SystemClock.elapsedRealtime() * 1000000L;
+	}
+	
+	/**
+	 * Returns the elapsed realtime at which the fix was taken. Before API 17 it
+	 * is derived from the age of the fix, which relies on the system clock and
+	 * is therefore limited to one second.
+	 * 
+	 * @param location the fix
+	 * @return elapsed realtime of the fix in nanoseconds
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+	private static long fixElapsedNanos(Location location) {
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && location.getElapsedRealtimeNanos() > 0)
+			return location.getElapsedRealtimeNanos();
+		long age = Math.max(0, Math.min(System.currentTimeMillis() - location.getTime(), 1000));
+		return (SystemClock.elapsedRealtime() - age) * 1000000L;
 	}
 
-	private String getNearestOSMNode(Location location, double radius, double distance, int limit) {
+	/**
+	 * Writes the ingest metrics of this run to the metrics storage directory.
+	 */
+	private void writeMetrics() {
+		File file = new File(getStorageDir("ElevationLog","metrics"),
+				new SimpleDateFormat("yyMMdd-HHmm", Locale.GERMANY).format(new Date()) + "_ingest.json");
 		try {
-			//jsqlite.Database mDatabase = new jsqlite.Database();
-			//mDatabase.open(SensorService.getStorageDir("ElevationLog","map") + "/" + getApplicationContext().getString(R.string.osm_db), jsqlite.Constants.SQLITE_OPEN_READONLY);
-			
-			String slGetNearestNode = "SELECT osm_id, ST_Distance(geometry, MakePoint(" + location.getLongitude() + ", " + location.getLatitude() + "), 0) AS distance "
-					+ "FROM 'regbez-koeln_nodes' "
-					+ "WHERE ROWID IN (SELECT ROWID FROM SpatialIndex WHERE f_table_name='regbez-koeln_nodes' "
-					+ "AND search_frame=BuildCircleMbr(" + location.getLongitude() + ", " + location.getLatitude() +", " + radius + ")) "
-					+ "AND distance < " + distance + " ORDER BY distance LIMIT " + limit + ";";
-			
-			//mDatabase.exec(slGetNearestNode, new SpatialiteCallback());
-			//mDatabase.close();
-			Stmt stmt = mDatabase.prepare(slGetNearestNode);
-			
-			if(stmt.step()){
-				String res = stmt.column_int(0) + "," + stmt.column_double(1);
-				stmt.close();
-				return res;
-			}
-			stmt.close();
-		} catch (Exception e) {
+			mPipeline.getMetrics().writeTo(file);
+			Log.i("SensorService", "Ingest metrics written to " + file);
+		} catch (IOException e) {
 			e.printStackTrace();
-			Log.e("DBquery", "DB error");
+			Log.w("SensorService", "Error writing ingest metrics: " + e);
 		}
-		return null;
 	}
-
+	
+	/**
+	 * Loads the OSM node index in the background. The index is read from its
+	 * file next to the Spatialite database, or built from the database and
+	 * written to that file if the file does not exist yet or cannot be read.
+	 * Until it is available, mNodeResolver queries Spatialite.
+	 */
+	private void loadNodeIndex() {
+		final File indexFile = new File(getStorageDir("ElevationLog","map"), getString(R.string.osm_db) + ".nodeidx");
+		final jsqlite.Database db = mDatabase;
+		mIndexLoader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				OsmNodeIndex index = null;
+				if(indexFile.exists()) {
+					try {
+						index = OsmNodeIndex.read(indexFile);
+					} catch (IOException e) {
+						e.printStackTrace();
+						Log.w("SensorService", "Rebuilding unreadable OSM node index: " + e);
+						if(!indexFile.delete())
+							Log.w("SensorService", "Could not delete " + indexFile);
+					}
+				}
+				if(index == null) {
+					try {
+						index = OsmNodeIndex.fromDatabase(db, OSM_NODE_TABLE);
+					} catch (java.lang.Exception e) {
+						if(Thread.currentThread().isInterrupted())
+							return;
+						e.printStackTrace();
+						Log.w("SensorService", "OSM node index unavailable, using spatialite: " + e);
+						return;
+					}
+					try {
+						index.write(indexFile);
+					} catch (IOException e) {
+						e.printStackTrace();
+						Log.w("SensorService", "Could not save OSM node index: " + e);
+					}
+				}
+				// The service is shutting down
+				if(Thread.currentThread().isInterrupted())
+					return;
+				Log.i("SensorService", "Loaded OSM node index with " + index.size() + " nodes");
+				mNodeResolver.setIndex(index);
+			}
+		}, "OsmNodeIndexLoader");
+		mIndexLoader.start();
+	}
+	
 	@Override
 	public void onProviderDisabled(String provider) {
 		// TODO Nothing to do here so far ;-)
@@ -331,7 +524,118 @@ public class SensorService extends Service
         return file;
     }
 	/**
-	 * Custom receiver to receive trace list query from HomeActivity
+	 * Publishes matched fixes to the HomeActivity
+	 * @author Nicolas Inden
+	 */
+	static class FixPublisher implements IngestPipeline.Listener {
+		@Override
+		public void onFix(FixRingBuffer.Fix fix, boolean recording) {
+			SensorPublisher.getInstance().publishFix(fix.latitude, fix.longitude, fix.altitude, fix.accuracy,
+					fix.osmId, fix.distance, fix.time);
+			
+			if(Log.isLoggable("SensorService", Log.DEBUG))
+				Log.d("SensorService", "Lat: " + fix.latitude + ", Lon: " + fix.longitude + ", Alt: " + fix.altitude
+						+ ", Acc: " + fix.accuracy + ", Pres: " + fix.pressure + ", Osm_id: " + fix.osmId
+						+ ", Dist: " + fix.distance + ", Time: " + fix.time + ", Fused alt: " + fix.fusedAltitude
+						+ " (var " + fix.altitudeVariance + ")");
+		}
+	}
+	
+	/**
+	 * Answers queries for the ingest metrics with a JSON snapshot
+	 * @author Nicolas Inden
+	 */
+	public class GetMetricsReceiver extends BroadcastReceiver {
+		private IngestMetrics mMetrics;
+		
+		public GetMetricsReceiver(IngestMetrics metrics) {
+			mMetrics = metrics;
+		}
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			Intent res = new Intent("send-ingest-metrics");
+			res.putExtra("Metrics", mMetrics.toJson());
+			LocalBroadcastManager.getInstance(context).sendBroadcast(res);
+		}
+	}
+	
+	/**
+	 * Tells HomeActivity about added and changed traces by broadcasting
+	 * "trace-list-update" with the summary in "Summary" and whether the
+	 * trace is new in "Added".
+	 * @author Nicolas Inden
+	 */
+	public static class TraceListUpdater implements TraceDB.Listener {
+		private Context mContext;
+		
+		public TraceListUpdater(Context context) {
+			mContext = context;
+		}
+
+		@Override
+		public void onTraceAdded(TraceSummary summary) {
+			send(summary, true);
+		}
+
+		@Override
+		public void onTraceChanged(TraceSummary summary) {
+			send(summary, false);
+		}
+		
+		private void send(TraceSummary summary, boolean added) {
+			Intent res = new Intent("trace-list-update");
+			res.putExtra("Summary", summary);
+			res.putExtra("Added", added);
+			LocalBroadcastManager.getInstance(mContext).sendBroadcast(res);
+		}
+	}
+	
+	/**
+	 * Custom receiver to receive upload requests from HomeActivity. Starts
+	 * uploading the traces not uploaded yet in the background, unless an
+	 * upload is running, and answers with "send-upload-result" carrying a
+	 * message in "Result" once done.
+	 * @author Nicolas Inden
+	 */
+	public class StartUploadReceiver extends BroadcastReceiver {
+		private Future<?> mRunning;
+
+		@Override
+		public void onReceive(final Context context, Intent intent) {
+			if(mUploader == null) {
+				sendResult(context, "No upload endpoint configured");
+				return;
+			}
+			if(mRunning != null && !mRunning.isDone()) {
+				sendResult(context, "Upload already running");
+				return;
+			}
+			mRunning = mUploadExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sendResult(context, "Uploaded " + mUploader.upload());
+					} catch (InterruptedException e) {
+						sendResult(context, "Upload interrupted");
+					}
+				}
+			});
+		}
+		
+		private void sendResult(Context context, String result) {
+			Intent res = new Intent("send-upload-result");
+			res.putExtra("Result", result);
+			LocalBroadcastManager.getInstance(context).sendBroadcast(res);
+		}
+	}
+	
+	/**
+	 * Custom receiver to receive trace list query from HomeActivity. Answers
+	 * with one page of trace summaries: extras "Offset" and "Limit" select
+	 * the page, "NewestFirst" the order. The answer carries the summaries in
+	 * "Summaries", the offset of the page in "Offset" and the number of
+	 * traces in "Total".
 	 * @author Nicolas Inden
 	 */
 	public class GetTraceListReceiver extends BroadcastReceiver {
@@ -343,8 +647,14 @@ public class SensorService extends Service
 
 		@Override
 		public void onReceive(Context context, Intent intent) {
+			int offset = intent.getIntExtra("Offset", 0);
+			int limit = intent.getIntExtra("Limit", TRACE_LIST_PAGE_SIZE);
+			boolean newestFirst = intent.getBooleanExtra("NewestFirst", false);
+			
 			Intent res = new Intent("send-trace-list");
-			res.putExtra("Traces", mTraceDB.getTraces());
+			res.putExtra("Summaries", new ArrayList<TraceSummary>(mTraceDB.getSummaries(offset, limit, newestFirst)));
+			res.putExtra("Offset", offset);
+			res.putExtra("Total", mTraceDB.getTraceCount());
 			LocalBroadcastManager.getInstance(context).sendBroadcast(res);
 		}
 		
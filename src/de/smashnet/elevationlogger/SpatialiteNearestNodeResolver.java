@@ -0,0 +1,80 @@
+package de.smashnet.elevationlogger;
+
+import jsqlite.Stmt;
+import android.util.Log;
+
+/**
+ * Looks up the nearest OSM node with a Spatialite query. The statement is
+ * prepared once; each lookup only binds the coordinates and resets it, so
+ * SQLite neither parses nor plans the query again.
+ * 
+ * @author Nicolas Inden
+ *
+ */
+public class SpatialiteNearestNodeResolver implements NearestNodeResolver {
+	/**
+	 * The prepared query, null if preparing failed
+	 */
+	private Stmt mStmt;
+	
+	/**
+	 * @param db the open Spatialite database
+	 * @param table the name of the node table
+	 * @param frameRadius radius in degrees of the spatial index search frame
+	 */
+	public SpatialiteNearestNodeResolver(jsqlite.Database db, String table, double frameRadius) {
+		// ?1 = lon, ?2 = lat, ?3 = max distance
+		String query = "SELECT osm_id, ST_Distance(geometry, MakePoint(?1, ?2), 0) AS distance, Y(geometry), X(geometry) "
+				+ "FROM '" + table + "' "
+				+ "WHERE ROWID IN (SELECT ROWID FROM SpatialIndex WHERE f_table_name='" + table + "' "
+				+ "AND search_frame=BuildCircleMbr(?1, ?2, " + frameRadius + ")) "
+				+ "AND distance < ?3 ORDER BY distance LIMIT 2;";
+		try {
+			mStmt = db.prepare(query);
+		} catch (jsqlite.Exception e) {
+			e.printStackTrace();
+			Log.e("DBquery", "Error preparing nearest node query: " + e);
+		}
+	}
+	
+	@Override
+	public boolean resolve(double lat, double lon, double maxDistance, NearestNodeResult result) {
+		result.clear();
+		if(mStmt == null)
+			return false;
+		try {
+			mStmt.bind(1, lon);
+			mStmt.bind(2, lat);
+			mStmt.bind(3, maxDistance);
+			if(mStmt.step()) {
+				result.set(mStmt.column_long(0), mStmt.column_double(1), mStmt.column_double(2),
+						mStmt.column_double(3), Double.POSITIVE_INFINITY);
+				// Second row only tells how far the runner-up is
+				if(mStmt.step())
+					result.secondDistance = mStmt.column_double(1);
+			}
+		} catch (jsqlite.Exception e) {
+			e.printStackTrace();
+			Log.e("DBquery", "DB error");
+		} finally {
+			try {
+				mStmt.reset();
+			} catch (jsqlite.Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return result.isFound();
+	}
+	
+	@Override
+	public void close() {
+		if(mStmt == null)
+			return;
+		try {
+			mStmt.close();
+		} catch (jsqlite.Exception e) {
+			e.printStackTrace();
+		}
+		mStmt = null;
+	}
+}
@@ -0,0 +1,310 @@
+package de.smashnet.elevationlogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * On-disk store for closed traces. Consists of two files:
+ * <ul>
+ * 	<li>an index with one fixed-size entry of metadata per trace (id, date,
+ * 	length, uploaded flag, position of the payload), which is read
+ * 	completely on open</li>
+ * 	<li>a data file with the node payloads of all traces, which is memory
+ * 	mapped and only decoded when the nodes of a trace are needed</li>
+ * </ul>
+ * Payloads are encoded with TraceCodec.
+ * Traces are only ever appended. The payload is forced to disk before the
+ * index entry is written, so an index entry always refers to complete data.
+ * The data file is mapped in windows, so it may grow beyond 2 GB.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceArchive {
+	private static final int INDEX_MAGIC = 0x454c4958; // "ELIX"
+	private static final int INDEX_VERSION = 2;
+	private static final int INDEX_HEADER_SIZE = 8;
+
+	/**
+	 * id, date, length, flags, offset, byte length
+	 */
+	private static final int ENTRY_SIZE = 8 + 8 + 4 + 4 + 8 + 8;
+	private static final int FLAG_UPLOADED = 1;
+
+	/**
+	 * Size of the windows the data file is mapped in
+	 */
+	private static final long WINDOW_SIZE = 64L << 20;
+
+	/**
+	 * Metadata of one archived trace.
+	 */
+	public static class Entry {
+		final int mSlot;
+		final long mId;
+		final long mDate;
+		final int mLength;
+		final long mOffset;
+		final long mBytes;
+		boolean mUploaded;
+
+		Entry(int slot, long id, long date, int length, boolean uploaded, long offset, long bytes) {
+			mSlot = slot;
+			mId = id;
+			mDate = date;
+			mLength = length;
+			mUploaded = uploaded;
+			mOffset = offset;
+			mBytes = bytes;
+		}
+
+		public long getId() {
+			return mId;
+		}
+
+		public long getDate() {
+			return mDate;
+		}
+
+		public int getLength() {
+			return mLength;
+		}
+
+		public boolean isUploaded() {
+			return mUploaded;
+		}
+	}
+
+	private File mIndexFile;
+	private File mDataFile;
+	private RandomAccessFile mIndex;
+	private RandomAccessFile mData;
+	private TraceCodec mCodec = new TraceCodec();
+
+	/**
+	 * All entries in index order
+	 */
+	private ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+	/**
+	 * Read-only mapping of a window of the data file, replaced when an entry
+	 * outside of it is loaded
+	 */
+	private MappedByteBuffer mWindow;
+
+	/**
+	 * Offset of mWindow in the data file
+	 */
+	private long mWindowStart;
+
+	/**
+	 * @param dir directory of the archive files
+	 * @param name base name of the archive files
+	 */
+	public TraceArchive(File dir, String name) {
+		mIndexFile = new File(dir, name + ".idx");
+		mDataFile = new File(dir, name + ".dat");
+	}
+
+	/**
+	 * Opens the archive files, creating them if necessary, and reads the index.
+	 * Entries pointing behind the end of the data file (left over from a crash)
+	 * are dropped.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		mIndex = new RandomAccessFile(mIndexFile, "rw");
+		mData = new RandomAccessFile(mDataFile, "rw");
+
+		if(mIndex.length() < INDEX_HEADER_SIZE) {
+			mIndex.setLength(0);
+			mIndex.writeInt(INDEX_MAGIC);
+			mIndex.writeInt(INDEX_VERSION);
+			mIndex.getFD().sync();
+			return;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate((int) mIndex.length());
+		FileChannel ch = mIndex.getChannel();
+		ch.position(0);
+		while(buf.hasRemaining() && ch.read(buf) >= 0);
+		buf.flip();
+		if(buf.getInt() != INDEX_MAGIC || buf.getInt() != INDEX_VERSION)
+			throw new IOException("Unknown trace index format: " + mIndexFile);
+
+		long dataLength = mData.length();
+		while(buf.remaining() >= ENTRY_SIZE) {
+			Entry e = new Entry(mEntries.size(), buf.getLong(), buf.getLong(), buf.getInt(),
+					(buf.getInt() & FLAG_UPLOADED) != 0, buf.getLong(), buf.getLong());
+			if(e.mOffset + e.mBytes > dataLength) {
+				Log.w("TraceArchive", "Dropping index entries with incomplete data");
+				break;
+			}
+			mEntries.add(e);
+		}
+		long indexLength = INDEX_HEADER_SIZE + (long) mEntries.size() * ENTRY_SIZE;
+		if(indexLength != mIndex.length())
+			mIndex.setLength(indexLength);
+	}
+
+	/**
+	 * @return all archived traces in the order they were archived
+	 */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(mEntries);
+	}
+
+	/**
+	 * Appends the nodes of a trace to the data file and adds its index entry.
+	 *
+	 * @return the index entry of the archived trace
+	 * @throws IOException
+	 */
+	public Entry append(LocationTrace trace) throws IOException {
+		return appendAll(Collections.singletonList(trace)).get(0);
+	}
+
+	/**
+	 * Appends several traces at once. Their payloads are forced to disk
+	 * together, then their index entries, so a batch costs two syncs no
+	 * matter how many traces it holds.
+	 *
+	 * @return the index entries of the archived traces, in the given order
+	 * @throws IOException
+	 */
+	public synchronized List<Entry> appendAll(List<LocationTrace> traces) throws IOException {
+		checkOpen();
+		long offset = mData.length();
+		FileChannel data = mData.getChannel();
+		data.position(offset);
+		ArrayList<Entry> added = new ArrayList<Entry>(traces.size());
+		for(LocationTrace trace : traces) {
+			NodeColumns nodes = trace.getNodes();
+			ByteBuffer buf = encode(nodes);
+			long bytes = buf.remaining();
+			while(buf.hasRemaining())
+				data.write(buf);
+			added.add(new Entry(mEntries.size() + added.size(), trace.getId(), trace.getDate().getTime(),
+					nodes.size(), trace.isUploaded(), offset, bytes));
+			offset += bytes;
+		}
+		data.force(false);
+
+		writeEntries(added);
+		mEntries.addAll(added);
+		return added;
+	}
+
+	/**
+	 * Updates the uploaded flag of an archived trace in place.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void setUploaded(Entry e, boolean uploaded) throws IOException {
+		checkOpen();
+		boolean old = e.mUploaded;
+		e.mUploaded = uploaded;
+		try {
+			writeEntries(Collections.singletonList(e));
+		} catch (IOException ioe) {
+			e.mUploaded = old;
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Decodes the nodes of an archived trace into the given columns.
+	 *
+	 * @throws IOException
+	 */
+	public void load(Entry e, NodeColumns nodes) throws IOException {
+		new TraceCodec.Decoder(payload(e)).readInto(nodes, e.mLength);
+	}
+	
+	private ByteBuffer encode(NodeColumns nodes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + nodes.size() * 12);
+		TraceCodec.Encoder enc = mCodec.newEncoder(out);
+		enc.writeAll(nodes);
+		enc.flush();
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+	
+	/**
+	 * Closes the archive files.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		mWindow = null;
+		if(mIndex != null)
+			mIndex.close();
+		if(mData != null)
+			mData.close();
+		mIndex = null;
+		mData = null;
+	}
+
+	/**
+	 * @return a private view on the mapped payload of the given entry
+	 */
+	private synchronized ByteBuffer payload(Entry e) throws IOException {
+		checkOpen();
+		if(e.mBytes > Integer.MAX_VALUE)
+			throw new IOException("Trace payload too large to map: " + e.mBytes + " bytes");
+		long end = e.mOffset + e.mBytes;
+		if(mWindow == null || e.mOffset < mWindowStart || end > mWindowStart + mWindow.capacity()) {
+			// Windows start at multiples of WINDOW_SIZE, so neighbouring
+			// entries usually share one. Larger entries get a window of their own.
+			FileChannel data = mData.getChannel();
+			long start = e.mOffset - e.mOffset % WINDOW_SIZE;
+			if(end - start > Integer.MAX_VALUE)
+				start = e.mOffset;
+			long size = Math.min(Math.max(WINDOW_SIZE, end - start), data.size() - start);
+			mWindow = data.map(FileChannel.MapMode.READ_ONLY, start, size);
+			mWindowStart = start;
+		}
+		ByteBuffer buf = mWindow.duplicate();
+		buf.position((int) (e.mOffset - mWindowStart));
+		buf.limit((int) (end - mWindowStart));
+		return buf.slice();
+	}
+
+	private void checkOpen() throws IOException {
+		if(mIndex == null || mData == null)
+			throw new IOException("Trace archive is not open: " + mIndexFile);
+	}
+
+	/**
+	 * Writes index entries in place, which must be adjacent and in slot order.
+	 */
+	private void writeEntries(List<Entry> entries) throws IOException {
+		if(entries.isEmpty())
+			return;
+		ByteBuffer buf = ByteBuffer.allocate(entries.size() * ENTRY_SIZE);
+		for(Entry e : entries) {
+			buf.putLong(e.mId);
+			buf.putLong(e.mDate);
+			buf.putInt(e.mLength);
+			buf.putInt(e.mUploaded ? FLAG_UPLOADED : 0);
+			buf.putLong(e.mOffset);
+			buf.putLong(e.mBytes);
+		}
+		buf.flip();
+		FileChannel index = mIndex.getChannel();
+		long pos = INDEX_HEADER_SIZE + (long) entries.get(0).mSlot * ENTRY_SIZE;
+		while(buf.hasRemaining())
+			pos += index.write(buf, pos);
+		index.force(false);
+	}
+}
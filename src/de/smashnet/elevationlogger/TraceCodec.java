@@ -0,0 +1,422 @@
+package de.smashnet.elevationlogger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding for the nodes of a trace. Every field is stored as
+ * zig-zag varint of the difference to the previous node, after converting it
+ * to a fixed-point integer:
+ * <ul>
+ * 	<li>latitude/longitude in microdegrees</li>
+ * 	<li>time in milliseconds (exact)</li>
+ * 	<li>OSM node id (exact)</li>
+ * 	<li>air pressure and GPS altitude in steps of a configurable resolution</li>
+ * 	<li>accuracy in steps of 0.1 m, distance in steps of 0.01 m</li>
+ * 	<li>the variance of the fused altitude in steps of 0.001 m^2, plus one,
+ * 	and 0 if the node has no fused altitude; the fused altitude itself only
+ * 	if present, in steps of the altitude resolution</li>
+ * </ul>
+ * Accuracy, distance and variance are stored as they are, not as difference.
+ * A stream starts with a header holding the format version and both
+ * resolutions, followed by the nodes. Consecutive fixes differ only slightly,
+ * so most fields fit into one or two bytes.
+ *
+ * Precision loss of a round trip is at most half a step of each fixed-point
+ * unit: 0.5e-6 degrees for latitude/longitude (about 5.6 cm), half the
+ * configured resolution for pressure and altitude (fused altitude included),
+ * 0.05 m for accuracy, 0.005 m for distance and 0.0005 m^2 for the variance.
+ * Time and OSM ids are lossless. A fused altitude is kept if it and its
+ * variance are finite, and dropped (decoded as NaN) otherwise. Decoded values
+ * are exactly quantise(value, resolution), so encoding decoded values again
+ * is lossless.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceCodec {
+	public static final int VERSION = 2;
+
+	/**
+	 * Default pressure resolution in mbar
+	 */
+	public static final double DEFAULT_PRESSURE_RESOLUTION = 0.001;
+	/**
+	 * Default altitude resolution in meters
+	 */
+	public static final double DEFAULT_ALTITUDE_RESOLUTION = 0.01;
+
+	public static final double COORDINATE_RESOLUTION = 1e-6;
+	public static final double ACCURACY_RESOLUTION = 0.1;
+	public static final double DISTANCE_RESOLUTION = 0.01;
+	public static final double VARIANCE_RESOLUTION = 0.001;
+
+	private double mPressureResolution;
+	private double mAltitudeResolution;
+
+	public TraceCodec() {
+		this(DEFAULT_PRESSURE_RESOLUTION, DEFAULT_ALTITUDE_RESOLUTION);
+	}
+
+	/**
+	 * @param pressureResolution step size for air pressure in mbar
+	 * @param altitudeResolution step size for GPS altitude in meters
+	 */
+	public TraceCodec(double pressureResolution, double altitudeResolution) {
+		mPressureResolution = pressureResolution;
+		mAltitudeResolution = altitudeResolution;
+	}
+
+	public double getPressureResolution() {
+		return mPressureResolution;
+	}
+
+	public double getAltitudeResolution() {
+		return mAltitudeResolution;
+	}
+
+	/**
+	 * Rounds a value to the given resolution, exactly like an encode/decode
+	 * round trip does.
+	 */
+	public static double quantise(double value, double resolution) {
+		return toFixed(value, resolution) * resolution;
+	}
+
+	/**
+	 * @return a new encoder writing to the given stream
+	 */
+	public Encoder newEncoder(OutputStream out) {
+		return new Encoder(out, mPressureResolution, mAltitudeResolution);
+	}
+
+	private static long toFixed(double value, double resolution) {
+		return Math.round(value / resolution);
+	}
+
+	private static boolean isFinite(double v) {
+		return !Double.isNaN(v) && !Double.isInfinite(v);
+	}
+
+	private static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Writes nodes in the compact format. Nothing is allocated per node.
+	 */
+	public static class Encoder {
+		private OutputStream mOut;
+		private double mPressureResolution;
+		private double mAltitudeResolution;
+		private boolean mHeaderWritten;
+
+		private final byte[] mBuf = new byte[128];
+		private int mLen;
+
+		private long mLat;
+		private long mLon;
+		private long mTime;
+		private long mOSMNode;
+		private long mPressure;
+		private long mAltitude;
+		private long mFusedAltitude;
+
+		private long mBytes;
+
+		Encoder(OutputStream out, double pressureResolution, double altitudeResolution) {
+			mOut = out;
+			mPressureResolution = pressureResolution;
+			mAltitudeResolution = altitudeResolution;
+		}
+
+		/**
+		 * Writes one node without fused altitude. The header is written before
+		 * the first node.
+		 */
+		public void write(double lat, double lon, float acc, long osmNode, double dist, double pressure,
+				double gpsAltitude, long time) throws IOException {
+			write(lat, lon, acc, osmNode, dist, pressure, gpsAltitude, time, Double.NaN, Double.NaN);
+		}
+
+		/**
+		 * Writes one node. The header is written before the first node.
+		 */
+		public void write(double lat, double lon, float acc, long osmNode, double dist, double pressure,
+				double gpsAltitude, long time, double fusedAltitude, double altitudeVariance) throws IOException {
+			if(!mHeaderWritten)
+				writeHeader();
+			long v;
+			v = toFixed(lat, COORDINATE_RESOLUTION);
+			putVarLong(zigZag(v - mLat));
+			mLat = v;
+			v = toFixed(lon, COORDINATE_RESOLUTION);
+			putVarLong(zigZag(v - mLon));
+			mLon = v;
+			putVarLong(zigZag(time - mTime));
+			mTime = time;
+			putVarLong(zigZag(osmNode - mOSMNode));
+			mOSMNode = osmNode;
+			v = toFixed(pressure, mPressureResolution);
+			putVarLong(zigZag(v - mPressure));
+			mPressure = v;
+			v = toFixed(gpsAltitude, mAltitudeResolution);
+			putVarLong(zigZag(v - mAltitude));
+			mAltitude = v;
+			putVarLong(zigZag(toFixed(acc, ACCURACY_RESOLUTION)));
+			putVarLong(zigZag(toFixed(dist, DISTANCE_RESOLUTION)));
+			if(isFinite(fusedAltitude) && isFinite(altitudeVariance)) {
+				putVarLong(toFixed(Math.max(altitudeVariance, 0), VARIANCE_RESOLUTION) + 1);
+				v = toFixed(fusedAltitude, mAltitudeResolution);
+				putVarLong(zigZag(v - mFusedAltitude));
+				mFusedAltitude = v;
+			} else {
+				putVarLong(0);
+			}
+			drain();
+		}
+
+		/**
+		 * Writes the node the cursor points to.
+		 */
+		public void write(NodeColumns.Cursor c) throws IOException {
+			write(c.getLatitude(), c.getLongitude(), c.getAccuracy(), c.getOSMNode(), c.getDistance(),
+					c.getAirPressure(), c.getGPSAltitude(), c.getDateVisited(), c.getFusedAltitude(),
+					c.getAltitudeVariance());
+		}
+
+		/**
+		 * Writes all nodes of the given columns.
+		 */
+		public void writeAll(NodeColumns nodes) throws IOException {
+			if(!mHeaderWritten)
+				writeHeader();
+			NodeColumns.Cursor c = nodes.cursor();
+			while(c.moveToNext())
+				write(c);
+		}
+
+		/**
+		 * @return the number of bytes written so far, including the header
+		 */
+		public long getBytesWritten() {
+			return mBytes;
+		}
+
+		public void flush() throws IOException {
+			if(!mHeaderWritten)
+				writeHeader();
+			mOut.flush();
+		}
+
+		private void writeHeader() throws IOException {
+			mHeaderWritten = true;
+			mBuf[mLen++] = (byte) VERSION;
+			putLong(Double.doubleToLongBits(mPressureResolution));
+			putLong(Double.doubleToLongBits(mAltitudeResolution));
+			drain();
+		}
+
+		private void putLong(long v) {
+			for(int shift = 56; shift >= 0; shift -= 8)
+				mBuf[mLen++] = (byte) (v >>> shift);
+		}
+
+		private void putVarLong(long v) {
+			while((v & ~0x7FL) != 0) {
+				mBuf[mLen++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			mBuf[mLen++] = (byte) v;
+		}
+
+		private void drain() throws IOException {
+			mOut.write(mBuf, 0, mLen);
+			mBytes += mLen;
+			mLen = 0;
+		}
+	}
+
+	/**
+	 * Reads nodes in the compact format from a ByteBuffer or an InputStream.
+	 * The values of the current node are exposed like a cursor, so nothing is
+	 * allocated per node.
+	 */
+	public static class Decoder {
+		private ByteBuffer mBuffer;
+		private InputStream mIn;
+		private boolean mHeaderRead;
+		private double mPressureResolution;
+		private double mAltitudeResolution;
+
+		private long mLat;
+		private long mLon;
+		private long mTime;
+		private long mOSMNode;
+		private long mPressure;
+		private long mAltitude;
+		private long mAccuracy;
+		private long mDistance;
+		private long mFusedAltitude;
+		/**
+		 * Fixed-point variance plus one, 0 if the node has no fused altitude
+		 */
+		private long mVariance;
+
+		public Decoder(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		public Decoder(InputStream in) {
+			mIn = in;
+		}
+
+		/**
+		 * Reads the next node.
+		 *
+		 * @return false at the end of the input
+		 * @throws IOException if the input ends within a node or is malformed
+		 */
+		public boolean next() throws IOException {
+			if(!mHeaderRead && !readHeader())
+				return false;
+			int first = readByte();
+			if(first < 0)
+				return false;
+			mLat += unZigZag(readVarLong(first));
+			mLon += unZigZag(readVarLong(readByte()));
+			mTime += unZigZag(readVarLong(readByte()));
+			mOSMNode += unZigZag(readVarLong(readByte()));
+			mPressure += unZigZag(readVarLong(readByte()));
+			mAltitude += unZigZag(readVarLong(readByte()));
+			mAccuracy = unZigZag(readVarLong(readByte()));
+			mDistance = unZigZag(readVarLong(readByte()));
+			mVariance = readVarLong(readByte());
+			if(mVariance != 0)
+				mFusedAltitude += unZigZag(readVarLong(readByte()));
+			return true;
+		}
+
+		/**
+		 * Appends up to count nodes to the given columns.
+		 *
+		 * @return the number of nodes read
+		 */
+		public int readInto(NodeColumns nodes, int count) throws IOException {
+			int n = 0;
+			while(n < count && next()) {
+				nodes.add(getLatitude(), getLongitude(), getAccuracy(), getOSMNode(), getDistance(),
+						getAirPressure(), getGPSAltitude(), getDateVisited(), getFusedAltitude(), getAltitudeVariance());
+				n++;
+			}
+			return n;
+		}
+
+		public double getLatitude() {
+			return mLat * COORDINATE_RESOLUTION;
+		}
+
+		public double getLongitude() {
+			return mLon * COORDINATE_RESOLUTION;
+		}
+
+		public float getAccuracy() {
+			return (float) (mAccuracy * ACCURACY_RESOLUTION);
+		}
+
+		public long getOSMNode() {
+			return mOSMNode;
+		}
+
+		public double getDistance() {
+			return mDistance * DISTANCE_RESOLUTION;
+		}
+
+		public double getAirPressure() {
+			return mPressure * mPressureResolution;
+		}
+
+		public double getGPSAltitude() {
+			return mAltitude * mAltitudeResolution;
+		}
+
+		public long getDateVisited() {
+			return mTime;
+		}
+
+		/**
+		 * @return the fused altitude, NaN if the node has none
+		 */
+		public double getFusedAltitude() {
+			return mVariance == 0 ? Double.NaN : mFusedAltitude * mAltitudeResolution;
+		}
+
+		/**
+		 * @return the variance of the fused altitude, NaN if the node has none
+		 */
+		public double getAltitudeVariance() {
+			return mVariance == 0 ? Double.NaN : (mVariance - 1) * VARIANCE_RESOLUTION;
+		}
+
+		private boolean readHeader() throws IOException {
+			int version = readByte();
+			if(version < 0)
+				return false;
+			if(version != VERSION)
+				throw new IOException("Unknown trace codec version " + version);
+			mPressureResolution = Double.longBitsToDouble(readLong());
+			mAltitudeResolution = Double.longBitsToDouble(readLong());
+			mHeaderRead = true;
+			return true;
+		}
+
+		private long readLong() throws IOException {
+			long v = 0;
+			for(int i = 0; i < 8; i++)
+				v = (v << 8) | readByteStrict();
+			return v;
+		}
+
+		/**
+		 * @param first the first byte of the varint, already read
+		 */
+		private long readVarLong(int first) throws IOException {
+			if(first < 0)
+				throw new EOFException("Truncated trace data");
+			long v = first & 0x7F;
+			int shift = 7;
+			int b = first;
+			while((b & 0x80) != 0) {
+				if(shift > 63)
+					throw new IOException("Malformed varint in trace data");
+				b = readByteStrict();
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			}
+			return v;
+		}
+
+		private int readByteStrict() throws IOException {
+			int b = readByte();
+			if(b < 0)
+				throw new EOFException("Truncated trace data");
+			return b;
+		}
+
+		/**
+		 * @return the next byte (0..255) or -1 at the end of the input
+		 */
+		private int readByte() throws IOException {
+			if(mBuffer != null)
+				return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+			return mIn.read();
+		}
+	}
+}
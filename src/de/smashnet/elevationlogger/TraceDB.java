@@ -3,11 +3,20 @@ package de.smashnet.elevationlogger;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.content.Intent;
@@ -19,10 +28,48 @@ import android.util.Log;
  * Simple facility to manage traces. Keeps track of what traces have already
  * been sent, and which are still to be sent.
  * 
+ * Closed traces live in a TraceArchive: only their metadata is read on open,
+ * their nodes are decoded when first needed. The trace that is currently
+ * recorded goes to an append-only TraceJournal as it arrives, so a killed
+ * process loses at most the last uncommitted group of nodes. With
+ * startCheckpoints(), a background thread also commits the nodes journaled
+ * since the last commit at a fixed interval, so the loss stays bounded by
+ * that interval even while no further nodes arrive. On open, traces
+ * left in the journal are moved to the archive. A serialized DB file of older
+ * versions is migrated to the archive once and then renamed to *.bak.
+ * 
+ * Alongside the traces, a TraceSummary of each is kept sorted by date, so
+ * lists of traces can be queried page by page with getSummaries() without
+ * touching any nodes.
+ * 
+ * Public methods are synchronized, so traces may be recorded on a background
+ * thread while others are read.
+ * 
  * @author Nicolas Inden
  *
  */
 public class TraceDB{
+	/**
+	 * Notified of changes of the trace list, while the DB is locked, so it
+	 * must not block
+	 */
+	public interface Listener {
+		/**
+		 * A trace was started or imported.
+		 */
+		void onTraceAdded(TraceSummary summary);
+		
+		/**
+		 * A trace was closed or its uploaded flag changed.
+		 */
+		void onTraceChanged(TraceSummary summary);
+	}
+	
+	/**
+	 * How long close() waits for a checkpoint in progress
+	 */
+	private static final int CHECKPOINT_STOP_SECONDS = 5;
+	
 	/**
 	 * The file where the DB is stored
 	 */
@@ -31,6 +78,11 @@ public class TraceDB{
 	 * The list of known traces
 	 */
 	private LinkedList<LocationTrace> mTraces;
+	/**
+	 * Summaries of all known traces, sorted by TraceSummary.BY_DATE. The
+	 * one of the current trace is taken at its start.
+	 */
+	private ArrayList<TraceSummary> mSummaries;
 	/**
 	 * The trace that is currently used.
 	 */
@@ -39,6 +91,30 @@ public class TraceDB{
 	 * The context this class was instantiated in
 	 */
 	private Context mContext;
+	/**
+	 * Journal receiving all trace starts, nodes and closes
+	 */
+	private TraceJournal mJournal;
+	/**
+	 * Store of all closed traces
+	 */
+	private TraceArchive mArchive;
+	/**
+	 * Runs the periodic checkpoints, null if not started
+	 */
+	private ScheduledExecutorService mCheckpointer;
+	/**
+	 * Id for the next trace that is started
+	 */
+	private long mNextTraceId = 1;
+	/**
+	 * Directory of the GPX files of the traces
+	 */
+	private File mTraceDir;
+	/**
+	 * Notified of changes of the trace list, may be null
+	 */
+	private Listener mListener;
 	
 	/**
 	 * Open database from given filename. If file does not exist a
@@ -47,22 +123,166 @@ public class TraceDB{
 	 * @param dbFilename
 	 */
 	public TraceDB(Context con, String dbFilename) {
+		this(getStorageDir("ElevationLog","db"), getStorageDir("ElevationLog","traces"), dbFilename);
 		mContext = con;
-		mTraceDBFile = new File(getStorageDir("ElevationLog","db"), dbFilename);
-		if(!mTraceDBFile.exists()) {
-			//File does not exist, so create a new empty DB
-			try {
-				mTraceDBFile.createNewFile();
-				mTraces = new LinkedList<LocationTrace>();
-				Log.i("DBStorage", "Created new trace DB");
-			} catch (IOException e) {
-				e.printStackTrace();
-				Log.e("DBStorage", "Error creating db file: " + e);
+	}
+	
+	/**
+	 * Open database from given filename in the given directory, without
+	 * Android storage or context, e.g. for replays on a desktop JVM. The
+	 * media scanner is not notified of changes.
+	 * 
+	 * @param dbDir directory of the DB files
+	 * @param traceDir directory traces write their GPX files to
+	 * @param dbFilename
+	 */
+	public TraceDB(File dbDir, File traceDir, String dbFilename) {
+		if(!dbDir.exists() && !dbDir.mkdirs())
+			Log.w("DBStorage", "DB directory not created: " + dbDir);
+		mTraceDir = traceDir;
+		mTraceDBFile = new File(dbDir, dbFilename);
+		mTraces = new LinkedList<LocationTrace>();
+		mSummaries = new ArrayList<TraceSummary>();
+		
+		mArchive = new TraceArchive(dbDir, dbFilename);
+		try {
+			mArchive.open();
+			for(TraceArchive.Entry e : mArchive.getEntries()) {
+				addTrace(new LocationTrace(traceDir, mArchive, e));
+				mNextTraceId = Math.max(mNextTraceId, e.getId() + 1);
 			}
-		} else {
-			//If file exists, read db
-			Log.i("DBStorage", "Loading existing trace DB");
-			mTraces = loadTraceDBFile();
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e("DBStorage", "Error opening trace archive: " + e);
+		}
+		
+		if(mTraceDBFile.exists() && mTraceDBFile.length() > 0)
+			migrateTraceDBFile();
+		
+		mJournal = new TraceJournal(new File(dbDir, dbFilename + ".journal"), 4 * 1024 * 1024, 64, 5000);
+		recoverJournal();
+		Log.i("DBStorage", "Opened trace DB with " + mTraces.size() + " traces");
+	}
+	
+	/**
+	 * Moves the traces of a serialized DB file of an older version into the archive.
+	 */
+	private void migrateTraceDBFile() {
+		Log.i("DBStorage", "Migrating serialized trace DB");
+		LinkedList<LocationTrace> legacy = loadTraceDBFile();
+		if(legacy == null)
+			return;
+		for(LocationTrace lt : legacy) {
+			lt.setId(mNextTraceId++);
+			if(!archiveTrace(lt))
+				return;
+			lt.unload();
+			addTrace(lt);
+		}
+		File backup = new File(mTraceDBFile.getPath() + ".bak");
+		if(!mTraceDBFile.renameTo(backup))
+			Log.w("DBStorage", "Could not rename migrated trace DB");
+	}
+	
+	/**
+	 * Moves all traces left in the journal to the archive and clears the journal.
+	 */
+	private void recoverJournal() {
+		final LinkedHashMap<Long, LocationTrace> journaled = new LinkedHashMap<Long, LocationTrace>();
+		final File traceDir = mTraceDir;
+		try {
+			mJournal.recover(new TraceJournal.Listener() {
+				@Override
+				public void onTraceStart(long traceId, long date) {
+					LocationTrace lt = new LocationTrace(traceDir);
+					lt.setId(traceId);
+					lt.setDate(new Date(date));
+					journaled.put(traceId, lt);
+				}
+
+				@Override
+				public void onNode(long traceId, LocationNode node) {
+					LocationTrace lt = journaled.get(traceId);
+					if(lt != null)
+						lt.addNode(node);
+				}
+
+				@Override
+				public void onTraceClose(long traceId) {
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e("DBStorage", "Error recovering trace journal: " + e);
+			return;
+		}
+		
+		HashSet<Long> archived = new HashSet<Long>();
+		for(LocationTrace lt : mTraces)
+			archived.add(lt.getId());
+		for(LocationTrace lt : journaled.values()) {
+			mNextTraceId = Math.max(mNextTraceId, lt.getId() + 1);
+			// Archived before a crash, but the journal was not reset yet
+			if(archived.contains(lt.getId()))
+				continue;
+			if(!archiveTrace(lt))
+				return;
+			lt.unload();
+			addTrace(lt);
+			Log.i("DBStorage", "Recovered trace " + lt.getId() + " from journal");
+		}
+		resetJournal();
+	}
+	
+	/**
+	 * Appends a trace to the archive.
+	 * 
+	 * @return true on success
+	 */
+	private boolean archiveTrace(LocationTrace lt) {
+		try {
+			lt.setArchived(mArchive, mArchive.append(lt));
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e("DBStorage", "Error archiving trace " + lt.getId() + ": " + e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Adds a trace to mTraces and its summary to mSummaries.
+	 */
+	private void addTrace(LocationTrace lt) {
+		mTraces.add(lt);
+		TraceSummary summary = new TraceSummary(lt, false);
+		// Traces mostly arrive in order of their dates, so this is an append
+		int n = mSummaries.size();
+		if(n == 0 || TraceSummary.BY_DATE.compare(mSummaries.get(n - 1), summary) <= 0)
+			mSummaries.add(summary);
+		else
+			mSummaries.add(-Collections.binarySearch(mSummaries, summary, TraceSummary.BY_DATE) - 1, summary);
+	}
+	
+	/**
+	 * Replaces the summary of a trace by a fresh one.
+	 * 
+	 * @return the fresh summary
+	 */
+	private TraceSummary updateSummary(LocationTrace lt) {
+		TraceSummary summary = new TraceSummary(lt, false);
+		int i = Collections.binarySearch(mSummaries, summary, TraceSummary.BY_DATE);
+		if(i >= 0)
+			mSummaries.set(i, summary);
+		return summary;
+	}
+	
+	private void resetJournal() {
+		try {
+			mJournal.reset();
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e("DBStorage", "Error resetting trace journal: " + e);
 		}
 	}
 	
@@ -70,9 +290,18 @@ public class TraceDB{
 	 * Starts a new trace for the following locations. This trace is also
 	 * added to mTraces.
 	 */
-	public void startNewCurrentTrace() {
-		mCurrentTrace = new LocationTrace(getStorageDir("ElevationLog","traces"));
-		mTraces.add(mCurrentTrace);
+	public synchronized void startNewCurrentTrace() {
+		mCurrentTrace = new LocationTrace(mTraceDir);
+		mCurrentTrace.setId(mNextTraceId++);
+		addTrace(mCurrentTrace);
+		try {
+			mJournal.appendStart(mCurrentTrace.getId(), mCurrentTrace.getDate().getTime());
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e("DBStorage", "Error journaling trace start: " + e);
+		}
+		if(mListener != null)
+			mListener.onTraceAdded(new TraceSummary(mCurrentTrace, true));
 	}
 	
 	/**
@@ -80,18 +309,119 @@ public class TraceDB{
 	 * 
 	 * @param node the node to be added
 	 */
-	public void addNodeToCurrentTrace(LocationNode node) {
+	public synchronized void addNodeToCurrentTrace(LocationNode node) {
 		if(mCurrentTrace == null)
-			mCurrentTrace = new LocationTrace(getStorageDir("ElevationLog","traces"));
+			startNewCurrentTrace();
 		mCurrentTrace.addNode(node);
+		try {
+			mJournal.appendNode(mCurrentTrace.getId(), node);
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e("DBStorage", "Error journaling node: " + e);
+		}
 	}
 	
 	/**
 	 * Closes the current trace.
 	 */
-	public void closeCurrentTrace() {
+	public synchronized void closeCurrentTrace() {
+		if(mCurrentTrace != null) {
+			try {
+				mJournal.appendClose(mCurrentTrace.getId());
+			} catch (IOException e) {
+				e.printStackTrace();
+				Log.e("DBStorage", "Error journaling trace close: " + e);
+			}
+			// Once archived, the journal holds nothing that is not stored elsewhere
+			if(archiveTrace(mCurrentTrace))
+				resetJournal();
+			TraceSummary summary = updateSummary(mCurrentTrace);
+			if(mListener != null)
+				mListener.onTraceChanged(summary);
+		}
 		mCurrentTrace = null;
 	}
+	
+	/**
+	 * Adds a complete trace, e.g. read from a GPX file. It gets a new id and
+	 * is archived right away.
+	 * 
+	 * @param lt the trace
+	 * @return true on success
+	 */
+	public boolean importTrace(LocationTrace lt) {
+		return importTraces(Collections.singletonList(lt)) == 1;
+	}
+	
+	/**
+	 * Adds several complete traces. They get new ids and are archived
+	 * together with one sync, see TraceArchive.appendAll(). Either all of
+	 * them are added or none.
+	 * 
+	 * @param traces the traces
+	 * @return the number of traces added
+	 */
+	public synchronized int importTraces(List<LocationTrace> traces) {
+		for(LocationTrace lt : traces)
+			lt.setId(mNextTraceId++);
+		List<TraceArchive.Entry> entries;
+		try {
+			entries = mArchive.appendAll(traces);
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e("DBStorage", "Error archiving " + traces.size() + " imported traces: " + e);
+			return 0;
+		}
+		for(int i = 0; i < traces.size(); i++) {
+			LocationTrace lt = traces.get(i);
+			lt.setArchived(mArchive, entries.get(i));
+			lt.unload();
+			addTrace(lt);
+			if(mListener != null)
+				mListener.onTraceAdded(new TraceSummary(lt, false));
+		}
+		return traces.size();
+	}
+	
+	/**
+	 * @param listener notified of changes of the trace list, null for none
+	 */
+	public synchronized void setListener(Listener listener) {
+		mListener = listener;
+	}
+	
+	/**
+	 * @return the directory traces write their GPX files to
+	 */
+	public File getTraceDir() {
+		return mTraceDir;
+	}
+	
+	/**
+	 * Sets the uploaded flag of a trace and persists it. The flag of an
+	 * archived trace only changes once it is on disk.
+	 * 
+	 * @param lt the trace
+	 * @param uploaded the new value of the flag
+	 * @return true on success
+	 */
+	public synchronized boolean setUploaded(LocationTrace lt, boolean uploaded) {
+		TraceArchive.Entry e = lt.getArchiveEntry();
+		if(e != null) {
+			try {
+				mArchive.setUploaded(e, uploaded);
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				Log.e("DBStorage", "Error updating trace " + lt.getId() + ": " + ioe);
+				return false;
+			}
+		}
+		lt.setUploaded(uploaded);
+		TraceSummary summary = updateSummary(lt);
+		if(mListener != null)
+			mListener.onTraceChanged(summary);
+		return true;
+	}
 
 	/**
 	 * Deserializes the db file from storage.
@@ -113,14 +443,8 @@ public class TraceDB{
 			Log.i("DBStorage", "Successfully loaded trace DB");
 			return res;
 		} catch (EOFException ef) {
-			Log.w("DBStorage", "Existing db corrupted, creating new one.");
-			try {
-				mTraceDBFile.createNewFile();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			return new LinkedList<LocationTrace>();
+			// Keep the file, it is neither migrated nor renamed
+			Log.e("DBStorage", "Existing db truncated, not migrated: " + mTraceDBFile);
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
 			Log.e("DBStorage", "Error reading DB: " + ioe);
@@ -132,30 +456,231 @@ public class TraceDB{
 	}
 	
 	/**
-	 * Serialize list of traces and save to file.
-	 * 
-	 * @throws IOException
+	 * Commits all journaled data to storage. Only nodes recorded since the
+	 * last commit are written, independent of the DB size.
 	 */
-	public void writeTraceDBFile(){
+	public synchronized void writeTraceDBFile(){
 		try {
-			FileOutputStream fileOut = new FileOutputStream(mTraceDBFile);
-			ObjectOutputStream out = new ObjectOutputStream(fileOut);
-			
-			out.writeObject(mTraces);
-			
-			out.close();
-			fileOut.close();
+			mJournal.commit();
 			
-			mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(mTraceDBFile)));
-			Log.i("DBStorage", "Serialized data is saved in " + mTraceDBFile.getAbsolutePath());
+			if(mContext != null)
+				mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(mTraceDBFile)));
+			Log.i("DBStorage", "Trace journal committed in " + mTraceDBFile.getAbsolutePath() + ".journal");
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
-			Log.e("DBStorage", "Error writing trace DB file: " + ioe);
+			Log.e("DBStorage", "Error committing trace journal: " + ioe);
 		}
 	}
 	
-	public LinkedList<LocationTrace> getTraces() {
-		return mTraces;
+	/**
+	 * Starts committing the journal in the background every intervalMillis,
+	 * until the DB is closed.
+	 * 
+	 * @param intervalMillis time between checkpoints, bounds how much of the
+	 * 	current trace a killed process can lose
+	 */
+	public synchronized void startCheckpoints(long intervalMillis) {
+		if(mCheckpointer != null)
+			return;
+		mCheckpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TraceDBCheckpoint");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mCheckpointer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkpoint();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Forces the nodes journaled since the last commit to disk, if any. Only
+	 * those are written, and the DB lock is not taken, so recording goes on
+	 * meanwhile.
+	 */
+	public void checkpoint() {
+		try {
+			mJournal.commit();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			Log.e("DBStorage", "Error checkpointing trace journal: " + ioe);
+		}
+	}
+	
+	/**
+	 * Archives the current trace and closes all files. The DB must not be
+	 * used afterwards.
+	 */
+	public synchronized void close() {
+		// Without interrupting, which would close the journal's channel mid-write
+		if(mCheckpointer != null) {
+			mCheckpointer.shutdown();
+			try {
+				if(!mCheckpointer.awaitTermination(CHECKPOINT_STOP_SECONDS, TimeUnit.SECONDS))
+					Log.w("DBStorage", "Checkpoint still running, closing trace DB anyway");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeCurrentTrace();
+		writeTraceDBFile();
+		try {
+			mJournal.close();
+			mArchive.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			Log.e("DBStorage", "Error closing trace DB: " + ioe);
+		}
+	}
+	
+	/**
+	 * Writes all closed traces accepted by the filter to GPX files, in
+	 * parallel on the given number of threads. The trace being recorded is
+	 * left out. The DB is not locked during the export, so recording goes on.
+	 * 
+	 * @param dir the directory of the GPX files
+	 * @param filter selects traces, null for all
+	 * @param parallelism number of worker threads
+	 * @param simplifier simplifies the written traces, null to write all nodes
+	 * @param progress receives progress on the calling thread, may be null
+	 * @return counts and throughput of the export
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public TraceExporter.Result exportGPX(File dir, TraceExporter.Filter filter, int parallelism,
+			TraceSimplifier simplifier, TraceExporter.Progress progress) throws InterruptedException {
+		return new TraceExporter(parallelism).setSimplifier(simplifier).export(getClosedTraces(), dir, filter,
+				progress);
+	}
+	
+	/**
+	 * Turns all closed traces into anonymised (OSM node, pressure, time)
+	 * tuples. The trace being recorded is left out. The DB is not locked
+	 * meanwhile, so recording goes on.
+	 * 
+	 * @param pipeline the anonymisation settings
+	 * @param sink receives the tuples
+	 * @return counts and throughput of the run
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public AnonymisationPipeline.Result anonymise(AnonymisationPipeline pipeline, AnonymisationPipeline.Sink sink)
+			throws InterruptedException {
+		return pipeline.run(getClosedTraces(), sink);
+	}
+	
+	/**
+	 * Adds the anonymised pressure tuples of the traces not merged into the
+	 * store yet, those with an id above its last trace id. The traces are
+	 * aggregated into a separate store first. If a trace fails, for example
+	 * because its nodes cannot be loaded, only the traces before it are
+	 * merged and it is tried again on the next call. Traces with ids
+	 * above the one being recorded wait until it is closed, as the last trace
+	 * id must not pass it.
+	 * 
+	 * @param store receives the statistics, its last trace id is advanced
+	 * @param pipeline the anonymisation settings
+	 * @return counts and throughput of the run
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public AnonymisationPipeline.Result aggregatePressure(PressureAggregateStore store,
+			AnonymisationPipeline pipeline) throws InterruptedException {
+		long last = store.getLastTraceId();
+		long bound = Long.MAX_VALUE;
+		LinkedList<LocationTrace> traces = new LinkedList<LocationTrace>();
+		synchronized(this) {
+			if(mCurrentTrace != null)
+				bound = mCurrentTrace.getId() - 1;
+			for(LocationTrace lt : mTraces) {
+				if(lt != mCurrentTrace && lt.getId() > last && lt.getId() <= bound)
+					traces.add(lt);
+			}
+		}
+		PressureAggregateStore added = new PressureAggregateStore(1024, false);
+		AnonymisationPipeline.Result res = pipeline.run(traces, added);
+		if(res.getFailed() > 0) {
+			// The last id must not move past a failed trace, so it is retried
+			// next time. Only the traces before it are merged now.
+			long failed = res.getFirstFailedId();
+			Log.w("DBStorage", "Pressure aggregation incomplete, merging traces before " + failed + ": " + res);
+			for(Iterator<LocationTrace> it = traces.iterator(); it.hasNext();) {
+				if(it.next().getId() >= failed)
+					it.remove();
+			}
+			if(traces.isEmpty())
+				return res;
+			added = new PressureAggregateStore(1024, false);
+			if(pipeline.run(traces, added).getFailed() > 0)
+				return res;
+		}
+		for(LocationTrace lt : traces)
+			last = Math.max(last, lt.getId());
+		added.setLastTraceId(last);
+		store.merge(added);
+		return res;
+	}
+	
+	/**
+	 * @return a snapshot of all traces except the one being recorded
+	 */
+	public synchronized LinkedList<LocationTrace> getClosedTraces() {
+		LinkedList<LocationTrace> traces = new LinkedList<LocationTrace>(mTraces);
+		if(mCurrentTrace != null)
+			traces.remove(mCurrentTrace);
+		return traces;
+	}
+	
+	/**
+	 * @return the closed traces that are not uploaded yet, oldest first
+	 */
+	public synchronized LinkedList<LocationTrace> getTracesToUpload() {
+		LinkedList<LocationTrace> res = new LinkedList<LocationTrace>();
+		for(LocationTrace lt : mTraces) {
+			if(lt != mCurrentTrace && !lt.isUploaded())
+				res.add(lt);
+		}
+		return res;
+	}
+	
+	/**
+	 * @return a snapshot of all traces, safe to use while nodes are added
+	 */
+	public synchronized LinkedList<LocationTrace> getTraces() {
+		return new LinkedList<LocationTrace>(mTraces);
+	}
+
+	/**
+	 * Returns one page of the trace summaries, sorted by date. The current
+	 * trace is included with its length at the time of the call.
+	 * 
+	 * @param offset index of the first summary to return
+	 * @param limit maximum number of summaries to return
+	 * @param newestFirst true to page from the newest trace to the oldest
+	 * @return the summaries, empty if offset is past the end
+	 */
+	public synchronized List<TraceSummary> getSummaries(int offset, int limit, boolean newestFirst) {
+		int total = mSummaries.size();
+		int from = Math.max(0, offset);
+		int to = (int) Math.min(total, (long) from + Math.max(0, limit));
+		ArrayList<TraceSummary> res = new ArrayList<TraceSummary>(Math.max(0, to - from));
+		long currentId = mCurrentTrace != null ? mCurrentTrace.getId() : -1;
+		for(int i = from; i < to; i++) {
+			TraceSummary summary = mSummaries.get(newestFirst ? total - 1 - i : i);
+			if(summary.getId() == currentId)
+				summary = new TraceSummary(mCurrentTrace, true);
+			res.add(summary);
+		}
+		return res;
+	}
+	
+	/**
+	 * @return the number of traces, including the current one
+	 */
+	public synchronized int getTraceCount() {
+		return mSummaries.size();
 	}
 
 	/**
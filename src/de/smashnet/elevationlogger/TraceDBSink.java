@@ -0,0 +1,33 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Records the fixes selected by the ingest pipeline in the trace DB, together
+ * with their fused altitude
+ * 
+ * @author Nicolas Inden
+ *
+ */
+class TraceDBSink implements IngestPipeline.Sink {
+	private TraceDB mTraceDB;
+	
+	public TraceDBSink(TraceDB db) {
+		mTraceDB = db;
+	}
+
+	@Override
+	public void startTrace() {
+		mTraceDB.startNewCurrentTrace();
+	}
+
+	@Override
+	public void addNode(FixRingBuffer.Fix fix) {
+		mTraceDB.addNodeToCurrentTrace(new LocationNode(fix.latitude, fix.longitude, fix.accuracy,
+				fix.osmId, fix.distance, fix.pressure, fix.altitude, fix.time,
+				fix.fusedAltitude, fix.altitudeVariance));
+	}
+
+	@Override
+	public void closeTrace() {
+		mTraceDB.closeCurrentTrace();
+	}
+}
@@ -0,0 +1,256 @@
+package de.smashnet.elevationlogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+/**
+ * Writes many traces to GPX files in parallel. Every trace is streamed through
+ * its own GpxWriter on one of a fixed number of worker threads, so the export
+ * time depends on the number of cores rather than the number of traces.
+ * Archived traces that were not in memory before are unloaded again after
+ * writing, which bounds the memory to about one trace per worker.
+ *
+ * With a TraceSimplifier set, each file holds the simplified trace instead of
+ * all recorded nodes; the stored traces are not changed.
+ *
+ * File names are made unique by the trace id:
+ * yyMMdd-HHmm_trace-&lt;id&gt;.gpx. Existing files of the same trace are replaced.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceExporter {
+
+	/**
+	 * Selects the traces to export. All traces pass by default.
+	 */
+	public static class Filter {
+		private Boolean mUploaded;
+		private long mFrom = Long.MIN_VALUE;
+		private long mTo = Long.MAX_VALUE;
+
+		/**
+		 * Only pass traces with the given uploaded flag.
+		 */
+		public Filter setUploaded(boolean uploaded) {
+			mUploaded = uploaded;
+			return this;
+		}
+
+		/**
+		 * Only pass traces recorded in [from, to), both in milliseconds since
+		 * the epoch.
+		 */
+		public Filter setDateRange(long from, long to) {
+			mFrom = from;
+			mTo = to;
+			return this;
+		}
+
+		public boolean accept(LocationTrace lt) {
+			if(mUploaded != null && lt.isUploaded() != mUploaded.booleanValue())
+				return false;
+			long date = lt.getDate().getTime();
+			return date >= mFrom && date < mTo;
+		}
+	}
+
+	/**
+	 * Receives the progress of an export on the thread that started it.
+	 */
+	public interface Progress {
+		/**
+		 * Called after each trace.
+		 *
+		 * @param done traces finished so far, including failed ones
+		 * @param total traces to export
+		 * @param nodes nodes written so far
+		 * @param elapsedNanos time since the export started
+		 */
+		void onProgress(int done, int total, long nodes, long elapsedNanos);
+	}
+
+	/**
+	 * Outcome of an export.
+	 */
+	public static class Result {
+		private int mTraces;
+		private int mFailed;
+		private long mNodes;
+		private long mBytes;
+		private long mNanos;
+
+		/**
+		 * @return the number of traces written
+		 */
+		public int getTraces() {
+			return mTraces;
+		}
+
+		/**
+		 * @return the number of traces that could not be written
+		 */
+		public int getFailed() {
+			return mFailed;
+		}
+
+		public long getNodes() {
+			return mNodes;
+		}
+
+		/**
+		 * @return the size of all written files
+		 */
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public long getNanos() {
+			return mNanos;
+		}
+
+		public double getTracesPerSecond() {
+			return mNanos == 0 ? 0 : mTraces * 1e9 / mNanos;
+		}
+
+		public double getNodesPerSecond() {
+			return mNanos == 0 ? 0 : mNodes * 1e9 / mNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d traces (%d failed), %d nodes, %d bytes in %.2f s: %.1f traces/s, %.0f nodes/s",
+					mTraces, mFailed, mNodes, mBytes, mNanos / 1e9, getTracesPerSecond(), getNodesPerSecond());
+		}
+	}
+
+	/**
+	 * Outcome of one trace
+	 */
+	private static class Written {
+		int mNodes;
+		long mBytes;
+	}
+
+	private int mParallelism;
+	private TraceSimplifier mSimplifier;
+
+	/**
+	 * @param parallelism number of worker threads, at least 1
+	 */
+	public TraceExporter(int parallelism) {
+		mParallelism = Math.max(parallelism, 1);
+	}
+
+	/**
+	 * Simplifies each trace before writing it. The simplifier counts the
+	 * nodes in and out, so it reports the compression ratio of the export.
+	 *
+	 * @param simplifier the tolerances, null to write all nodes (default)
+	 */
+	public TraceExporter setSimplifier(TraceSimplifier simplifier) {
+		mSimplifier = simplifier;
+		return this;
+	}
+
+	/**
+	 * Exports all traces accepted by the filter and waits until all are done.
+	 *
+	 * @param traces the traces, none of them may be recorded to concurrently
+	 * @param dir the directory of the GPX files
+	 * @param filter selects traces, null for all
+	 * @param progress receives progress, may be null
+	 * @return counts and throughput of the export
+	 * @throws InterruptedException if interrupted while waiting, remaining
+	 * 	traces are not exported then
+	 */
+	public Result export(List<LocationTrace> traces, final File dir, Filter filter, Progress progress)
+			throws InterruptedException {
+		final ArrayList<LocationTrace> selected = new ArrayList<LocationTrace>();
+		for(LocationTrace lt : traces) {
+			if(filter == null || filter.accept(lt))
+				selected.add(lt);
+		}
+
+		Result res = new Result();
+		long start = System.nanoTime();
+		int threads = Math.min(mParallelism, Math.max(selected.size(), 1));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<Written> done = new ExecutorCompletionService<Written>(pool);
+			for(final LocationTrace lt : selected) {
+				done.submit(new Callable<Written>() {
+					@Override
+					public Written call() throws IOException {
+						return write(lt, dir);
+					}
+				});
+			}
+			for(int i = 0; i < selected.size(); i++) {
+				try {
+					Written w = done.take().get();
+					res.mTraces++;
+					res.mNodes += w.mNodes;
+					res.mBytes += w.mBytes;
+				} catch (ExecutionException e) {
+					res.mFailed++;
+					Log.e("TraceExporter", "Error exporting trace: " + e.getCause());
+				}
+				if(progress != null)
+					progress.onProgress(i + 1, selected.size(), res.mNodes, System.nanoTime() - start);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		res.mNanos = System.nanoTime() - start;
+		Log.i("TraceExporter", "Exported " + res);
+		return res;
+	}
+
+	/**
+	 * @return the name of the GPX file of the given trace
+	 */
+	public static String getFileName(LocationTrace lt) {
+		return new GpxWriter(lt.getDate(), null, fileSuffix(lt)).getFilename();
+	}
+
+	private static String fileSuffix(LocationTrace lt) {
+		return "trace-" + lt.getId() + ".gpx";
+	}
+
+	private Written write(LocationTrace lt, File dir) throws IOException {
+		boolean wasLoaded = lt.isLoaded();
+		// Load before the file is created, so a trace that cannot be read
+		// leaves no empty GPX file behind
+		NodeColumns nodes = lt.getNodes();
+		if(mSimplifier != null) {
+			NodeColumns kept = new NodeColumns();
+			mSimplifier.simplify(nodes, kept);
+			nodes = kept;
+		}
+		GpxWriter gpxWriter = new GpxWriter(lt.getDate(), dir, fileSuffix(lt));
+		Written w = new Written();
+		try {
+			gpxWriter.open(GpxWriter.FlushPolicy.DEFAULT, false);
+			w.mNodes = lt.writeGPX(gpxWriter, nodes);
+		} finally {
+			gpxWriter.close();
+			if(!wasLoaded)
+				lt.unload();
+		}
+		if(gpxWriter.hasError())
+			throw new IOException("Error writing " + gpxWriter.getFilename());
+		w.mBytes = new File(dir, gpxWriter.getFilename()).length();
+		return w;
+	}
+}
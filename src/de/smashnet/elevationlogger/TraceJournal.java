@@ -0,0 +1,379 @@
+package de.smashnet.elevationlogger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append-only journal of trace events. Every trace start, recorded node and
+ * trace close is written as one fixed-size record, so the cost of persisting
+ * a node does not depend on how many traces are already stored.
+ *
+ * The journal is split into segments of bounded size. Records are collected
+ * and forced to disk in groups (group commit), either when enough records are
+ * pending or when the oldest pending record exceeds a time limit. Start and
+ * close markers are committed immediately.
+ *
+ * On open, recover() replays all segments. A record that is incomplete or
+ * fails its checksum marks the torn tail of a crash: the segment is truncated
+ * there and all following segments are discarded.
+ *
+ * Record layout (big endian, RECORD_SIZE bytes):
+ * <pre>
+ *  0 int    type (TYPE_START, TYPE_NODE, TYPE_CLOSE)
+ *  4 long   trace id
+ * 12 double latitude
+ * 20 double longitude
+ * 28 float  accuracy
+ * 32 long   OSM node id
+ * 40 double distance to OSM node
+ * 48 double air pressure
+ * 56 double GPS altitude
+ * 64 long   time (node visit time, or trace date for TYPE_START)
+ * 72 double fused altitude, NaN if none
+ * 80 double variance of the fused altitude, NaN if none
+ * 88 int    CRC32 of bytes 0..87
+ * </pre>
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceJournal {
+	public static final int TYPE_START = 1;
+	public static final int TYPE_NODE = 2;
+	public static final int TYPE_CLOSE = 3;
+
+	/**
+	 * Size of one journal record in bytes
+	 */
+	public static final int RECORD_SIZE = 92;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".jnl";
+
+	/**
+	 * Receives the records of the journal during recovery.
+	 */
+	public interface Listener {
+		void onTraceStart(long traceId, long date);
+		void onNode(long traceId, LocationNode node);
+		void onTraceClose(long traceId);
+	}
+
+	/**
+	 * Directory holding the segment files
+	 */
+	private File mDir;
+	/**
+	 * Segments are rolled over once they would exceed this size
+	 */
+	private long mMaxSegmentBytes;
+	/**
+	 * Commit as soon as this many records are pending
+	 */
+	private int mGroupCommitRecords;
+	/**
+	 * Commit as soon as the oldest pending record is older than this
+	 */
+	private long mGroupCommitMillis;
+
+	/**
+	 * Number of the segment that is currently appended to
+	 */
+	private int mSegmentNumber;
+	private RandomAccessFile mSegmentFile;
+	private FileChannel mSegment;
+
+	/**
+	 * Records that are not yet written to the segment
+	 */
+	private ByteBuffer mPending;
+	private int mPendingRecords;
+	private long mFirstPendingMillis;
+
+	/**
+	 * Node fields of marker records
+	 */
+	private static final byte[] NO_NODE = new byte[52];
+	private static final byte[] NO_FUSION = new byte[16];
+
+	private final CRC32 mCrc = new CRC32();
+	private final byte[] mRecord = new byte[RECORD_SIZE];
+	private final ByteBuffer mRecordBuf = ByteBuffer.wrap(mRecord);
+
+	/**
+	 * @param dir directory for the segment files, created if missing
+	 * @param maxSegmentBytes size after which a new segment is started
+	 * @param groupCommitRecords max number of records per commit
+	 * @param groupCommitMillis max age of a pending record before it is committed
+	 */
+	public TraceJournal(File dir, long maxSegmentBytes, int groupCommitRecords, long groupCommitMillis) {
+		mDir = dir;
+		mMaxSegmentBytes = Math.max(maxSegmentBytes, RECORD_SIZE);
+		mGroupCommitRecords = Math.max(groupCommitRecords, 1);
+		mGroupCommitMillis = groupCommitMillis;
+		mPending = ByteBuffer.allocate(mGroupCommitRecords * RECORD_SIZE);
+		if(!mDir.exists() && !mDir.mkdirs())
+			Log.w("TraceJournal", "Journal directory not created");
+	}
+
+	/**
+	 * Replays all intact records to the listener, cuts off a torn tail and
+	 * opens the last segment for appending. Must be called once before
+	 * anything is appended.
+	 *
+	 * @param listener receives the replayed records, may be null
+	 * @throws IOException
+	 */
+	public synchronized void recover(Listener listener) throws IOException {
+		File[] segments = listSegments();
+		mSegmentNumber = 0;
+		boolean torn = false;
+		for(File seg : segments) {
+			if(torn) {
+				Log.w("TraceJournal", "Discarding segment after torn tail: " + seg.getName());
+				if(!seg.delete())
+					Log.w("TraceJournal", "Could not delete " + seg.getName());
+				continue;
+			}
+			mSegmentNumber = segmentNumber(seg);
+			long valid = replaySegment(seg, listener);
+			if(valid < seg.length()) {
+				Log.w("TraceJournal", "Truncating torn tail of " + seg.getName() + " at " + valid);
+				RandomAccessFile raf = new RandomAccessFile(seg, "rw");
+				try {
+					raf.setLength(valid);
+					raf.getFD().sync();
+				} finally {
+					raf.close();
+				}
+				torn = true;
+			}
+		}
+		openSegment(mSegmentNumber == 0 ? 1 : mSegmentNumber);
+	}
+
+	/**
+	 * Journals the start of a trace.
+	 */
+	public synchronized void appendStart(long traceId, long date) throws IOException {
+		encode(TYPE_START, traceId, null, date);
+		commit();
+	}
+
+	/**
+	 * Journals a node of a trace. The record is committed with the next group.
+	 */
+	public synchronized void appendNode(long traceId, LocationNode node) throws IOException {
+		encode(TYPE_NODE, traceId, node, node.getDateVisited());
+		if(mPendingRecords >= mGroupCommitRecords
+				|| System.currentTimeMillis() - mFirstPendingMillis >= mGroupCommitMillis)
+			commit();
+	}
+
+	/**
+	 * Journals the end of a trace.
+	 */
+	public synchronized void appendClose(long traceId) throws IOException {
+		encode(TYPE_CLOSE, traceId, null, 0);
+		commit();
+	}
+
+	/**
+	 * Writes all pending records and forces them to disk.
+	 */
+	public synchronized void commit() throws IOException {
+		if(mPendingRecords == 0 || mSegment == null)
+			return;
+		if(mSegment.size() + mPending.position() > mMaxSegmentBytes && mSegment.size() > 0)
+			rollover();
+		mPending.flip();
+		while(mPending.hasRemaining())
+			mSegment.write(mPending);
+		mSegment.force(false);
+		mPending.clear();
+		mPendingRecords = 0;
+	}
+
+	/**
+	 * Discards the whole journal and starts over with an empty segment. Used
+	 * once everything journaled so far is stored elsewhere.
+	 */
+	public synchronized void reset() throws IOException {
+		mPending.clear();
+		mPendingRecords = 0;
+		closeSegment();
+		for(File seg : listSegments())
+			if(!seg.delete())
+				Log.w("TraceJournal", "Could not delete " + seg.getName());
+		openSegment(1);
+	}
+
+	/**
+	 * Commits pending records and closes the current segment.
+	 */
+	public synchronized void close() throws IOException {
+		commit();
+		closeSegment();
+	}
+
+	private void encode(int type, long traceId, LocationNode node, long time) throws IOException {
+		if(mPending.remaining() < RECORD_SIZE)
+			commit();
+		mRecordBuf.clear();
+		mRecordBuf.putInt(type);
+		mRecordBuf.putLong(traceId);
+		if(node != null) {
+			mRecordBuf.putDouble(node.getLatitude());
+			mRecordBuf.putDouble(node.getLongitude());
+			mRecordBuf.putFloat(node.getAccuracy());
+			mRecordBuf.putLong(node.getOSMNode());
+			mRecordBuf.putDouble(node.getDistance());
+			mRecordBuf.putDouble(node.getAirPressure());
+			mRecordBuf.putDouble(node.getGPSAltitude());
+		} else {
+			mRecordBuf.put(NO_NODE);
+		}
+		mRecordBuf.putLong(time);
+		if(node != null) {
+			mRecordBuf.putDouble(node.getFusedAltitude());
+			mRecordBuf.putDouble(node.getAltitudeVariance());
+		} else {
+			mRecordBuf.put(NO_FUSION);
+		}
+		mCrc.reset();
+		mCrc.update(mRecord, 0, RECORD_SIZE - 4);
+		mRecordBuf.putInt((int) mCrc.getValue());
+
+		if(mPendingRecords == 0)
+			mFirstPendingMillis = System.currentTimeMillis();
+		mPending.put(mRecord);
+		mPendingRecords++;
+	}
+
+	/**
+	 * Replays one segment.
+	 *
+	 * @return the number of bytes that hold intact records
+	 */
+	private long replaySegment(File seg, Listener listener) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(seg, "r");
+		FileChannel ch = raf.getChannel();
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 256);
+		long valid = 0;
+		try {
+			while(true) {
+				int read = ch.read(buf);
+				buf.flip();
+				while(buf.remaining() >= RECORD_SIZE) {
+					buf.get(mRecord, 0, RECORD_SIZE);
+					if(!decode(listener))
+						return valid;
+					valid += RECORD_SIZE;
+				}
+				// Keep a partial record for the next read
+				buf.compact();
+				if(read < 0)
+					break;
+			}
+		} finally {
+			raf.close();
+		}
+		return valid;
+	}
+
+	/**
+	 * Checks and dispatches the record in mRecord.
+	 *
+	 * @return false if the record is corrupt
+	 */
+	private boolean decode(Listener listener) {
+		mCrc.reset();
+		mCrc.update(mRecord, 0, RECORD_SIZE - 4);
+		mRecordBuf.clear();
+		if(mRecordBuf.getInt(RECORD_SIZE - 4) != (int) mCrc.getValue())
+			return false;
+
+		int type = mRecordBuf.getInt();
+		long traceId = mRecordBuf.getLong();
+		long time = mRecordBuf.getLong(64);
+		if(listener == null)
+			return type == TYPE_START || type == TYPE_NODE || type == TYPE_CLOSE;
+		switch(type) {
+		case TYPE_START:
+			listener.onTraceStart(traceId, time);
+			return true;
+		case TYPE_NODE:
+			LocationNode node = new LocationNode(mRecordBuf.getDouble(), mRecordBuf.getDouble(),
+					mRecordBuf.getFloat(), mRecordBuf.getLong(), mRecordBuf.getDouble(),
+					mRecordBuf.getDouble(), mRecordBuf.getDouble(), time);
+			node.setFusedAltitude(mRecordBuf.getDouble(72));
+			node.setAltitudeVariance(mRecordBuf.getDouble(80));
+			listener.onNode(traceId, node);
+			return true;
+		case TYPE_CLOSE:
+			listener.onTraceClose(traceId);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void rollover() throws IOException {
+		mSegment.force(false);
+		closeSegment();
+		openSegment(mSegmentNumber + 1);
+	}
+
+	private void openSegment(int number) throws IOException {
+		mSegmentNumber = number;
+		mSegmentFile = new RandomAccessFile(segmentFile(number), "rw");
+		mSegment = mSegmentFile.getChannel();
+		mSegment.position(mSegment.size());
+	}
+
+	private void closeSegment() throws IOException {
+		if(mSegmentFile != null)
+			mSegmentFile.close();
+		mSegmentFile = null;
+		mSegment = null;
+	}
+
+	private File segmentFile(int number) {
+		return new File(mDir, String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	private File[] listSegments() {
+		File[] segments = mDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if(segments == null)
+			return new File[0];
+		Arrays.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				int na = segmentNumber(a);
+				int nb = segmentNumber(b);
+				return na < nb ? -1 : (na == nb ? 0 : 1);
+			}
+		});
+		return segments;
+	}
+
+	private static int segmentNumber(File seg) {
+		String name = seg.getName();
+		return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
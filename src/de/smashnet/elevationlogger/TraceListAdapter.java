@@ -0,0 +1,187 @@
+package de.smashnet.elevationlogger;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Adapter of the trace list, newest trace first. Rows are recycled by the
+ * ListView and bound from TraceSummaries, which are loaded page by page
+ * through a PageLoader when the list is scrolled to a row not loaded yet.
+ * Rows not loaded yet show a placeholder.
+ *
+ * Must only be used on the UI thread.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceListAdapter extends BaseAdapter {
+	/**
+	 * Loads a page of summaries, which is handed to setPage() later on
+	 */
+	public interface PageLoader {
+		/**
+		 * @param offset index of the first summary, newest first
+		 * @param limit maximum number of summaries
+		 */
+		void loadPage(int offset, int limit);
+	}
+
+	private final LayoutInflater mInflater;
+	private final PageLoader mLoader;
+	private final int mPageSize;
+	/**
+	 * Loaded summaries, a prefix of all summaries newest first
+	 */
+	private final ArrayList<TraceSummary> mSummaries = new ArrayList<TraceSummary>();
+	/**
+	 * Ids of the loaded summaries, as pages may overlap when traces are added
+	 * meanwhile
+	 */
+	private final HashSet<Long> mIds = new HashSet<Long>();
+	/**
+	 * Number of all traces, as known from the last page or update
+	 */
+	private int mTotal = 0;
+	/**
+	 * True once the first page arrived
+	 */
+	private boolean mLoaded = false;
+	/**
+	 * Offset of the page being loaded, -1 if none
+	 */
+	private int mPendingOffset = -1;
+
+	private final SimpleDateFormat mDateFormat = new SimpleDateFormat("dd.MM.yy-HH:mm", Locale.GERMANY);
+	private final Date mDate = new Date();
+	private final StringBuilder mText = new StringBuilder(64);
+
+	public TraceListAdapter(Context context, PageLoader loader, int pageSize) {
+		mInflater = LayoutInflater.from(context);
+		mLoader = loader;
+		mPageSize = pageSize;
+	}
+
+	/**
+	 * Loads the first page, unless it has arrived already. A page still
+	 * pending is asked for again, its answer may have been lost.
+	 */
+	public void load() {
+		if(mLoaded)
+			return;
+		mPendingOffset = 0;
+		mLoader.loadPage(0, mPageSize);
+	}
+
+	/**
+	 * Adds a page of summaries. Summaries already loaded are skipped.
+	 *
+	 * @param offset the offset the page was loaded from
+	 * @param summaries the page
+	 * @param total the number of all traces
+	 */
+	public void setPage(int offset, List<TraceSummary> summaries, int total) {
+		if(offset == mPendingOffset)
+			mPendingOffset = -1;
+		// Only pages continuing the loaded prefix, older answers are outdated
+		if(offset > mSummaries.size())
+			return;
+		mLoaded = true;
+		for(TraceSummary ts : summaries) {
+			if(mIds.add(ts.getId()))
+				mSummaries.add(ts);
+		}
+		mTotal = summaries.isEmpty() ? mSummaries.size() : Math.max(total, mSummaries.size());
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Adds a new trace or updates the row of a known one.
+	 *
+	 * @param summary the new summary of the trace
+	 * @param added true, if the trace is new
+	 */
+	public void update(TraceSummary summary, boolean added) {
+		// The first page will contain it
+		if(!mLoaded)
+			return;
+		if(mIds.contains(summary.getId())) {
+			for(int i = 0; i < mSummaries.size(); i++) {
+				if(mSummaries.get(i).getId() == summary.getId()) {
+					mSummaries.set(i, summary);
+					break;
+				}
+			}
+		} else if(added) {
+			mTotal++;
+			int pos = Collections.binarySearch(mSummaries, summary, Collections.reverseOrder(TraceSummary.BY_DATE));
+			pos = pos < 0 ? -pos - 1 : pos;
+			// Beyond the loaded prefix it arrives with its page
+			if(pos == mSummaries.size() && mSummaries.size() < mTotal - 1)
+				return;
+			mSummaries.add(pos, summary);
+			mIds.add(summary.getId());
+		} else {
+			return;
+		}
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public int getCount() {
+		return mTotal;
+	}
+
+	/**
+	 * @return the summary, null if not loaded yet
+	 */
+	@Override
+	public TraceSummary getItem(int position) {
+		return position < mSummaries.size() ? mSummaries.get(position) : null;
+	}
+
+	@Override
+	public long getItemId(int position) {
+		TraceSummary ts = getItem(position);
+		return ts != null ? ts.getId() : -1 - position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView tv = (TextView) convertView;
+		if(tv == null)
+			tv = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+
+		TraceSummary ts = getItem(position);
+		if(ts == null) {
+			if(mPendingOffset < 0) {
+				mPendingOffset = mSummaries.size();
+				mLoader.loadPage(mPendingOffset, mPageSize);
+			}
+			tv.setText("...");
+			return tv;
+		}
+
+		mDate.setTime(ts.getDate());
+		mText.setLength(0);
+		mText.append(mDateFormat.format(mDate));
+		mText.append(" | Length: ");
+		mText.append(ts.getLength());
+		mText.append(ts.isRecording() ? " nodes, recording" : " nodes.");
+		mText.append(" | Is Uploaded: ");
+		mText.append(ts.isUploaded());
+		tv.setText(mText.toString());
+		return tv;
+	}
+}
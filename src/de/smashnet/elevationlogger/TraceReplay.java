@@ -0,0 +1,387 @@
+package de.smashnet.elevationlogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays recorded fix and pressure streams through the same ingest path the
+ * SensorService uses, without Android: validity check, recording trigger,
+ * nearest node resolution and the trace DB, optionally with online
+ * simplification. Fixes are fed at
+ * their recorded pace, a multiple of it or as fast as the pipeline takes them.
+ *
+ * Reports the sustained fix rate and the latency from offering a fix to the
+ * end of its matching (trigger, fusion, nearest node). Recorded fixes are
+ * persisted on a separate thread, so the rate includes the DB as soon as its
+ * stage becomes the bottleneck.
+ *
+ * Input is GPX (as written by GpxWriter, or any GPX 1.1 track) or CSV with one
+ * sample per line:
+ * <pre>
+ * fix,&lt;time ms&gt;,&lt;lat&gt;,&lt;lon&gt;,&lt;altitude m&gt;,&lt;accuracy m&gt;
+ * pressure,&lt;time ms&gt;,&lt;mbar&gt;
+ * </pre>
+ * An empty altitude or accuracy marks a fix without it, which is rejected
+ * like on the device. Lines starting with # are ignored.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceReplay {
+	/**
+	 * Width of the window air pressure is averaged over at a fix, in nanoseconds
+	 */
+	private static final long PRESSURE_WINDOW_NANOS = 1000000000L;
+
+	/**
+	 * Recorded samples in time order, fixes and pressure separately
+	 */
+	public static class Samples {
+		private long[] mFixTime = new long[1024];
+		private double[] mLat = new double[1024];
+		private double[] mLon = new double[1024];
+		private double[] mAlt = new double[1024];
+		private float[] mAcc = new float[1024];
+		private int mFixes;
+
+		private long[] mPressureTime = new long[1024];
+		private double[] mPressure = new double[1024];
+		private int mPressures;
+
+		/**
+		 * Adds a fix.
+		 *
+		 * @param altitude NaN if unknown
+		 * @param accuracy NaN if unknown
+		 */
+		public void addFix(long time, double lat, double lon, double altitude, float accuracy) {
+			if(mFixes == mFixTime.length) {
+				int n = mFixes * 2;
+				mFixTime = Arrays.copyOf(mFixTime, n);
+				mLat = Arrays.copyOf(mLat, n);
+				mLon = Arrays.copyOf(mLon, n);
+				mAlt = Arrays.copyOf(mAlt, n);
+				mAcc = Arrays.copyOf(mAcc, n);
+			}
+			mFixTime[mFixes] = time;
+			mLat[mFixes] = lat;
+			mLon[mFixes] = lon;
+			mAlt[mFixes] = altitude;
+			mAcc[mFixes] = accuracy;
+			mFixes++;
+		}
+
+		public void addPressure(long time, double pressure) {
+			if(mPressures == mPressureTime.length) {
+				mPressureTime = Arrays.copyOf(mPressureTime, mPressures * 2);
+				mPressure = Arrays.copyOf(mPressure, mPressures * 2);
+			}
+			mPressureTime[mPressures] = time;
+			mPressure[mPressures] = pressure;
+			mPressures++;
+		}
+
+		public int getFixCount() {
+			return mFixes;
+		}
+
+		public int getPressureCount() {
+			return mPressures;
+		}
+
+		/**
+		 * Reads GPX or CSV, depending on the file extension.
+		 */
+		public static Samples read(File file) throws IOException {
+			return file.getName().toLowerCase().endsWith(".csv") ? readCsv(file) : readGpx(file);
+		}
+
+		/**
+		 * Reads all track points of a GPX file. The air pressure of a point,
+		 * if any, becomes a pressure sample at its time.
+		 */
+		public static Samples readGpx(File file) throws IOException {
+			final Samples s = new Samples();
+			GpxImporter.parse(file, new GpxImporter.Handler() {
+				@Override
+				public void startTrace() {
+				}
+
+				@Override
+				public void addNode(double lat, double lon, float acc, long osmNode, double pressure,
+						double elevation, long time) {
+					s.addFix(time, lat, lon, elevation, acc > 0 ? acc : Float.NaN);
+					if(pressure > 0)
+						s.addPressure(time, pressure);
+				}
+
+				@Override
+				public void endTrace() {
+				}
+			});
+			return s;
+		}
+
+		public static Samples readCsv(File file) throws IOException {
+			Samples s = new Samples();
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				int lineNo = 0;
+				while((line = in.readLine()) != null) {
+					lineNo++;
+					line = line.trim();
+					if(line.length() == 0 || line.startsWith("#"))
+						continue;
+					String[] f = line.split(",", -1);
+					try {
+						if(f[0].equals("fix") && f.length >= 6) {
+							s.addFix(Long.parseLong(f[1].trim()), Double.parseDouble(f[2]), Double.parseDouble(f[3]),
+									optional(f[4]), (float) optional(f[5]));
+						} else if(f[0].equals("pressure") && f.length >= 3) {
+							s.addPressure(Long.parseLong(f[1].trim()), Double.parseDouble(f[2]));
+						} else {
+							throw new IOException("Malformed CSV in line " + lineNo + ": " + line);
+						}
+					} catch (NumberFormatException e) {
+						throw new IOException("Malformed CSV in line " + lineNo + ": " + line);
+					}
+				}
+			} finally {
+				in.close();
+			}
+			return s;
+		}
+
+		private static double optional(String s) {
+			s = s.trim();
+			return s.length() == 0 ? Double.NaN : Double.parseDouble(s);
+		}
+	}
+
+	/**
+	 * Outcome of a replay.
+	 */
+	public static class Result {
+		private long mFixes;
+		private long mRejected;
+		private long mOffered;
+		private long mDropped;
+		private long mMatched;
+		private long mPersisted;
+		private long mNanos;
+		private long[] mLatencies;
+		private IngestMetrics mMetrics;
+
+		/**
+		 * @return the number of fixes in the input
+		 */
+		public long getFixes() {
+			return mFixes;
+		}
+
+		/**
+		 * @return the number of fixes without accuracy or altitude
+		 */
+		public long getRejected() {
+			return mRejected;
+		}
+
+		public long getOffered() {
+			return mOffered;
+		}
+
+		/**
+		 * @return the number of fixes dropped because the pipeline was full
+		 */
+		public long getDropped() {
+			return mDropped;
+		}
+
+		public long getMatched() {
+			return mMatched;
+		}
+
+		/**
+		 * @return the number of nodes written to the trace DB
+		 */
+		public long getPersisted() {
+			return mPersisted;
+		}
+
+		public long getNanos() {
+			return mNanos;
+		}
+
+		/**
+		 * @return counters and stage latencies of the pipeline of this replay
+		 */
+		public IngestMetrics getMetrics() {
+			return mMetrics;
+		}
+
+		/**
+		 * @return fixes processed per second of wall time
+		 */
+		public double getFixesPerSecond() {
+			return mNanos == 0 ? 0 : mMatched * 1e9 / mNanos;
+		}
+
+		/**
+		 * @param p percentile in [0, 100]
+		 * @return the latency from offer to matched of that percentile in
+		 * 	nanoseconds, 0 without matched fixes
+		 */
+		public long getLatencyPercentile(double p) {
+			if(mLatencies.length == 0)
+				return 0;
+			int i = (int) Math.ceil(p / 100 * mLatencies.length) - 1;
+			return mLatencies[Math.max(0, Math.min(i, mLatencies.length - 1))];
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d fixes (%d rejected, %d dropped), %d matched, %d persisted in %.2f s: %.0f fixes/s, "
+					+ "latency p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+					mFixes, mRejected, mDropped, mMatched, mPersisted, mNanos / 1e9, getFixesPerSecond(),
+					getLatencyPercentile(50) / 1e3, getLatencyPercentile(90) / 1e3, getLatencyPercentile(99) / 1e3,
+					getLatencyPercentile(99.9) / 1e3, getLatencyPercentile(100) / 1e3);
+		}
+	}
+
+	private NearestNodeResolver mResolver;
+	private TraceDB mTraceDB;
+	private TraceSimplifier mSimplifier;
+	private int mSimplifierWindow;
+	private double mSpeed = 1.0;
+	private int mCapacity = 256;
+	private IngestPipeline.DropPolicy mDropPolicy = IngestPipeline.DropPolicy.DROP_NEWEST;
+
+	/**
+	 * @param resolver finds nearest OSM nodes, e.g. an IndexedNearestNodeResolver
+	 * 	over an index file
+	 * @param db receives the recorded traces
+	 */
+	public TraceReplay(NearestNodeResolver resolver, TraceDB db) {
+		mResolver = resolver;
+		mTraceDB = db;
+	}
+
+	/**
+	 * @param speed multiple of the recorded pace, 0 for as fast as possible
+	 */
+	public TraceReplay setSpeed(double speed) {
+		mSpeed = speed;
+		return this;
+	}
+
+	/**
+	 * Simplifies recorded fixes before they reach the DB, to measure the
+	 * cost and ratio of TraceSimplifier.OnlineSink. Off by default, as in
+	 * the SensorService.
+	 */
+	public TraceReplay setSimplifier(TraceSimplifier simplifier, int window) {
+		mSimplifier = simplifier;
+		mSimplifierWindow = window;
+		return this;
+	}
+
+	/**
+	 * @param capacity size of the pipeline ring buffer
+	 * @param policy what to do with fixes while the ring buffer is full
+	 */
+	public TraceReplay setPipeline(int capacity, IngestPipeline.DropPolicy policy) {
+		mCapacity = capacity;
+		mDropPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Replays the samples and waits until all fixes are persisted. A trace
+	 * still being recorded at the end is closed.
+	 *
+	 * @throws InterruptedException if interrupted while pacing the fixes
+	 */
+	public Result run(Samples s) throws InterruptedException {
+		final Result res = new Result();
+		res.mFixes = s.mFixes;
+		final long[] latencies = new long[s.mFixes];
+		final int[] matched = new int[1];
+
+		IngestPipeline.Sink sink = new TraceDBSink(mTraceDB);
+		TraceSimplifier.OnlineSink simplifying = null;
+		if(mSimplifier != null) {
+			simplifying = mSimplifier.new OnlineSink(sink, mSimplifierWindow);
+			sink = simplifying;
+		}
+		IngestPipeline pipeline = new IngestPipeline(mResolver, new RecordingTrigger(14.0f, 18.0f), sink,
+				new IngestPipeline.Listener() {
+					@Override
+					public void onFix(FixRingBuffer.Fix fix, boolean recording) {
+						// Stamped by offer(), so dropped fixes cannot shift the pairing
+						latencies[matched[0]++] = System.nanoTime() - fix.offerNanos;
+					}
+				}, mCapacity, mDropPolicy, 30);
+
+		long keptBefore = mSimplifier != null ? mSimplifier.getNodesOut() : 0;
+		PressureRingBuffer pressureSamples = new PressureRingBuffer(64);
+		double currentPressure = 0;
+		int nextPressure = 0;
+		long firstTime = s.mFixes > 0 ? s.mFixTime[0] : 0;
+
+		pipeline.start();
+		long start = System.nanoTime();
+		try {
+			for(int i = 0; i < s.mFixes; i++) {
+				long time = s.mFixTime[i];
+				if(mSpeed > 0) {
+					long due = start + (long) ((time - firstTime) * 1e6 / mSpeed);
+					long wait;
+					while((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+						if(Thread.interrupted())
+							throw new InterruptedException();
+					}
+				}
+
+				// Pressure samples up to the fix, as the sensor would have delivered them
+				while(nextPressure < s.mPressures && s.mPressureTime[nextPressure] <= time) {
+					long nanos = s.mPressureTime[nextPressure] * 1000000L;
+					currentPressure = s.mPressure[nextPressure];
+					pressureSamples.add(nanos, nanos, (float) currentPressure);
+					nextPressure++;
+				}
+
+				if(Double.isNaN(s.mAlt[i]) || Float.isNaN(s.mAcc[i])) {
+					res.mRejected++;
+					continue;
+				}
+				double pressure = pressureSamples.pressureAt(time * 1000000L, PRESSURE_WINDOW_NANOS);
+				if(Double.isNaN(pressure))
+					pressure = currentPressure;
+
+				pipeline.offer(s.mLat[i], s.mLon[i], s.mAlt[i], s.mAcc[i], time, pressure);
+			}
+		} finally {
+			pipeline.shutdown();
+			if(simplifying != null)
+				simplifying.flush();
+			mTraceDB.closeCurrentTrace();
+		}
+		res.mNanos = System.nanoTime() - start;
+
+		res.mOffered = pipeline.getOffered();
+		res.mDropped = pipeline.getDropped();
+		res.mMatched = pipeline.getMatched();
+		res.mPersisted = mSimplifier != null ? mSimplifier.getNodesOut() - keptBefore : pipeline.getPersisted();
+		res.mMetrics = pipeline.getMetrics();
+		res.mLatencies = Arrays.copyOf(latencies, matched[0]);
+		Arrays.sort(res.mLatencies);
+		return res;
+	}
+}
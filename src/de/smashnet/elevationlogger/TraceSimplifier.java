@@ -0,0 +1,311 @@
+package de.smashnet.elevationlogger;
+
+/**
+ * Removes nodes from traces that add nothing beyond their neighbours. A node
+ * may be dropped if the trace through the remaining nodes, interpolated at its
+ * time, passes within the position tolerance of its location and within the
+ * altitude tolerance of its barometric altitude (GPS altitude if no pressure
+ * was recorded). Using the node time for interpolation keeps the speed along
+ * the trace as well as its shape.
+ *
+ * Some nodes are always kept: the first and last of a trace, a node whose OSM
+ * node differs from that of its predecessor and a node whose air pressure
+ * differs by more than a given jump from that of its predecessor.
+ *
+ * There are two modes:
+ * <ul>
+ * 	<li>simplify() runs Douglas-Peucker over the nodes of a stored trace,
+ * 	see TraceExporter.setSimplifier()</li>
+ * 	<li>OnlineSink decides as fixes arrive, looking at a bounded window of
+ * 	nodes since the last kept one (opening window)</li>
+ * </ul>
+ * Both count the nodes they see and keep, see getCompressionRatio().
+ *
+ * Traces are recorded and archived with all their nodes, so simplification
+ * never loses data. The OnlineSink is opt-in: the nodes it holds back have
+ * not reached its sink yet and are gone if the process dies, so it is only
+ * meant for replays and not for the service.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceSimplifier {
+	private double mPositionTolerance;
+	private double mAltitudeTolerance;
+	private double mPressureJump;
+
+	private long mNodesIn;
+	private long mNodesOut;
+
+	/**
+	 * @param positionTolerance max distance in meters of a dropped node from
+	 * 	the simplified trace
+	 * @param altitudeTolerance max altitude difference in meters of a dropped
+	 * 	node from the simplified trace
+	 * @param pressureJump nodes whose pressure differs by more than this from
+	 * 	their predecessor (in mbar) are always kept
+	 */
+	public TraceSimplifier(double positionTolerance, double altitudeTolerance, double pressureJump) {
+		mPositionTolerance = positionTolerance;
+		mAltitudeTolerance = altitudeTolerance;
+		mPressureJump = pressureJump;
+	}
+
+	/**
+	 * @return the number of nodes seen so far
+	 */
+	public synchronized long getNodesIn() {
+		return mNodesIn;
+	}
+
+	/**
+	 * @return the number of nodes kept so far
+	 */
+	public synchronized long getNodesOut() {
+		return mNodesOut;
+	}
+
+	/**
+	 * @return nodes seen per node kept, 1 if nothing was seen yet
+	 */
+	public synchronized double getCompressionRatio() {
+		return mNodesOut == 0 ? 1.0 : (double) mNodesIn / mNodesOut;
+	}
+
+	private synchronized void count(long in, long out) {
+		mNodesIn += in;
+		mNodesOut += out;
+	}
+
+	/**
+	 * Appends the nodes of in that are kept to out, with all their values.
+	 *
+	 * @return the number of nodes kept
+	 */
+	public int simplify(NodeColumns in, NodeColumns out) {
+		int n = in.size();
+		boolean[] keep = new boolean[n];
+		if(n > 0) {
+			double[] alt = new double[n];
+			for(int i = 0; i < n; i++)
+				alt[i] = altitude(in.getAirPressure(i), in.getGPSAltitude(i));
+
+			// Split at the nodes that are always kept, then simplify in between
+			int[] stack = new int[64];
+			int start = 0;
+			keep[0] = true;
+			for(int i = 1; i < n; i++) {
+				if(i < n - 1 && !isMandatory(in.getOSMNode(i - 1), in.getAirPressure(i - 1),
+						in.getOSMNode(i), in.getAirPressure(i)))
+					continue;
+				keep[i] = true;
+				stack = douglasPeucker(in, alt, start, i, keep, stack);
+				start = i;
+			}
+		}
+
+		int kept = 0;
+		NodeColumns.Cursor c = in.cursor();
+		while(c.moveToNext()) {
+			if(!keep[c.getPosition()])
+				continue;
+			out.add(c.getLatitude(), c.getLongitude(), c.getAccuracy(), c.getOSMNode(), c.getDistance(),
+					c.getAirPressure(), c.getGPSAltitude(), c.getDateVisited(), c.getFusedAltitude(),
+					c.getAltitudeVariance());
+			kept++;
+		}
+		count(n, kept);
+		return kept;
+	}
+
+	/**
+	 * Marks the nodes between first and last that are needed to stay within
+	 * the tolerances. Iterative, so long traces cannot overflow the call stack.
+	 *
+	 * @return the (possibly grown) stack array, for reuse
+	 */
+	private int[] douglasPeucker(NodeColumns in, double[] alt, int first, int last, boolean[] keep, int[] stack) {
+		int top = 0;
+		stack[top++] = first;
+		stack[top++] = last;
+		while(top > 0) {
+			int b = stack[--top];
+			int a = stack[--top];
+			int worst = -1;
+			double worstError = 1.0;
+			for(int k = a + 1; k < b; k++) {
+				double e = error(in.getLatitude(a), in.getLongitude(a), alt[a], in.getDateVisited(a),
+						in.getLatitude(b), in.getLongitude(b), alt[b], in.getDateVisited(b),
+						in.getLatitude(k), in.getLongitude(k), alt[k], in.getDateVisited(k));
+				if(e > worstError) {
+					worstError = e;
+					worst = k;
+				}
+			}
+			if(worst < 0)
+				continue;
+			keep[worst] = true;
+			if(top + 4 > stack.length) {
+				int[] grown = new int[stack.length * 2];
+				System.arraycopy(stack, 0, grown, 0, top);
+				stack = grown;
+			}
+			stack[top++] = a;
+			stack[top++] = worst;
+			stack[top++] = worst;
+			stack[top++] = b;
+		}
+		return stack;
+	}
+
+	/**
+	 * @return true, if a node must be kept because of its predecessor
+	 */
+	private boolean isMandatory(long prevOSMNode, double prevPressure, long osmNode, double pressure) {
+		return osmNode != prevOSMNode || Math.abs(pressure - prevPressure) > mPressureJump;
+	}
+
+	/**
+	 * @return the deviation of node k from the segment a-b interpolated at its
+	 * 	time, relative to the tolerances: above 1 means it must be kept
+	 */
+	private double error(double latA, double lonA, double altA, long timeA, double latB, double lonB, double altB,
+			long timeB, double latK, double lonK, double altK, long timeK) {
+		double f = (timeB == timeA) ? 0 : (double) (timeK - timeA) / (timeB - timeA);
+		double lat = latA + (latB - latA) * f;
+		double lon = lonA + (lonB - lonA) * f;
+		double alt = altA + (altB - altA) * f;
+		double position = OsmNodeIndex.distance(lat, lon, latK, lonK) / mPositionTolerance;
+		double altitude = Math.abs(altK - alt) / mAltitudeTolerance;
+		return Math.max(position, altitude);
+	}
+
+	private static double altitude(double pressure, double gpsAltitude) {
+		return pressure > 0 ? BarometricAltitude.altitude(pressure, BarometricAltitude.STANDARD_PRESSURE) : gpsAltitude;
+	}
+
+	/**
+	 * Simplifies the recorded fixes of the ingest pipeline before they reach
+	 * another sink. Nodes since the last kept one are held in a window; once
+	 * a new node cannot replace them within the tolerances, or the window is
+	 * full, the last of them is kept. So kept nodes reach the sink with a
+	 * delay of at most the window size. Nothing is allocated per node.
+	 */
+	public class OnlineSink implements IngestPipeline.Sink {
+		private final IngestPipeline.Sink mSink;
+		private final int mWindow;
+
+		/**
+		 * Position, altitude and time of the nodes held since the anchor
+		 */
+		private final double[] mLat;
+		private final double[] mLon;
+		private final double[] mAlt;
+		private final long[] mTime;
+		private int mHeld;
+
+		/**
+		 * The newest held node, kept when the window has to be closed
+		 */
+		private final FixRingBuffer.Fix mLast = new FixRingBuffer.Fix();
+
+		/**
+		 * The last kept node
+		 */
+		private boolean mHasAnchor;
+		private double mAnchorLat;
+		private double mAnchorLon;
+		private double mAnchorAlt;
+		private long mAnchorTime;
+
+		/**
+		 * OSM node and pressure of the previous node, kept or not
+		 */
+		private long mPrevOSMNode;
+		private double mPrevPressure;
+
+		/**
+		 * @param sink receives the kept nodes
+		 * @param window max number of nodes held back
+		 */
+		public OnlineSink(IngestPipeline.Sink sink, int window) {
+			mSink = sink;
+			mWindow = Math.max(window, 1);
+			mLat = new double[mWindow];
+			mLon = new double[mWindow];
+			mAlt = new double[mWindow];
+			mTime = new long[mWindow];
+		}
+
+		@Override
+		public void startTrace() {
+			mHeld = 0;
+			mHasAnchor = false;
+			mSink.startTrace();
+		}
+
+		@Override
+		public void addNode(FixRingBuffer.Fix fix) {
+			count(1, 0);
+			double alt = altitude(fix.pressure, fix.altitude);
+			boolean mandatory = !mHasAnchor
+					|| isMandatory(mPrevOSMNode, mPrevPressure, fix.osmId, fix.pressure);
+			mPrevOSMNode = fix.osmId;
+			mPrevPressure = fix.pressure;
+
+			if(mHeld > 0 && (mHeld == mWindow || !fits(fix.latitude, fix.longitude, alt, fix.time))) {
+				// The held nodes need the newest of them, start over from there
+				keep(mLast, altitude(mLast.pressure, mLast.altitude));
+			}
+			if(mandatory) {
+				keep(fix, alt);
+				return;
+			}
+			mLat[mHeld] = fix.latitude;
+			mLon[mHeld] = fix.longitude;
+			mAlt[mHeld] = alt;
+			mTime[mHeld] = fix.time;
+			mHeld++;
+			mLast.set(fix);
+		}
+
+		@Override
+		public void closeTrace() {
+			flush();
+			mSink.closeTrace();
+		}
+
+		/**
+		 * Keeps the newest held node, so the trace ends where it was last
+		 * recorded.
+		 */
+		public void flush() {
+			if(mHeld > 0)
+				keep(mLast, altitude(mLast.pressure, mLast.altitude));
+		}
+
+		/**
+		 * @return true, if all held nodes are within the tolerances of the
+		 * 	segment from the anchor to the given node
+		 */
+		private boolean fits(double lat, double lon, double alt, long time) {
+			for(int i = 0; i < mHeld; i++) {
+				if(error(mAnchorLat, mAnchorLon, mAnchorAlt, mAnchorTime, lat, lon, alt, time,
+						mLat[i], mLon[i], mAlt[i], mTime[i]) > 1.0)
+					return false;
+			}
+			return true;
+		}
+
+		private void keep(FixRingBuffer.Fix fix, double alt) {
+			mHasAnchor = true;
+			mAnchorLat = fix.latitude;
+			mAnchorLon = fix.longitude;
+			mAnchorAlt = alt;
+			mAnchorTime = fix.time;
+			mHeld = 0;
+			count(0, 1);
+			mSink.addNode(fix);
+		}
+	}
+}
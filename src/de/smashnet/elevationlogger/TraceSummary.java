@@ -0,0 +1,85 @@
+package de.smashnet.elevationlogger;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * What lists of traces show about a trace: id, date, number of nodes and the
+ * uploaded flag, without the nodes. Immutable, so summaries can be handed to
+ * other threads and components as they are.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceSummary implements Serializable {
+	private static final long serialVersionUID = 4721358236105117310L;
+
+	/**
+	 * Orders by date, then by id
+	 */
+	public static final Comparator<TraceSummary> BY_DATE = new Comparator<TraceSummary>() {
+		@Override
+		public int compare(TraceSummary a, TraceSummary b) {
+			if(a.mDate != b.mDate)
+				return a.mDate < b.mDate ? -1 : 1;
+			return a.mId < b.mId ? -1 : (a.mId == b.mId ? 0 : 1);
+		}
+	};
+
+	private final long mId;
+	private final long mDate;
+	private final int mLength;
+	private final boolean mUploaded;
+	private final boolean mRecording;
+
+	public TraceSummary(long id, long date, int length, boolean uploaded, boolean recording) {
+		mId = id;
+		mDate = date;
+		mLength = length;
+		mUploaded = uploaded;
+		mRecording = recording;
+	}
+
+	/**
+	 * @param lt the trace
+	 * @param recording true, if the trace is still being recorded
+	 */
+	public TraceSummary(LocationTrace lt, boolean recording) {
+		this(lt.getId(), lt.getDate().getTime(), lt.getLength(), lt.isUploaded(), recording);
+	}
+
+	public long getId() {
+		return mId;
+	}
+
+	/**
+	 * @return the start of the trace in milliseconds since the epoch
+	 */
+	public long getDate() {
+		return mDate;
+	}
+
+	public Date getDateAsDate() {
+		return new Date(mDate);
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	public int getLength() {
+		return mLength;
+	}
+
+	public boolean isUploaded() {
+		return mUploaded;
+	}
+
+	/**
+	 * @return true, if the trace was still being recorded when the summary
+	 * 	was taken
+	 */
+	public boolean isRecording() {
+		return mRecording;
+	}
+}
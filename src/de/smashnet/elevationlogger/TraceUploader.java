@@ -0,0 +1,554 @@
+package de.smashnet.elevationlogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+/**
+ * Uploads the closed traces of a TraceDB that are not uploaded yet to an HTTP
+ * endpoint. Each trace is sent in chunks of a fixed number of nodes, one
+ * POST per chunk. The body of a chunk is a complete TraceCodec stream of its
+ * nodes, gzip compressed; the headers say which part of which trace it is:
+ * <ul>
+ * 	<li>X-Trace-Id, X-Trace-Date: id and start of the trace in milliseconds
+ * 	since the epoch</li>
+ * 	<li>X-Trace-Length: number of nodes of the trace</li>
+ * 	<li>X-Chunk-Offset, X-Chunk-Length: index of the first node of the chunk
+ * 	and its number of nodes</li>
+ * </ul>
+ * A chunk may be sent more than once if an answer gets lost, so the endpoint
+ * should treat trace id and chunk offset as idempotency key.
+ *
+ * Traces are uploaded in parallel on a fixed number of workers, each sending
+ * the chunks of one trace in order, so there are never more requests in
+ * flight than workers. Failed requests are retried with exponential backoff
+ * and jitter: I/O errors, 408, 429 and 5xx. Other answers fail the trace for
+ * this run.
+ *
+ * The number of nodes acknowledged per trace is kept in a progress file,
+ * written atomically after each chunk, so an upload interrupted by an error
+ * or a killed process resumes with the first unacknowledged chunk. Once the
+ * last chunk is acknowledged, the trace is marked uploaded in the TraceDB
+ * before its progress is dropped, so it is never sent again.
+ *
+ * @author Nicolas Inden
+ *
+ */
+public class TraceUploader {
+	/**
+	 * Where and how to upload
+	 */
+	public static class Config {
+		private URL mEndpoint;
+		private int mChunkNodes = 2000;
+		private int mConcurrency = 2;
+		private int mMaxAttempts = 6;
+		private long mInitialBackoffMillis = 1000;
+		private long mMaxBackoffMillis = 60000;
+		private int mConnectTimeoutMillis = 15000;
+		private int mReadTimeoutMillis = 30000;
+		private LinkedHashMap<String, String> mHeaders = new LinkedHashMap<String, String>();
+
+		/**
+		 * @param endpoint the URL chunks are POSTed to
+		 */
+		public Config(URL endpoint) {
+			mEndpoint = endpoint;
+		}
+
+		/**
+		 * @param nodes maximum number of nodes per chunk, 2000 by default
+		 */
+		public Config setChunkNodes(int nodes) {
+			mChunkNodes = Math.max(nodes, 1);
+			return this;
+		}
+
+		/**
+		 * @param requests maximum number of requests in flight, 2 by default
+		 */
+		public Config setConcurrency(int requests) {
+			mConcurrency = Math.max(requests, 1);
+			return this;
+		}
+
+		/**
+		 * @param attempts attempts per chunk before the trace fails for this
+		 * 	run, 6 by default
+		 * @param initialMillis backoff before the first retry, doubled for each
+		 * 	further one, 1 s by default
+		 * @param maxMillis upper bound of the backoff, 60 s by default
+		 */
+		public Config setRetries(int attempts, long initialMillis, long maxMillis) {
+			mMaxAttempts = Math.max(attempts, 1);
+			mInitialBackoffMillis = initialMillis;
+			mMaxBackoffMillis = Math.max(maxMillis, initialMillis);
+			return this;
+		}
+
+		public Config setTimeouts(int connectMillis, int readMillis) {
+			mConnectTimeoutMillis = connectMillis;
+			mReadTimeoutMillis = readMillis;
+			return this;
+		}
+
+		/**
+		 * Adds a header sent with every chunk, e.g. for authorization.
+		 */
+		public Config setHeader(String name, String value) {
+			mHeaders.put(name, value);
+			return this;
+		}
+
+		public URL getEndpoint() {
+			return mEndpoint;
+		}
+	}
+
+	/**
+	 * Outcome of an upload run.
+	 */
+	public static class Result {
+		private int mTraces;
+		private int mFailed;
+		private int mResumed;
+		private int mChunks;
+		private int mRetries;
+		private long mNodes;
+		private long mRawBytes;
+		private long mSentBytes;
+		private long mNanos;
+
+		/**
+		 * @return the number of traces completely uploaded
+		 */
+		public int getTraces() {
+			return mTraces;
+		}
+
+		/**
+		 * @return the number of traces left for a later run
+		 */
+		public int getFailed() {
+			return mFailed;
+		}
+
+		/**
+		 * @return the number of traces continued from a previous run
+		 */
+		public int getResumed() {
+			return mResumed;
+		}
+
+		/**
+		 * @return the number of chunks sent for the uploaded traces in this
+		 * 	run
+		 */
+		public int getChunks() {
+			return mChunks;
+		}
+
+		public int getRetries() {
+			return mRetries;
+		}
+
+		/**
+		 * @return the number of nodes sent for the uploaded traces in this run
+		 */
+		public long getNodes() {
+			return mNodes;
+		}
+
+		/**
+		 * @return the size of these chunks before compression
+		 */
+		public long getRawBytes() {
+			return mRawBytes;
+		}
+
+		/**
+		 * @return the size of these chunks as sent
+		 */
+		public long getSentBytes() {
+			return mSentBytes;
+		}
+
+		public long getNanos() {
+			return mNanos;
+		}
+
+		public double getNodesPerSecond() {
+			return mNanos == 0 ? 0 : mNodes * 1e9 / mNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d traces (%d failed, %d resumed), %d chunks, %d retries, %d nodes, "
+					+ "%d bytes sent of %d in %.2f s: %.0f nodes/s",
+					mTraces, mFailed, mResumed, mChunks, mRetries, mNodes, mSentBytes, mRawBytes,
+					mNanos / 1e9, getNodesPerSecond());
+		}
+	}
+
+	/**
+	 * Outcome of one trace
+	 */
+	private static class Sent {
+		boolean mResumed;
+		int mChunks;
+		int mRetries;
+		long mNodes;
+		long mRawBytes;
+		long mSentBytes;
+	}
+
+	private final TraceDB mTraceDB;
+	private final Config mConfig;
+	private final File mProgressFile;
+	/**
+	 * Acknowledged nodes per trace id, guarded by itself
+	 */
+	private final Properties mProgress = new Properties();
+	private final Random mRandom = new Random();
+	private volatile boolean mCancelled;
+
+	/**
+	 * @param db the traces to upload
+	 * @param config the endpoint
+	 * @param progressFile where partial uploads are remembered
+	 */
+	public TraceUploader(TraceDB db, Config config, File progressFile) {
+		mTraceDB = db;
+		mConfig = config;
+		mProgressFile = progressFile;
+		loadProgress();
+	}
+
+	/**
+	 * Stops the running upload after the requests in flight. Its chunks are
+	 * resumed by the next run. Workers check for this before each chunk and
+	 * before marking a trace uploaded.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * Uploads all closed traces that are not uploaded yet and waits until
+	 * all are done or have failed. Also when interrupted, this returns only
+	 * once no worker touches the TraceDB any more, so the caller may close it.
+	 *
+	 * @return counts and throughput of the run
+	 * @throws InterruptedException if interrupted while waiting, remaining
+	 * 	traces are resumed by the next run then
+	 */
+	public Result upload() throws InterruptedException {
+		mCancelled = false;
+		List<LocationTrace> traces = mTraceDB.getTracesToUpload();
+		Result res = new Result();
+		long start = System.nanoTime();
+		int threads = Math.min(mConfig.mConcurrency, Math.max(traces.size(), 1));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<Sent> done = new ExecutorCompletionService<Sent>(pool);
+			for(final LocationTrace lt : traces) {
+				done.submit(new Callable<Sent>() {
+					@Override
+					public Sent call() throws IOException, InterruptedException {
+						return upload(lt);
+					}
+				});
+			}
+			for(int i = 0; i < traces.size(); i++) {
+				try {
+					Sent s = done.take().get();
+					res.mTraces++;
+					res.mResumed += s.mResumed ? 1 : 0;
+					res.mChunks += s.mChunks;
+					res.mRetries += s.mRetries;
+					res.mNodes += s.mNodes;
+					res.mRawBytes += s.mRawBytes;
+					res.mSentBytes += s.mSentBytes;
+				} catch (ExecutionException e) {
+					res.mFailed++;
+					Log.e("TraceUploader", "Error uploading trace: " + e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			awaitTermination(pool);
+		}
+		res.mNanos = System.nanoTime() - start;
+		Log.i("TraceUploader", "Uploaded " + res);
+		return res;
+	}
+
+	/**
+	 * Waits for the workers of a pool that was shut down, also if interrupted.
+	 * Interrupted workers stop after their request in flight, which is bounded
+	 * by the timeouts.
+	 */
+	private static void awaitTermination(ExecutorService pool) {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				if(pool.awaitTermination(1, TimeUnit.MINUTES))
+					break;
+				Log.w("TraceUploader", "Still waiting for upload workers");
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Sends the chunks of a trace not acknowledged yet and marks it uploaded.
+	 */
+	private Sent upload(LocationTrace lt) throws IOException, InterruptedException {
+		boolean wasLoaded = lt.isLoaded();
+		Sent s = new Sent();
+		try {
+			NodeColumns nodes = lt.getNodes();
+			int length = nodes.size();
+			TraceArchive.Entry entry = lt.getArchiveEntry();
+			if(entry != null && entry.getLength() != length)
+				throw new IOException("Loaded " + length + " of " + entry.getLength() + " nodes of trace " + lt.getId());
+			int offset = Math.min(getProgress(lt.getId()), length);
+			s.mResumed = offset > 0;
+			ByteArrayOutputStream raw = new ByteArrayOutputStream(16 * mConfig.mChunkNodes);
+			ByteArrayOutputStream body = new ByteArrayOutputStream(8 * mConfig.mChunkNodes);
+			while(offset < length) {
+				if(mCancelled)
+					throw new IOException("Upload cancelled");
+				int count = Math.min(mConfig.mChunkNodes, length - offset);
+				encode(nodes, offset, count, raw, body);
+				s.mRetries += send(lt, length, offset, count, body);
+				offset += count;
+				setProgress(lt.getId(), offset);
+				s.mChunks++;
+				s.mNodes += count;
+				s.mRawBytes += raw.size();
+				s.mSentBytes += body.size();
+			}
+		} finally {
+			if(!wasLoaded)
+				lt.unload();
+		}
+		if(mCancelled)
+			throw new IOException("Upload cancelled");
+		if(!mTraceDB.setUploaded(lt, true))
+			throw new IOException("Could not mark trace " + lt.getId() + " uploaded");
+		removeProgress(lt.getId());
+		return s;
+	}
+
+	/**
+	 * Encodes the nodes [offset, offset + count) to raw and their compressed
+	 * form to body.
+	 */
+	private static void encode(NodeColumns nodes, int offset, int count, ByteArrayOutputStream raw,
+			ByteArrayOutputStream body) throws IOException {
+		raw.reset();
+		TraceCodec.Encoder enc = new TraceCodec().newEncoder(raw);
+		NodeColumns.Cursor c = nodes.cursor();
+		c.moveTo(offset);
+		for(int i = 0; i < count; i++, c.moveToNext())
+			enc.write(c);
+		enc.flush();
+
+		body.reset();
+		GZIPOutputStream gz = new GZIPOutputStream(body);
+		raw.writeTo(gz);
+		gz.close();
+	}
+
+	/**
+	 * POSTs one chunk until it is acknowledged.
+	 *
+	 * @return the number of retries needed
+	 * @throws IOException if the chunk was refused or all attempts failed
+	 */
+	private int send(LocationTrace lt, int length, int offset, int count, ByteArrayOutputStream body)
+			throws IOException, InterruptedException {
+		for(int attempt = 1; ; attempt++) {
+			int status = -1;
+			long retryAfter = -1;
+			String error;
+			try {
+				HttpURLConnection con = (HttpURLConnection) mConfig.mEndpoint.openConnection();
+				try {
+					con.setRequestMethod("POST");
+					con.setDoOutput(true);
+					con.setUseCaches(false);
+					con.setConnectTimeout(mConfig.mConnectTimeoutMillis);
+					con.setReadTimeout(mConfig.mReadTimeoutMillis);
+					con.setFixedLengthStreamingMode(body.size());
+					con.setRequestProperty("Content-Type", "application/octet-stream");
+					con.setRequestProperty("Content-Encoding", "gzip");
+					con.setRequestProperty("X-Trace-Id", String.valueOf(lt.getId()));
+					con.setRequestProperty("X-Trace-Date", String.valueOf(lt.getDate().getTime()));
+					con.setRequestProperty("X-Trace-Length", String.valueOf(length));
+					con.setRequestProperty("X-Chunk-Offset", String.valueOf(offset));
+					con.setRequestProperty("X-Chunk-Length", String.valueOf(count));
+					for(Map.Entry<String, String> h : mConfig.mHeaders.entrySet())
+						con.setRequestProperty(h.getKey(), h.getValue());
+
+					OutputStream out = con.getOutputStream();
+					try {
+						body.writeTo(out);
+					} finally {
+						out.close();
+					}
+					status = con.getResponseCode();
+					drain(con, status);
+					if(status >= 200 && status < 300)
+						return attempt - 1;
+					retryAfter = parseRetryAfter(con.getHeaderField("Retry-After"));
+					error = "HTTP " + status;
+				} finally {
+					con.disconnect();
+				}
+			} catch (IOException e) {
+				error = e.toString();
+			}
+			if(status >= 0 && status != 408 && status != 429 && status < 500)
+				throw new IOException("Chunk " + offset + " of trace " + lt.getId() + " refused: " + error);
+			if(attempt >= mConfig.mMaxAttempts || mCancelled)
+				throw new IOException("Chunk " + offset + " of trace " + lt.getId() + " failed after "
+						+ attempt + " attempts: " + error);
+			long backoff = retryAfter >= 0 ? retryAfter : backoff(attempt);
+			Log.w("TraceUploader", "Retrying chunk " + offset + " of trace " + lt.getId() + " in "
+					+ backoff + " ms: " + error);
+			Thread.sleep(backoff);
+		}
+	}
+
+	/**
+	 * @return the delay before the given retry: the initial backoff doubled
+	 * 	per attempt, capped, and scaled randomly to 50-100%
+	 */
+	private long backoff(int attempt) {
+		long max = mConfig.mInitialBackoffMillis << Math.min(attempt - 1, 30);
+		if(max <= 0 || max > mConfig.mMaxBackoffMillis)
+			max = mConfig.mMaxBackoffMillis;
+		double jitter;
+		synchronized(mRandom) {
+			jitter = 0.5 + 0.5 * mRandom.nextDouble();
+		}
+		return (long) (max * jitter);
+	}
+
+	/**
+	 * @return the delay in milliseconds of a Retry-After header in seconds,
+	 * 	capped by the maximum backoff, -1 if missing or a date
+	 */
+	private long parseRetryAfter(String value) {
+		if(value == null)
+			return -1;
+		try {
+			return Math.min(Long.parseLong(value.trim()) * 1000, mConfig.mMaxBackoffMillis);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the answer, so the connection can be reused.
+	 */
+	private static void drain(HttpURLConnection con, int status) {
+		try {
+			InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream();
+			if(in == null)
+				return;
+			byte[] buf = new byte[1024];
+			while(in.read(buf) >= 0)
+				;
+			in.close();
+		} catch (IOException e) {
+			// Nothing of interest in there
+		}
+	}
+
+	private int getProgress(long traceId) {
+		synchronized(mProgress) {
+			return Integer.parseInt(mProgress.getProperty(String.valueOf(traceId), "0"));
+		}
+	}
+
+	private void setProgress(long traceId, int nodes) throws IOException {
+		synchronized(mProgress) {
+			mProgress.setProperty(String.valueOf(traceId), String.valueOf(nodes));
+			storeProgress();
+		}
+	}
+
+	private void removeProgress(long traceId) {
+		synchronized(mProgress) {
+			if(mProgress.remove(String.valueOf(traceId)) == null)
+				return;
+			try {
+				storeProgress();
+			} catch (IOException e) {
+				// The trace is marked uploaded, its progress is never read again
+				Log.w("TraceUploader", "Error storing upload progress: " + e);
+			}
+		}
+	}
+
+	private void loadProgress() {
+		if(!mProgressFile.exists())
+			return;
+		try {
+			FileInputStream in = new FileInputStream(mProgressFile);
+			try {
+				mProgress.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Traces are uploaded from their start then
+			e.printStackTrace();
+			Log.e("TraceUploader", "Error reading upload progress: " + e);
+		}
+	}
+
+	/**
+	 * Writes the progress to a temporary file and renames it, so the file is
+	 * either the old or the new version after a crash.
+	 */
+	private void storeProgress() throws IOException {
+		File tmp = new File(mProgressFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			mProgress.store(out, null);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(mProgressFile))
+			throw new IOException("Could not rename " + tmp);
+	}
+}